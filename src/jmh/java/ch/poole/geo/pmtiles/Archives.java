@@ -0,0 +1,95 @@
+package ch.poole.geo.pmtiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Helpers to access the test archives from benchmarks
+ * 
+ * @author simon
+ *
+ */
+final class Archives {
+
+    static final String STAMEN  = "stamen_toner(raster)CC-BY+ODbL_z3.pmtiles";
+    static final String USGS    = "usgs-mt-whitney-8-15-webp-512.pmtiles";
+    static final String FIRENZE = "protomaps(vector)ODbL_firenze.pmtiles";
+    static final String LEAF    = "leaf-dirs.pmtiles";
+
+    private static final int MAX_TILES = 10000;
+
+    private Archives() {
+        throw new IllegalStateException("Utility class, can't be instantiated");
+    }
+
+    /**
+     * Get a test archive from the classpath
+     * 
+     * @param name the resource name
+     * @return a File
+     * @throws IOException if the archive can't be found
+     */
+    @NotNull
+    static File get(@NotNull String name) throws IOException {
+        URL url = Archives.class.getClassLoader().getResource(name);
+        if (url == null) {
+            throw new IOException(name + " not found");
+        }
+        return new File(url.getFile());
+    }
+
+    /**
+     * Get the coordinates of existing tiles within the bounds of an archive, starting at the highest zoom level
+     * 
+     * @param reader the Reader for the archive
+     * @return a List of at most MAX_TILES TileCoordinates
+     * @throws IOException if reading tiles fails
+     */
+    @NotNull
+    static List<TileCoordinates> tiles(@NotNull Reader reader) throws IOException {
+        List<TileCoordinates> result = new ArrayList<>();
+        double[] bounds = reader.getBounds();
+        for (int z = reader.getMaxZoom(); z >= reader.getMinZoom(); z--) {
+            final int maxX = Math.min(xTile(z, bounds[2]), (1 << z) - 1);
+            final int maxY = Math.min(yTile(z, bounds[1]), (1 << z) - 1);
+            for (int x = Math.max(xTile(z, bounds[0]), 0); x <= maxX; x++) {
+                for (int y = Math.max(yTile(z, bounds[3]), 0); y <= maxY; y++) {
+                    if (reader.getTile(z, x, y) != null) {
+                        result.add(new TileCoordinates(z, x, y));
+                        if (result.size() >= MAX_TILES) {
+                            return result;
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the x tile number for a longitude
+     * 
+     * @param zoom the zoom level
+     * @param lon the longitude
+     * @return the x tile number
+     */
+    private static int xTile(int zoom, double lon) {
+        return (int) Math.floor((lon + 180) / 360 * (1 << zoom));
+    }
+
+    /**
+     * Get the y tile number for a latitude
+     * 
+     * @param zoom the zoom level
+     * @param lat the latitude
+     * @return the y tile number
+     */
+    private static int yTile(int zoom, double lat) {
+        return (int) Math.floor((1 - Math.log(Math.tan(Math.toRadians(lat)) + 1 / Math.cos(Math.toRadians(lat))) / Math.PI) / 2 * (1 << zoom));
+    }
+}
@@ -0,0 +1,98 @@
+package ch.poole.geo.pmtiles;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmark reading, de-compressing and decoding the root directory of the test archives
+ * 
+ * @author simon
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DirectoryBenchmark {
+
+    @Param({ Archives.STAMEN, Archives.USGS, Archives.FIRENZE, Archives.LEAF })
+    String archive;
+
+    private Reader     reader;
+    private ByteBuffer raw;
+    private byte       compression;
+
+    /**
+     * Open the archive and read the raw root directory
+     * 
+     * @throws IOException if reading fails
+     */
+    @Setup
+    public void setup() throws IOException {
+        reader = new Reader(Archives.get(archive));
+        compression = reader.header().internalCompression;
+        raw = ByteBuffer.allocate((int) reader.header().rootDirLength);
+        try (FileInputStream stream = new FileInputStream(Archives.get(archive))) {
+            stream.getChannel().read(raw, reader.header().rootDirOffset);
+        }
+        raw.flip();
+    }
+
+    /**
+     * Close the archive
+     * 
+     * @throws IOException if closing fails
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Read, de-compress and decode the root directory
+     * 
+     * @return the decoded directory
+     * @throws IOException if reading fails
+     */
+    @Benchmark
+    public Object read() throws IOException {
+        Reader.Directory directory = reader.new Directory();
+        directory.read(reader.header().rootDirOffset, reader.header().rootDirLength, compression);
+        return directory;
+    }
+
+    /**
+     * De-compress and decode the root directory
+     * 
+     * @return the decoded directory
+     * @throws IOException if de-compressing fails
+     */
+    @Benchmark
+    public Object decode() throws IOException {
+        Reader.Directory directory = reader.new Directory();
+        directory.decode(raw.duplicate(), compression);
+        return directory;
+    }
+
+    /**
+     * De-compress the root directory
+     * 
+     * @return the de-compressed directory
+     * @throws IOException if de-compressing fails
+     */
+    @Benchmark
+    public ByteBuffer decompress() throws IOException {
+        return Util.decompress(raw.duplicate(), compression);
+    }
+}
@@ -0,0 +1,90 @@
+package ch.poole.geo.pmtiles;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * End to end benchmark of tile retrieval from the local test archives
+ * 
+ * All existing tiles within the bounds of the archive (up to a limit) are retrieved in turn, each thread starting at a
+ * different position.
+ * 
+ * @author simon
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GetTileBenchmark {
+
+    static final int THREADS = 4;
+
+    @Param({ Archives.STAMEN, Archives.USGS, Archives.FIRENZE, Archives.LEAF })
+    String archive;
+
+    @Param({ "false", "true" })
+    boolean memoryMapped;
+
+    Reader                reader;
+    List<TileCoordinates> tiles;
+
+    /**
+     * Open the archive and determine the tiles to retrieve
+     * 
+     * @throws IOException if reading fails
+     */
+    @Setup
+    public void setup() throws IOException {
+        reader = new Reader(Archives.get(archive), memoryMapped);
+        tiles = Archives.tiles(reader);
+    }
+
+    /**
+     * Close the archive
+     * 
+     * @throws IOException if closing fails
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Retrieve one tile on a single thread
+     * 
+     * @param cursor the position in the list of tiles
+     * @return the tile
+     * @throws IOException if reading fails
+     */
+    @Benchmark
+    public byte[] getTile(TileCursor cursor) throws IOException {
+        TileCoordinates c = cursor.next(tiles);
+        return reader.getTile(c.getZoom(), c.getX(), c.getY());
+    }
+
+    /**
+     * Retrieve one tile on each of THREADS threads concurrently
+     * 
+     * @param cursor the position in the list of tiles
+     * @return the tile
+     * @throws IOException if reading fails
+     */
+    @Benchmark
+    @Threads(THREADS)
+    public byte[] getTileConcurrent(TileCursor cursor) throws IOException {
+        TileCoordinates c = cursor.next(tiles);
+        return reader.getTile(c.getZoom(), c.getX(), c.getY());
+    }
+}
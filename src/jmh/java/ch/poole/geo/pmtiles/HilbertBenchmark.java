@@ -0,0 +1,87 @@
+package ch.poole.geo.pmtiles;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmark conversion of tile coordinates to Hilbert indices
+ * 
+ * @author simon
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HilbertBenchmark {
+
+    private static final int COUNT = 1024;
+
+    @Param({ "3", "14", "20" })
+    int zoom;
+
+    private final int[]  x       = new int[COUNT];
+    private final int[]  y       = new int[COUNT];
+    private final long[] indices = new long[COUNT];
+
+    /**
+     * Create random coordinates
+     */
+    @Setup
+    public void setup() {
+        Random random = new Random(zoom);
+        final int size = 1 << zoom;
+        for (int i = 0; i < COUNT; i++) {
+            x[i] = random.nextInt(size);
+            y[i] = random.nextInt(size);
+            indices[i] = Hilbert.zxyToIndex(zoom, x[i], y[i]);
+        }
+    }
+
+    /**
+     * Convert COUNT coordinates
+     * 
+     * @return a value depending on all results
+     */
+    @Benchmark
+    public long zxyToIndex() {
+        long result = 0;
+        for (int i = 0; i < COUNT; i++) {
+            result += Hilbert.zxyToIndex(zoom, x[i], y[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Convert COUNT coordinates with the batch method
+     * 
+     * @return the indices
+     */
+    @Benchmark
+    public long[] zxyToIndexBatch() {
+        long[] result = new long[COUNT];
+        Hilbert.zxyToIndex(zoom, x, y, result);
+        return result;
+    }
+
+    /**
+     * Convert COUNT indices back to coordinates with the batch method
+     * 
+     * @return the x coordinates
+     */
+    @Benchmark
+    public int[] indexToZxyBatch() {
+        int[] resultX = new int[COUNT];
+        int[] resultY = new int[COUNT];
+        Hilbert.indexToZxy(zoom, indices, resultX, resultY);
+        return resultX;
+    }
+}
@@ -0,0 +1,106 @@
+package ch.poole.geo.pmtiles;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import okhttp3.mockwebserver.MockWebServer;
+
+/**
+ * End to end benchmark of tile retrieval from a local mock server
+ * 
+ * This measures the overhead of the remote code paths and the number of requests per tile, not real network latency.
+ * 
+ * @author simon
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RemoteBenchmark {
+
+    @Param({ "HttpUrlConnectionChannel", "HttpClientChannel", "BlockCacheChannel" })
+    String channel;
+
+    private MockWebServer server;
+    Reader                reader;
+    List<TileCoordinates> tiles;
+
+    /**
+     * Start the mock server and open the archive via it
+     * 
+     * @throws IOException if starting the server or reading fails
+     */
+    @Setup
+    public void setup() throws IOException {
+        server = new MockWebServer();
+        server.setDispatcher(new PMTilesDispatcher(Archives.get(Archives.FIRENZE)));
+        URL url = new URL(server.url("/").toString() + "firenze.pmtiles");
+        switch (channel) {
+        case "HttpUrlConnectionChannel":
+            reader = new Reader(new HttpUrlConnectionChannel(url));
+            break;
+        case "HttpClientChannel":
+            reader = new Reader(new HttpClientChannel(url));
+            break;
+        case "BlockCacheChannel":
+            reader = new Reader(new BlockCacheChannel(new HttpUrlConnectionChannel(url)));
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown channel " + channel);
+        }
+        try (Reader local = new Reader(Archives.get(Archives.FIRENZE))) {
+            tiles = Archives.tiles(local);
+        }
+    }
+
+    /**
+     * Close the archive and stop the server
+     * 
+     * @throws IOException if closing fails
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        reader.close();
+        server.shutdown();
+    }
+
+    /**
+     * Retrieve one tile on a single thread
+     * 
+     * @param cursor the position in the list of tiles
+     * @return the tile
+     * @throws IOException if reading fails
+     */
+    @Benchmark
+    public byte[] getTile(TileCursor cursor) throws IOException {
+        TileCoordinates c = cursor.next(tiles);
+        return reader.getTile(c.getZoom(), c.getX(), c.getY());
+    }
+
+    /**
+     * Retrieve one tile on each of GetTileBenchmark.THREADS threads concurrently
+     * 
+     * @param cursor the position in the list of tiles
+     * @return the tile
+     * @throws IOException if reading fails
+     */
+    @Benchmark
+    @Threads(GetTileBenchmark.THREADS)
+    public byte[] getTileConcurrent(TileCursor cursor) throws IOException {
+        TileCoordinates c = cursor.next(tiles);
+        return reader.getTile(c.getZoom(), c.getX(), c.getY());
+    }
+}
@@ -0,0 +1,38 @@
+package ch.poole.geo.pmtiles;
+
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per thread position in a list of tiles to retrieve
+ * 
+ * Each thread starts at a different position so that concurrent benchmarks don't retrieve the same tiles in lock step.
+ * 
+ * @author simon
+ *
+ */
+@State(Scope.Thread)
+public class TileCursor {
+
+    private int next = -1;
+
+    /**
+     * Get the next tile to retrieve
+     * 
+     * @param tiles the tiles
+     * @return the coordinates of the tile
+     */
+    @NotNull
+    TileCoordinates next(@NotNull List<TileCoordinates> tiles) {
+        final int size = tiles.size();
+        if (next < 0) {
+            next = (int) (Thread.currentThread().getId() % size);
+        }
+        TileCoordinates result = tiles.get(next);
+        next = (next + 1) % size;
+        return result;
+    }
+}
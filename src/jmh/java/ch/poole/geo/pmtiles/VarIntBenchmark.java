@@ -0,0 +1,70 @@
+package ch.poole.geo.pmtiles;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmark decoding of varints
+ * 
+ * @author simon
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VarIntBenchmark {
+
+    private static final int COUNT = 1024;
+
+    /**
+     * Maximum number of significant bits of the encoded values, 7 gives single byte varints, 35 roughly the range of
+     * tile offsets in large archives
+     */
+    @Param({ "7", "21", "35" })
+    int bits;
+
+    private ByteBuffer buffer;
+
+    /**
+     * Encode random values
+     */
+    @Setup
+    public void setup() {
+        Random random = new Random(bits);
+        buffer = ByteBuffer.allocate(COUNT * VarInt.MAX_VARLONG_SIZE);
+        for (int i = 0; i < COUNT; i++) {
+            long value = random.nextLong() >>> (Long.SIZE - bits);
+            while ((value & ~0x7FL) != 0) {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Decode COUNT values
+     * 
+     * @return a value depending on all results
+     */
+    @Benchmark
+    public long getVarLong() {
+        ByteBuffer temp = buffer.duplicate();
+        long result = 0;
+        for (int i = 0; i < COUNT; i++) {
+            result += VarInt.getVarLong(temp);
+        }
+        return result;
+    }
+}
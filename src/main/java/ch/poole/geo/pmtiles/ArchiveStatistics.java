@@ -0,0 +1,249 @@
+package ch.poole.geo.pmtiles;
+
+import java.util.Arrays;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * ScanVisitor that collects statistics on the tile entries of an archive and validates them
+ *
+ * Counts entries, addressed tiles and distinct tile contents (distinct offsets), tiles per zoom level, a histogram of
+ * tile sizes, and entries that point outside of the tile data section. To count distinct contents the offsets are
+ * retained, this needs 8 bytes per distinct content.
+ *
+ * Usage:
+ *
+ * <pre>
+ * ArchiveStatistics statistics = reader.getStatistics();
+ * if (statistics.getInvalidEntries() &gt; 0 || !statistics.matchesHeader(reader)) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * @author simon
+ *
+ */
+public final class ArchiveStatistics implements ScanVisitor<ArchiveStatistics> {
+
+    /**
+     * Maximum zoom level that is counted separately
+     */
+    public static final int MAX_ZOOM = 31;
+
+    private static final int INITIAL_OFFSETS = 16;
+
+    private final long   tileDataLength;
+    private long         entries;
+    private long         addressedTiles;
+    private long         invalidEntries;
+    private long         firstInvalidTileId = -1;
+    private final long[] tilesPerZoom       = new long[MAX_ZOOM + 1];
+    private final long[] sizeHistogram      = new long[Long.SIZE];
+    private long[]       offsets            = new long[INITIAL_OFFSETS];
+    private int          offsetCount;
+    private boolean      compacted          = true;
+
+    /**
+     * Construct a new instance
+     *
+     * @param tileDataLength the length of the tile data section of the archive, see Reader.getTileDataLength
+     */
+    public ArchiveStatistics(long tileDataLength) {
+        this.tileDataLength = tileDataLength;
+    }
+
+    @Override
+    public ArchiveStatistics fork() {
+        return new ArchiveStatistics(tileDataLength);
+    }
+
+    @Override
+    public void visit(long tileId, long runLength, long offset, long length) {
+        entries++;
+        addressedTiles += runLength;
+        if (offset < 0 || length < 0 || offset + length > tileDataLength) {
+            if (invalidEntries == 0) {
+                firstInvalidTileId = tileId;
+            }
+            invalidEntries++;
+        }
+        sizeHistogram[length <= 0 ? 0 : Long.SIZE - Long.numberOfLeadingZeros(length)]++;
+        long id = tileId;
+        long remaining = runLength;
+        while (remaining > 0) {
+            final int zoom = Hilbert.tileIdToZoom(id);
+            if (zoom > MAX_ZOOM) {
+                break;
+            }
+            final long count = Math.min(remaining, Hilbert.zoomOffset(zoom + 1) - id);
+            tilesPerZoom[zoom] += count;
+            id += count;
+            remaining -= count;
+        }
+        if (offsetCount == offsets.length) {
+            compact();
+            if (offsetCount > offsets.length / 2) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+        }
+        if (offsetCount > 0 && offset <= offsets[offsetCount - 1]) {
+            if (offset == offsets[offsetCount - 1]) {
+                return; // adjacent entries for the same contents
+            }
+            compacted = false;
+        }
+        offsets[offsetCount++] = offset;
+    }
+
+    @Override
+    public void merge(@NotNull ArchiveStatistics other) {
+        entries += other.entries;
+        addressedTiles += other.addressedTiles;
+        if (invalidEntries == 0) {
+            firstInvalidTileId = other.firstInvalidTileId;
+        }
+        invalidEntries += other.invalidEntries;
+        for (int i = 0; i < tilesPerZoom.length; i++) {
+            tilesPerZoom[i] += other.tilesPerZoom[i];
+        }
+        for (int i = 0; i < sizeHistogram.length; i++) {
+            sizeHistogram[i] += other.sizeHistogram[i];
+        }
+        compact();
+        other.compact();
+        long[] merged = new long[Math.max(INITIAL_OFFSETS, offsetCount + other.offsetCount)];
+        int i = 0;
+        int j = 0;
+        int count = 0;
+        while (i < offsetCount || j < other.offsetCount) {
+            long next;
+            if (j >= other.offsetCount || (i < offsetCount && offsets[i] <= other.offsets[j])) {
+                next = offsets[i++];
+            } else {
+                next = other.offsets[j++];
+            }
+            if (count == 0 || merged[count - 1] != next) {
+                merged[count++] = next;
+            }
+        }
+        offsets = merged;
+        offsetCount = count;
+        other.offsets = new long[INITIAL_OFFSETS];
+        other.offsetCount = 0;
+    }
+
+    /**
+     * Sort the retained offsets and remove duplicates
+     */
+    private void compact() {
+        if (compacted) {
+            return;
+        }
+        Arrays.sort(offsets, 0, offsetCount);
+        int count = 0;
+        for (int i = 0; i < offsetCount; i++) {
+            if (count == 0 || offsets[count - 1] != offsets[i]) {
+                offsets[count++] = offsets[i];
+            }
+        }
+        offsetCount = count;
+        compacted = true;
+    }
+
+    /**
+     * Get the number of directory entries pointing to tile data
+     *
+     * @return the number of tile entries
+     */
+    public long getTileEntries() {
+        return entries;
+    }
+
+    /**
+     * Get the number of addressed tiles, that is the sum of the run lengths of all entries
+     *
+     * @return the number of addressed tiles
+     */
+    public long getAddressedTiles() {
+        return addressedTiles;
+    }
+
+    /**
+     * Get the number of distinct tile contents, that is the number of distinct offsets
+     *
+     * @return the number of tile contents
+     */
+    public long getTileContents() {
+        compact();
+        return offsetCount;
+    }
+
+    /**
+     * Get the ratio of addressed tiles to distinct tile contents
+     *
+     * @return the de-duplication ratio, 1 if nothing is de-duplicated
+     */
+    public double getDeduplicationRatio() {
+        final long contents = getTileContents();
+        return contents == 0 ? 1 : (double) addressedTiles / contents;
+    }
+
+    /**
+     * Get the number of entries pointing outside of the tile data section
+     *
+     * @return the number of invalid entries
+     */
+    public long getInvalidEntries() {
+        return invalidEntries;
+    }
+
+    /**
+     * Get the tile id of the first invalid entry
+     *
+     * @return the tile id or -1 if there are no invalid entries
+     */
+    public long getFirstInvalidTileId() {
+        return firstInvalidTileId;
+    }
+
+    /**
+     * Get the number of addressed tiles on a zoom level
+     *
+     * @param zoom the zoom level
+     * @return the number of tiles
+     */
+    public long getTileCount(int zoom) {
+        return zoom >= 0 && zoom <= MAX_ZOOM ? tilesPerZoom[zoom] : 0;
+    }
+
+    /**
+     * Get a histogram of the sizes of the tile data of the entries
+     *
+     * Bucket 0 counts empty tiles, bucket n > 0 tiles of 2^(n-1) to 2^n - 1 bytes.
+     *
+     * @return an array with the counts per bucket
+     */
+    @NotNull
+    public long[] getSizeHistogram() {
+        return sizeHistogram.clone();
+    }
+
+    /**
+     * Check that the counts match those in the header of the archive
+     *
+     * Counts that are 0 (unknown) in the header are not checked.
+     *
+     * @param reader the Reader for the archive
+     * @return true if the counts match
+     */
+    public boolean matchesHeader(@NotNull Reader reader) {
+        return (reader.getAddressedTiles() == 0 || reader.getAddressedTiles() == addressedTiles)
+                && (reader.getTileEntries() == 0 || reader.getTileEntries() == entries)
+                && (reader.getTileContents() == 0 || reader.getTileContents() == getTileContents());
+    }
+
+    @Override
+    public String toString() {
+        return "entries " + entries + " addressed tiles " + addressedTiles + " contents " + getTileContents() + " invalid " + invalidEntries;
+    }
+}
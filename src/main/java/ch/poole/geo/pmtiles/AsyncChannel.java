@@ -0,0 +1,28 @@
+package ch.poole.geo.pmtiles;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A channel that supports non-blocking positional reads
+ * 
+ * FileChannel implementations used with Reader can implement this to avoid Reader.getTileAsync having to run blocking
+ * reads on an Executor. Note that CompletableFuture requires Android 7.0 (API 24) or later.
+ * 
+ * @author simon
+ *
+ */
+public interface AsyncChannel {
+
+    /**
+     * Read dst.remaining() bytes starting at position in to dst
+     * 
+     * @param dst the destination buffer, its position is advanced by the number of bytes read
+     * @param position the position in the file to start reading at
+     * @return a CompletableFuture that completes with the number of bytes read
+     */
+    @NotNull
+    CompletableFuture<Integer> readAsync(@NotNull ByteBuffer dst, long position);
+}
@@ -0,0 +1,180 @@
+package ch.poole.geo.pmtiles;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Block cache layer for an UrlFileChannel
+ *
+ * Reads are rounded to aligned blocks of blockSize bytes, missing blocks are fetched from the wrapped channel together
+ * with readAhead following blocks in one request, and the blocks are retained in a bounded cache. As a result the
+ * header and root directory, leaf directories and small neighbouring tiles are typically served from memory instead
+ * of requiring a request each.
+ *
+ * If the wrapped channel throws a SourceChangedException the cache is cleared before the exception is propagated.
+ *
+ * Usage:
+ *
+ * <pre>
+ * new Reader(new BlockCacheChannel(new HttpUrlConnectionChannel(url)))
+ * </pre>
+ *
+ * @author simon
+ *
+ */
+public class BlockCacheChannel extends UrlFileChannel {
+
+    public static final int DEFAULT_BLOCK_SIZE = 32 * 1024;
+    public static final int DEFAULT_MAX_BLOCKS = 256;
+    public static final int DEFAULT_READ_AHEAD = 1;
+
+    private final UrlFileChannel                channel;
+    private final int                           blockSize;
+    private final int                           readAhead;
+    private final ConcurrentCache<Long, byte[]> cache;
+
+    /**
+     * Construct a new instance with default settings
+     *
+     * @param channel the channel to wrap
+     */
+    public BlockCacheChannel(@NotNull UrlFileChannel channel) {
+        this(channel, DEFAULT_BLOCK_SIZE, DEFAULT_MAX_BLOCKS, DEFAULT_READ_AHEAD);
+    }
+
+    /**
+     * Construct a new instance
+     *
+     * @param channel the channel to wrap
+     * @param blockSize the size of a block in bytes
+     * @param maxBlocks the maximum number of blocks to cache
+     * @param readAhead the number of blocks following a missing block that are fetched together with it
+     */
+    public BlockCacheChannel(@NotNull UrlFileChannel channel, int blockSize, int maxBlocks, int readAhead) {
+        if (blockSize <= 0 || maxBlocks < 0 || readAhead < 0) {
+            throw new IllegalArgumentException("Illegal block cache parameters " + blockSize + " " + maxBlocks + " " + readAhead);
+        }
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.readAhead = readAhead;
+        cache = new ConcurrentCache<>(maxBlocks);
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long pos) throws IOException {
+        try {
+            final int length = dst.remaining();
+            int total = 0;
+            long block = pos / blockSize;
+            final long last = (pos + length - 1) / blockSize;
+            while (total < length) {
+                byte[] data = getBlock(block, last);
+                final int offset = (int) (pos + total - block * blockSize);
+                if (offset >= data.length) {
+                    break; // end of file
+                }
+                final int count = Math.min(length - total, data.length - offset);
+                dst.put(data, offset, count);
+                total += count;
+                block++;
+            }
+            return total;
+        } catch (SourceChangedException sce) {
+            cache.clear();
+            throw sce;
+        }
+    }
+
+    @Override
+    public void setStats(@Nullable ReaderStats stats) {
+        super.setStats(stats);
+        channel.setStats(stats);
+    }
+
+    @Override
+    @Nullable
+    public String getETag() {
+        return channel.getETag();
+    }
+
+    @Override
+    public void resetETag() {
+        channel.resetETag();
+    }
+
+    /**
+     * Get a block from the cache or fetch it together with all missing blocks up to last plus the read ahead
+     *
+     * @param block the index of the block
+     * @param last the index of the last block needed by the current read
+     * @return the block contents, shorter than blockSize at the end of the file
+     * @throws IOException if reading fails
+     */
+    @NotNull
+    private byte[] getBlock(final long block, final long last) throws IOException {
+        byte[] data = cache.getIfPresent(block);
+        if (data != null) {
+            return data;
+        }
+        return cache.get(block, new ConcurrentCache.Loader<Long, byte[]>() {
+            @Override
+            public byte[] load(Long key) throws IOException {
+                long end = block;
+                while (end < last && cache.getIfPresent(end + 1) == null) {
+                    end++;
+                }
+                end += readAhead;
+                final long start = block * blockSize;
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min((end - block + 1) * blockSize, Integer.MAX_VALUE));
+                final int count = Math.max(0, channel.read(buffer, start));
+                byte[] first = null;
+                for (long b = block; b <= end; b++) {
+                    final int offset = (int) ((b - block) * blockSize);
+                    final byte[] temp = new byte[Math.max(0, Math.min(blockSize, count - offset))];
+                    System.arraycopy(buffer.array(), offset, temp, 0, temp.length);
+                    if (b == block) {
+                        first = temp;
+                    } else {
+                        put(b, temp);
+                    }
+                    if (temp.length < blockSize) {
+                        break; // end of file
+                    }
+                }
+                return first;
+            }
+        });
+    }
+
+    /**
+     * Add a block to the cache if it isn't already present
+     *
+     * @param block the index of the block
+     * @param data the block contents
+     * @throws IOException never
+     */
+    private void put(long block, @NotNull final byte[] data) throws IOException {
+        cache.get(block, new ConcurrentCache.Loader<Long, byte[]>() {
+            @Override
+            public byte[] load(Long key) {
+                return data;
+            }
+        });
+    }
+
+    /**
+     * Remove all blocks from the cache
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        cache.clear();
+        channel.close();
+    }
+}
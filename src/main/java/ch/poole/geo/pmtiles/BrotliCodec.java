@@ -0,0 +1,33 @@
+package ch.poole.geo.pmtiles;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.brotli.dec.BrotliInputStream;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Brotli codec using the org.brotli:dec decoder
+ * 
+ * This is only instantiated by Codecs if the decoder is on the class path. Brotli streams don't contain the size of
+ * the de-compressed data so it is always streamed.
+ * 
+ * @author simon
+ *
+ */
+final class BrotliCodec implements Codec {
+
+    @Override
+    public byte getCompression() {
+        return Constants.COMPRESSION_BROTLI;
+    }
+
+    @Override
+    @NotNull
+    public ByteBuffer decompress(@NotNull ByteBuffer buffer) throws IOException {
+        try (InputStream is = new BrotliInputStream(Util.inputStream(buffer))) {
+            return Util.copy(is);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package ch.poole.geo.pmtiles;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Memory budget in bytes shared by the caches of multiple Readers
+ *
+ * The leaf directory caches and tile caches of all Readers the budget is set on (see Reader.setCacheBudget) are charged
+ * with the estimated size of their entries. When the total exceeds the capacity entries are evicted from the cache that
+ * is currently using the most memory, so that busy archives can't starve the others and caches of archives that are no
+ * longer used shrink first. The per Reader limits (setLeafDirectoryCacheSize, setTileCacheSize) still apply.
+ *
+ * @author simon
+ *
+ */
+public final class CacheBudget {
+
+    private final Set<ConcurrentCache<?, ?>> caches   = Collections.newSetFromMap(new ConcurrentHashMap<ConcurrentCache<?, ?>, Boolean>());
+    private final AtomicLong                 total    = new AtomicLong();
+    private final AtomicBoolean              evicting = new AtomicBoolean();
+    private volatile long                    capacity;
+
+    /**
+     * Construct a new budget
+     *
+     * @param capacity the maximum total size of the cached entries in bytes
+     */
+    public CacheBudget(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Set the maximum total size of the cached entries
+     *
+     * @param capacity the capacity in bytes
+     */
+    public void setCapacity(long capacity) {
+        this.capacity = capacity;
+        evict();
+    }
+
+    /**
+     * Get the maximum total size of the cached entries
+     *
+     * @return the capacity in bytes
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the current total size of the cached entries
+     *
+     * @return the size in bytes
+     */
+    public long getSize() {
+        return total.get();
+    }
+
+    /**
+     * Add a cache
+     *
+     * @param cache the ConcurrentCache
+     */
+    void register(@NotNull ConcurrentCache<?, ?> cache) {
+        caches.add(cache);
+    }
+
+    /**
+     * Remove a cache
+     *
+     * @param cache the ConcurrentCache
+     */
+    void unregister(@NotNull ConcurrentCache<?, ?> cache) {
+        caches.remove(cache);
+    }
+
+    /**
+     * Charge a new entry and evict if the capacity is exceeded
+     *
+     * @param size the size of the entry
+     */
+    void charge(long size) {
+        if (total.addAndGet(size) > capacity) {
+            evict();
+        }
+    }
+
+    /**
+     * Release a removed entry
+     *
+     * @param size the size of the entry
+     */
+    void release(long size) {
+        total.addAndGet(-size);
+    }
+
+    /**
+     * Evict entries from the largest cache until the total is below capacity
+     *
+     * Only one thread evicts at a time, other threads charging entries concurrently don't wait.
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            while (total.get() > capacity) {
+                ConcurrentCache<?, ?> largest = null;
+                for (ConcurrentCache<?, ?> cache : caches) {
+                    if (largest == null || cache.charged() > largest.charged()) {
+                        largest = cache;
+                    }
+                }
+                if (largest == null || largest.charged() == 0 || !largest.evictOne()) {
+                    return;
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+}
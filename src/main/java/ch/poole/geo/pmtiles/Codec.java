@@ -0,0 +1,39 @@
+package ch.poole.geo.pmtiles;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * De-compressor for one of the PMTiles compression methods
+ * 
+ * Implementations are used for both the internal compression (directories and metadata) and, via
+ * Codecs.decompress, for tile data. They can be registered with Codecs.register or provided via the ServiceLoader
+ * mechanism by listing the implementing class in META-INF/services/ch.poole.geo.pmtiles.Codec. Implementations must
+ * be thread safe.
+ * 
+ * @author simon
+ *
+ */
+public interface Codec {
+
+    /**
+     * Get the compression method this codec handles
+     * 
+     * @return one of the Constants.COMPRESSION_* values
+     */
+    byte getCompression();
+
+    /**
+     * De-compress the remaining contents of a ByteBuffer
+     * 
+     * The buffer may be a heap, direct or memory mapped buffer, its position should not be changed.
+     * 
+     * @param buffer the compressed data
+     * @return a ByteBuffer positioned at 0 containing the de-compressed data
+     * @throws IOException if the data is corrupt
+     */
+    @NotNull
+    ByteBuffer decompress(@NotNull ByteBuffer buffer) throws IOException;
+}
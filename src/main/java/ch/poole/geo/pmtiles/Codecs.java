@@ -0,0 +1,159 @@
+package ch.poole.geo.pmtiles;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Registry of the available Codecs keyed by the Constants.COMPRESSION_* values
+ * 
+ * No compression and gzip are always supported. Zstandard and Brotli are supported if
+ * com.github.luben:zstd-jni or org.brotli:dec respectively are on the class path, these are optional dependencies
+ * and need to be added by the application. Further codecs, or replacements for the built in ones, are loaded with
+ * ServiceLoader and can be registered at runtime.
+ * 
+ * @author simon
+ *
+ */
+public final class Codecs {
+
+    private static final String ZSTD_CLASS   = "com.github.luben.zstd.Zstd";
+    private static final String BROTLI_CLASS = "org.brotli.dec.BrotliInputStream";
+
+    private static final Codec[] codecs = new Codec[256]; // NOSONAR
+
+    static {
+        register(new Codec() {
+            @Override
+            public byte getCompression() {
+                return Constants.COMPRESSION_NONE;
+            }
+
+            @Override
+            public ByteBuffer decompress(ByteBuffer buffer) {
+                return buffer;
+            }
+        });
+        register(new Codec() {
+            @Override
+            public byte getCompression() {
+                return Constants.COMPRESSION_GZIP;
+            }
+
+            @Override
+            public ByteBuffer decompress(ByteBuffer buffer) throws IOException {
+                return Util.gunzip(buffer);
+            }
+        });
+        if (isAvailable(ZSTD_CLASS)) {
+            register(new ZstdCodec());
+        }
+        if (isAvailable(BROTLI_CLASS)) {
+            register(new BrotliCodec());
+        }
+        Iterator<Codec> providers = ServiceLoader.load(Codec.class, Codecs.class.getClassLoader()).iterator();
+        while (true) {
+            try {
+                if (!providers.hasNext()) {
+                    break;
+                }
+                register(providers.next());
+            } catch (ServiceConfigurationError e) { // NOSONAR
+                // skip providers that can't be loaded, the other codecs are still usable
+            }
+        }
+    }
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private Codecs() {
+        throw new IllegalStateException("Utility class, can't be instantiated");
+    }
+
+    /**
+     * Check if a class can be loaded
+     * 
+     * @param className the fully qualified name of the class
+     * @return true if the class is available
+     */
+    private static boolean isAvailable(@NotNull String className) {
+        try {
+            Class.forName(className, false, Codecs.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Register a codec, replacing any codec previously registered for the same compression method
+     * 
+     * @param codec the Codec
+     */
+    public static void register(@NotNull Codec codec) {
+        synchronized (codecs) {
+            codecs[codec.getCompression() & 0xFF] = codec;
+        }
+    }
+
+    /**
+     * Get the codec for a compression method
+     * 
+     * @param compression one of the Constants.COMPRESSION_* values
+     * @return the Codec or null if the compression method isn't supported
+     */
+    @Nullable
+    public static Codec get(byte compression) {
+        synchronized (codecs) {
+            return codecs[compression & 0xFF];
+        }
+    }
+
+    /**
+     * Check if a compression method is supported
+     * 
+     * @param compression one of the Constants.COMPRESSION_* values
+     * @return true if a codec is available
+     */
+    public static boolean isSupported(byte compression) {
+        return get(compression) != null;
+    }
+
+    /**
+     * De-compress a ByteBuffer
+     * 
+     * @param buffer the compressed data
+     * @param compression one of the Constants.COMPRESSION_* values
+     * @return a ByteBuffer with the de-compressed data, for COMPRESSION_NONE buffer itself
+     * @throws IOException if de-compressing fails
+     * @throws UnsupportedOperationException if the compression method isn't supported
+     */
+    @NotNull
+    public static ByteBuffer decompress(@NotNull ByteBuffer buffer, byte compression) throws IOException {
+        Codec codec = get(compression);
+        if (codec == null) {
+            throw new UnsupportedOperationException("Compression " + compression + " not supported");
+        }
+        return codec.decompress(buffer);
+    }
+
+    /**
+     * De-compress data, typically a tile, see Reader.getTileCompression
+     * 
+     * @param data the compressed data
+     * @param compression one of the Constants.COMPRESSION_* values
+     * @return the de-compressed data, for COMPRESSION_NONE data itself
+     * @throws IOException if de-compressing fails
+     * @throws UnsupportedOperationException if the compression method isn't supported
+     */
+    @NotNull
+    public static byte[] decompress(@NotNull byte[] data, byte compression) throws IOException {
+        return Util.toArray(decompress(ByteBuffer.wrap(data), compression));
+    }
+}
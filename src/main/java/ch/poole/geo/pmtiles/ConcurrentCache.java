@@ -0,0 +1,409 @@
+package ch.poole.geo.pmtiles;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Bounded cache that can be used concurrently without a global lock
+ *
+ * Lookups of cached values never block, missing values are loaded by the first thread requesting them, other threads
+ * requesting the same key wait for that load to complete (single flight loading), threads requesting other keys are
+ * not affected. Eviction uses the CLOCK algorithm, an approximation of LRU that doesn't require reordering entries on
+ * access.
+ *
+ * The capacity is either the maximum number of entries or, if a Weigher is supplied, the maximum total weight, for
+ * example in bytes, of the cached values. Additionally the cache can be attached to a CacheBudget shared with other
+ * caches, the values are then charged to the budget and evicted when the total of all caches exceeds it.
+ *
+ * This avoids Java 8 only methods (computeIfAbsent, CompletableFuture) so that it can be used on Android prior to 7.0
+ * (API 24), CompletableFuture is only used by the asynchronous methods of Reader, which require Android 8.0 (API 26).
+ *
+ * @author simon
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+final class ConcurrentCache<K, V> {
+
+    /**
+     * Load a value that isn't in the cache
+     *
+     * @param <K> key type
+     * @param <V> value type
+     */
+    interface Loader<K, V> {
+
+        /**
+         * Load the value for key
+         *
+         * @param key the key
+         * @return the value
+         * @throws IOException if loading fails
+         */
+        @NotNull
+        V load(@NotNull K key) throws IOException;
+    }
+
+    /**
+     * Determine the weight of a value
+     *
+     * @param <V> value type
+     */
+    interface Weigher<V> {
+
+        /**
+         * Get the weight of value
+         *
+         * @param value the value
+         * @return the weight, must not be negative
+         */
+        long weigh(@NotNull V value);
+    }
+
+    private static final long UNWEIGHED = -1;
+    private static final long REMOVED   = -2;
+
+    private static final class Node<K, V> extends FutureTask<V> {
+        final K              key;
+        volatile boolean     referenced;
+        final AtomicLong     weight = new AtomicLong(UNWEIGHED);
+        final AtomicLong     charge = new AtomicLong(UNWEIGHED);
+        volatile CacheBudget budget;
+
+        /**
+         * Construct a new node
+         *
+         * @param key the key
+         * @param callable the Callable that will load the value
+         */
+        Node(@NotNull K key, @NotNull Callable<V> callable) {
+            super(callable);
+            this.key = key;
+        }
+    }
+
+    private final ConcurrentHashMap<K, Node<K, V>>  map   = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Node<K, V>> clock = new ConcurrentLinkedQueue<>();
+    private final AtomicLong                        size  = new AtomicLong();
+    private final AtomicLong                        total = new AtomicLong();
+    private final Weigher<V>                        weigher;
+    private volatile long                           capacity;
+    private volatile Runnable                       evictionListener;
+    private volatile CacheBudget                    budget;
+    private volatile Weigher<V>                     budgetWeigher;
+    private final AtomicLong                        charged = new AtomicLong();
+
+    /**
+     * Construct a new cache limited by the number of entries
+     *
+     * @param capacity the maximum number of entries
+     */
+    ConcurrentCache(long capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * Construct a new cache limited by the total weight of the entries
+     *
+     * @param capacity the maximum total weight, if weigher is null the maximum number of entries
+     * @param weigher the Weigher to use or null
+     */
+    ConcurrentCache(long capacity, @Nullable Weigher<V> weigher) {
+        this.capacity = capacity;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Get the value for key, loading it if it isn't cached
+     *
+     * If the loader throws an exception it is propagated to all threads waiting for the value and nothing is cached.
+     *
+     * @param key the key
+     * @param loader the Loader used if the value isn't in the cache
+     * @return the value
+     * @throws IOException if loading fails
+     */
+    @NotNull
+    V get(@NotNull final K key, @NotNull final Loader<K, V> loader) throws IOException {
+        Node<K, V> node = map.get(key);
+        if (node != null) {
+            node.referenced = true;
+            return value(node);
+        }
+        final Node<K, V> created = new Node<>(key, new Callable<V>() {
+            @Override
+            public V call() throws IOException {
+                return loader.load(key);
+            }
+        });
+        node = map.putIfAbsent(key, created);
+        if (node != null) {
+            node.referenced = true;
+            return value(node);
+        }
+        clock.add(created);
+        size.incrementAndGet();
+        created.run();
+        V value = value(created);
+        final long w = weigher != null ? weigher.weigh(value) : 1;
+        if (created.weight.compareAndSet(UNWEIGHED, w)) {
+            total.addAndGet(w);
+        }
+        evict();
+        charge(created, value);
+        return value;
+    }
+
+    /**
+     * Get the value for key if it is present and loaded
+     *
+     * @param key the key
+     * @return the value or null
+     */
+    @Nullable
+    V getIfPresent(@NotNull K key) {
+        Node<K, V> node = map.get(key);
+        if (node == null || !node.isDone()) {
+            return null;
+        }
+        try {
+            V value = value(node);
+            node.referenced = true;
+            return value;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Remove all entries
+     *
+     * Loads that are in progress will complete but their values will not be retained.
+     */
+    void clear() {
+        clock.clear();
+        for (Node<K, V> node : map.values()) {
+            remove(node);
+        }
+    }
+
+    /**
+     * Set the maximum number of entries or total weight
+     *
+     * @param capacity the new capacity
+     */
+    void setCapacity(long capacity) {
+        this.capacity = capacity;
+        evict();
+    }
+
+    /**
+     * Set a listener that is run every time an entry is evicted
+     *
+     * @param listener the listener or null
+     */
+    void setEvictionListener(@Nullable Runnable listener) {
+        evictionListener = listener;
+    }
+
+    /**
+     * Attach the cache to a CacheBudget
+     * 
+     * The cache is cleared, values loaded after this are charged to the budget with their weight as determined by
+     * weigher.
+     *
+     * @param budget the CacheBudget or null to detach the cache
+     * @param weigher the Weigher determining the weight charged to the budget, required if budget is not null
+     */
+    void setBudget(@Nullable CacheBudget budget, @Nullable Weigher<V> weigher) {
+        CacheBudget old = this.budget;
+        if (old != null) {
+            old.unregister(this);
+        }
+        this.budget = null;
+        clear();
+        budgetWeigher = weigher;
+        this.budget = budget;
+        if (budget != null) {
+            budget.register(this);
+        }
+    }
+
+    /**
+     * Get the total weight of the values charged to the budget
+     *
+     * @return the charged weight
+     */
+    long charged() {
+        return charged.get();
+    }
+
+    /**
+     * Get the current number of entries
+     *
+     * @return the number of entries including those that are still being loaded
+     */
+    long size() {
+        return size.get();
+    }
+
+    /**
+     * Get the number of nodes the clock hand still has to visit
+     *
+     * @return the length of the clock queue including nodes that have already been removed
+     */
+    long queued() {
+        return clock.size();
+    }
+
+    /**
+     * Get the current total weight of the loaded entries
+     *
+     * @return the total weight
+     */
+    long weight() {
+        return total.get();
+    }
+
+    /**
+     * Wait for and return the value of a node
+     *
+     * @param node the Node
+     * @return the value
+     * @throws IOException if loading failed
+     */
+    @NotNull
+    private V value(@NotNull Node<K, V> node) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return node.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (remove(node)) {
+                        // unlink eagerly, failing keys would otherwise accumulate until the hand reaches them
+                        clock.remove(node);
+                    }
+                    throw rethrow(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Rethrow the cause of a failed load
+     *
+     * @param cause the original exception
+     * @return an IOException if cause isn't unchecked
+     */
+    @NotNull
+    private static IOException rethrow(@NotNull Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        return new IOException(cause);
+    }
+
+    /**
+     * Remove a node from the map if it is still present
+     *
+     * @param node the Node
+     * @return true if the node was removed
+     */
+    private boolean remove(@NotNull Node<K, V> node) {
+        if (map.remove(node.key, node)) {
+            size.decrementAndGet();
+            final long w = node.weight.getAndSet(REMOVED);
+            if (w > 0) {
+                total.addAndGet(-w);
+            }
+            final long c = node.charge.getAndSet(REMOVED);
+            if (c > 0) {
+                charged.addAndGet(-c);
+                node.budget.release(c);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Charge a loaded value to the budget, if any
+     *
+     * @param node the Node
+     * @param value the value of the node
+     */
+    private void charge(@NotNull Node<K, V> node, @NotNull V value) {
+        final CacheBudget b = budget;
+        final Weigher<V> w = budgetWeigher;
+        if (b == null || w == null) {
+            return;
+        }
+        final long c = w.weigh(value);
+        node.budget = b;
+        if (node.charge.compareAndSet(UNWEIGHED, c)) {
+            charged.addAndGet(c);
+            b.charge(c);
+        }
+    }
+
+    /**
+     * Evict entries until we are below capacity
+     */
+    private void evict() {
+        while (total.get() > capacity && evictOne()) {
+            // continue
+        }
+    }
+
+    /**
+     * Evict one entry
+     *
+     * Nodes that have been referenced since the hand last passed them get a second chance
+     *
+     * @return true if an entry was evicted, false if the cache is empty
+     */
+    boolean evictOne() {
+        while (true) {
+            Node<K, V> node = clock.poll();
+            if (node == null) {
+                return false;
+            }
+            if (map.get(node.key) != node) {
+                continue; // already removed
+            }
+            if (node.referenced) {
+                node.referenced = false;
+                clock.add(node);
+                continue;
+            }
+            if (remove(node)) {
+                Runnable listener = evictionListener;
+                if (listener != null) {
+                    listener.run();
+                }
+                return true;
+            }
+        }
+    }
+}
@@ -1,35 +1,160 @@
 package ch.poole.geo.pmtiles;
 
+import org.jetbrains.annotations.NotNull;
+
 /**
  * See https://en.wikipedia.org/wiki/Hilbert_curve#Applications_and_mapping_algorithms
- * 
- * In practical terms this doesn't seem to be slower than
- * <a href="https://github.com/rawrunprotected/hilbert_curves">github.com/rawrunprotected/hilbert_curves</a>
- * <a href="https://threadlocalmutex.com/">threadlocalmutex.com</a> but works for all zoom levels.
- * 
- * https://github.com/davidmoten/hilbert-curve might be an alternative
+ *
+ * The curve is traversed from the most significant level down, at each level the quadrant is determined by one bit of
+ * x and y each and the orientation of the remaining sub-curve by the quadrants seen so far. The orientation is one of
+ * four states (optionally swap x and y, optionally mirror both), so instead of processing one level at a time with
+ * data dependent branches we use lookup tables that map a state and 4 levels (4 bits of x and y, or 8 bits of the
+ * index) to 4 levels of output and the following state. Zoom levels that aren't a multiple of 4 are padded with
+ * leading zero levels, each of which toggles the swap state, which is compensated by the initial state.
+ *
+ * Valid zoom levels are 0 to 31, x and y should be between 0 and 2^zoom - 1. Coordinates outside of that range are
+ * mapped with the original one level at a time implementation to retain its results.
  *
  */
 public final class Hilbert {
 
+    private static final int LEVELS_PER_STEP = 4;
+    private static final int NIBBLE_MASK     = 0xF;
+    private static final int BYTE_MASK       = 0xFF;
+    private static final int SWAP            = 1;
+    private static final int FLIP            = 2;
+    private static final int STATE_SHIFT     = 8;
+
+    /**
+     * Indexed by state, 4 bits of x and 4 bits of y, contains 8 bits of the index and the following state
+     */
+    private static final char[] XY_TO_INDEX = new char[4 << 8];
+
+    /**
+     * Indexed by state and 8 bits of the index, contains 4 bits of x and 4 bits of y and the following state
+     */
+    private static final char[] INDEX_TO_XY = new char[4 << 8];
+
+    static {
+        for (int initial = 0; initial < 4; initial++) {
+            for (int xy = 0; xy <= BYTE_MASK; xy++) {
+                int state = initial;
+                int d = 0;
+                for (int level = LEVELS_PER_STEP - 1; level >= 0; level--) {
+                    int rx = (xy >>> (LEVELS_PER_STEP + level)) & 1;
+                    int ry = (xy >>> level) & 1;
+                    if ((state & SWAP) != 0) {
+                        final int t = rx;
+                        rx = ry;
+                        ry = t;
+                    }
+                    if ((state & FLIP) != 0) {
+                        rx ^= 1;
+                        ry ^= 1;
+                    }
+                    d = (d << 2) | ((3 * rx) ^ ry);
+                    state = next(state, rx, ry);
+                }
+                XY_TO_INDEX[(initial << STATE_SHIFT) | xy] = (char) ((state << STATE_SHIFT) | d);
+            }
+            for (int d = 0; d <= BYTE_MASK; d++) {
+                int state = initial;
+                int x = 0;
+                int y = 0;
+                for (int level = LEVELS_PER_STEP - 1; level >= 0; level--) {
+                    final int quadrant = (d >>> (2 * level)) & 3;
+                    final int rx = quadrant >>> 1;
+                    final int ry = (quadrant ^ rx) & 1;
+                    int bx = rx;
+                    int by = ry;
+                    if ((state & FLIP) != 0) {
+                        bx ^= 1;
+                        by ^= 1;
+                    }
+                    if ((state & SWAP) != 0) {
+                        final int t = bx;
+                        bx = by;
+                        by = t;
+                    }
+                    x = (x << 1) | bx;
+                    y = (y << 1) | by;
+                    state = next(state, rx, ry);
+                }
+                INDEX_TO_XY[(initial << STATE_SHIFT) | d] = (char) ((state << STATE_SHIFT) | (x << LEVELS_PER_STEP) | y);
+            }
+        }
+    }
+
     private Hilbert() {
         throw new IllegalStateException("Utility class, can't be instantiated");
     }
 
+    /**
+     * Determine the orientation of the sub-curve in a quadrant
+     *
+     * @param state the current state
+     * @param rx the x bit of the quadrant in the current orientation
+     * @param ry the y bit of the quadrant in the current orientation
+     * @return the new state
+     */
+    private static int next(int state, int rx, int ry) {
+        if (ry == 0) {
+            state ^= SWAP;
+            if (rx == 1) {
+                state ^= FLIP;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Get the number of leading levels that need to be added to make the number of levels a multiple of 4
+     *
+     * @param z the zoom level
+     * @return the number of padding levels
+     */
+    private static int padding(int z) {
+        return -z & (LEVELS_PER_STEP - 1);
+    }
+
     /**
      * Convert tile coordinates to an Index along a 2d Hilbert curve
-     * 
+     *
      * @param z the zoom level (determines the size of the 2d grid)
      * @param x tile x coordinate
      * @param y tile y coordinate
      * @return an index along the Hilbert curve
      */
     public static long zxyToIndex(int z, long x, long y) {
+        if (((x | y) >>> z) != 0) {
+            return outOfRangeToIndex(z, x, y);
+        }
+        final int pad = padding(z);
+        int state = pad & SWAP;
+        long d = 0;
+        for (int shift = z + pad - LEVELS_PER_STEP; shift >= 0; shift -= LEVELS_PER_STEP) {
+            final int entry = XY_TO_INDEX[(state << STATE_SHIFT) | (int) ((x >>> shift) & NIBBLE_MASK) << LEVELS_PER_STEP
+                    | (int) ((y >>> shift) & NIBBLE_MASK)];
+            d = (d << 8) | (entry & BYTE_MASK);
+            state = entry >>> STATE_SHIFT;
+        }
+        return d;
+    }
+
+    /**
+     * Convert tile coordinates that are outside of the grid one level at a time
+     *
+     * @param z the zoom level (determines the size of the 2d grid)
+     * @param x tile x coordinate
+     * @param y tile y coordinate
+     * @return an index along the Hilbert curve
+     */
+    private static long outOfRangeToIndex(int z, long x, long y) {
         long n = 1L << z;
         int rx;
         int ry;
         long s;
-        int d = 0;
+        long d = 0;
         for (s = n / 2; s > 0; s /= 2) {
             rx = (x & s) > 0 ? 1 : 0;
             ry = (y & s) > 0 ? 1 : 0;
@@ -46,4 +171,214 @@ public final class Hilbert {
         }
         return d;
     }
+
+    /**
+     * Convert an index along a 2d Hilbert curve to tile coordinates
+     *
+     * @param z the zoom level (determines the size of the 2d grid)
+     * @param index the index along the Hilbert curve
+     * @return the tile coordinates
+     */
+    @NotNull
+    public static TileCoordinates indexToZxy(int z, long index) {
+        final long xy = indexToXy(z, index);
+        return new TileCoordinates(z, (int) (xy >>> Integer.SIZE), (int) xy);
+    }
+
+    /**
+     * Convert an index along a 2d Hilbert curve to tile coordinates packed in to a long
+     *
+     * @param z the zoom level (determines the size of the 2d grid)
+     * @param index the index along the Hilbert curve
+     * @return x in the upper and y in the lower 32 bits
+     */
+    private static long indexToXy(int z, long index) {
+        final int pad = padding(z);
+        int state = pad & SWAP;
+        long x = 0;
+        long y = 0;
+        for (int shift = 2 * (z + pad - LEVELS_PER_STEP); shift >= 0; shift -= 2 * LEVELS_PER_STEP) {
+            final int entry = INDEX_TO_XY[(state << STATE_SHIFT) | (int) ((index >>> shift) & BYTE_MASK)];
+            x = (x << LEVELS_PER_STEP) | ((entry >>> LEVELS_PER_STEP) & NIBBLE_MASK);
+            y = (y << LEVELS_PER_STEP) | (entry & NIBBLE_MASK);
+            state = entry >>> STATE_SHIFT;
+        }
+        return (x << Integer.SIZE) | y;
+    }
+
+    /**
+     * Get the number of tiles in all zoom levels below z, that is the first PMTiles tile id of zoom level z
+     *
+     * @param z the zoom level
+     * @return the first tile id of zoom level z
+     */
+    public static long zoomOffset(int z) {
+        return ((1L << (2 * z)) - 1) / 3;
+    }
+
+    /**
+     * Convert tile coordinates to a PMTiles tile id
+     *
+     * @param z the zoom level
+     * @param x tile x coordinate
+     * @param y tile y coordinate
+     * @return the tile id
+     */
+    public static long zxyToTileId(int z, long x, long y) {
+        return zoomOffset(z) + zxyToIndex(z, x, y);
+    }
+
+    /**
+     * Convert a PMTiles tile id to tile coordinates
+     *
+     * @param tileId the tile id
+     * @return the tile coordinates
+     */
+    @NotNull
+    public static TileCoordinates tileIdToZxy(long tileId) {
+        final int z = tileIdToZoom(tileId);
+        return indexToZxy(z, tileId - zoomOffset(z));
+    }
+
+    /**
+     * Get the zoom level of a PMTiles tile id
+     *
+     * As zoomOffset(z) = (4^z - 1) / 3 the zoom level is floor(log4(3 * tileId + 1)), the intermediate value can
+     * exceed Long.MAX_VALUE but not the range of an unsigned long.
+     *
+     * @param tileId the tile id
+     * @return the zoom level
+     */
+    static int tileIdToZoom(long tileId) {
+        return (Long.SIZE - 1 - Long.numberOfLeadingZeros(3 * tileId + 1)) >>> 1;
+    }
+
+    /**
+     * Add the tile id ranges that exactly cover a rectangle of tiles
+     *
+     * The grid is recursively divided in to quadrants, as a quadrant covers a contiguous range of the curve, quadrants
+     * that are completely inside of the rectangle are added as one range, those that are partially inside are divided
+     * further. The number of ranges is proportional to the perimeter of the rectangle.
+     *
+     * @param z the zoom level
+     * @param minX the minimum x tile coordinate
+     * @param minY the minimum y tile coordinate
+     * @param maxX the maximum x tile coordinate
+     * @param maxY the maximum y tile coordinate
+     * @param ranges the IdRanges to add the ranges to
+     */
+    static void rectangleToTileIdRanges(int z, long minX, long minY, long maxX, long maxY, @NotNull IdRanges ranges) {
+        addRanges(z, 0, 0, 0, new long[] { minX, minY, maxX, maxY }, zoomOffset(z), ranges);
+    }
+
+    /**
+     * Add the ranges for the part of a rectangle that is inside a quadrant
+     *
+     * @param z the zoom level
+     * @param level the level of the quadrant
+     * @param qx the x coordinate of the quadrant on its level
+     * @param qy the y coordinate of the quadrant on its level
+     * @param rectangle minX, minY, maxX, maxY of the rectangle
+     * @param offset the first tile id of the zoom level
+     * @param ranges the IdRanges to add the ranges to
+     */
+    private static void addRanges(int z, int level, long qx, long qy, @NotNull long[] rectangle, long offset, @NotNull IdRanges ranges) {
+        final int shift = z - level;
+        final long x0 = qx << shift;
+        final long y0 = qy << shift;
+        final long x1 = ((qx + 1) << shift) - 1;
+        final long y1 = ((qy + 1) << shift) - 1;
+        if (x1 < rectangle[0] || y1 < rectangle[1] || x0 > rectangle[2] || y0 > rectangle[3]) {
+            return;
+        }
+        if (x0 >= rectangle[0] && y0 >= rectangle[1] && x1 <= rectangle[2] && y1 <= rectangle[3]) {
+            final long start = offset + (zxyToIndex(level, qx, qy) << (2 * shift));
+            ranges.add(start, start + (1L << (2 * shift)));
+            return;
+        }
+        for (int i = 0; i < 4; i++) {
+            addRanges(z, level + 1, 2 * qx + (i >>> 1), 2 * qy + (i & 1), rectangle, offset, ranges);
+        }
+    }
+
+    /**
+     * Convert multiple tile coordinates of the same zoom level to indices along a 2d Hilbert curve
+     *
+     * @param z the zoom level
+     * @param x tile x coordinates
+     * @param y tile y coordinates
+     * @param indices array the indices are stored in, must have the same length as x and y
+     */
+    public static void zxyToIndex(int z, @NotNull int[] x, @NotNull int[] y, @NotNull long[] indices) {
+        checkLengths(indices.length, x.length, y.length);
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = zxyToIndex(z, x[i], y[i]);
+        }
+    }
+
+    /**
+     * Convert multiple indices along a 2d Hilbert curve of the same zoom level to tile coordinates
+     *
+     * @param z the zoom level
+     * @param indices the indices
+     * @param x array the x coordinates are stored in, must have the same length as indices
+     * @param y array the y coordinates are stored in, must have the same length as indices
+     */
+    public static void indexToZxy(int z, @NotNull long[] indices, @NotNull int[] x, @NotNull int[] y) {
+        checkLengths(indices.length, x.length, y.length);
+        for (int i = 0; i < indices.length; i++) {
+            final long xy = indexToXy(z, indices[i]);
+            x[i] = (int) (xy >>> Integer.SIZE);
+            y[i] = (int) xy;
+        }
+    }
+
+    /**
+     * Convert multiple tile coordinates to PMTiles tile ids
+     *
+     * @param z the zoom levels
+     * @param x tile x coordinates
+     * @param y tile y coordinates
+     * @param tileIds array the tile ids are stored in, must have the same length as z, x and y
+     */
+    public static void zxyToTileId(@NotNull int[] z, @NotNull int[] x, @NotNull int[] y, @NotNull long[] tileIds) {
+        checkLengths(tileIds.length, x.length, y.length);
+        checkLengths(tileIds.length, z.length, z.length);
+        for (int i = 0; i < tileIds.length; i++) {
+            tileIds[i] = zxyToTileId(z[i], x[i], y[i]);
+        }
+    }
+
+    /**
+     * Convert multiple PMTiles tile ids to tile coordinates
+     *
+     * @param tileIds the tile ids
+     * @param z array the zoom levels are stored in, must have the same length as tileIds
+     * @param x array the x coordinates are stored in, must have the same length as tileIds
+     * @param y array the y coordinates are stored in, must have the same length as tileIds
+     */
+    public static void tileIdToZxy(@NotNull long[] tileIds, @NotNull int[] z, @NotNull int[] x, @NotNull int[] y) {
+        checkLengths(tileIds.length, x.length, y.length);
+        checkLengths(tileIds.length, z.length, z.length);
+        for (int i = 0; i < tileIds.length; i++) {
+            final int zoom = tileIdToZoom(tileIds[i]);
+            final long xy = indexToXy(zoom, tileIds[i] - zoomOffset(zoom));
+            z[i] = zoom;
+            x[i] = (int) (xy >>> Integer.SIZE);
+            y[i] = (int) xy;
+        }
+    }
+
+    /**
+     * Check that the arrays passed to a batch method have the same length
+     *
+     * @param length the expected length
+     * @param length1 length of the first other array
+     * @param length2 length of the second other array
+     */
+    private static void checkLengths(int length, int length1, int length2) {
+        if (length1 != length || length2 != length) {
+            throw new IllegalArgumentException("Array lengths differ " + length + " " + length1 + " " + length2);
+        }
+    }
 }
@@ -0,0 +1,81 @@
+package ch.poole.geo.pmtiles;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Read-only FileChannel using java.net.http.HttpClient
+ * 
+ * This is a placeholder for Java versions prior to 11, the actual implementation is contained in the multi-release
+ * part of the jar (META-INF/versions/11) and is used automatically on Java 11 and later. Note that all instances share
+ * a connection pool and that HTTP/2 is used if the server supports it.
+ * 
+ * On Java 8 and on Android, which doesn't use the versioned classes, constructing an instance throws an
+ * UnsupportedOperationException. Code that has to run on these platforms should check isSupported first and fall back
+ * to HttpUrlConnectionChannel:
+ * 
+ * <pre>
+ * UrlFileChannel channel = HttpClientChannel.isSupported() ? new HttpClientChannel(url)
+ *         : new HttpUrlConnectionChannel(url);
+ * </pre>
+ * 
+ * @author simon
+ *
+ */
+public class HttpClientChannel extends UrlFileChannel implements AsyncChannel {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_READ_TIMEOUT    = 30000;
+
+    private static final String REQUIRES_JAVA_11 = "HttpClientChannel requires Java 11 or later";
+
+    /**
+     * Check if HttpClientChannel can be used on this runtime
+     * 
+     * @return false, as this is the placeholder used prior to Java 11
+     */
+    public static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * Construct a new instance with default timeouts
+     * 
+     * @param url the URL of the PMTiles source
+     * @throws UnsupportedOperationException prior to Java 11
+     */
+    public HttpClientChannel(@NotNull URL url) {
+        this(url, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    /**
+     * Construct a new instance
+     * 
+     * @param url the URL of the PMTiles source
+     * @param connectTimeout connect timeout in milliseconds
+     * @param readTimeout timeout for a complete read in milliseconds
+     * @throws UnsupportedOperationException prior to Java 11
+     */
+    public HttpClientChannel(@NotNull URL url, int connectTimeout, int readTimeout) {
+        throw new UnsupportedOperationException(REQUIRES_JAVA_11);
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long pos) throws IOException {
+        throw new UnsupportedOperationException(REQUIRES_JAVA_11);
+    }
+
+    @Override
+    public String getETag() {
+        throw new UnsupportedOperationException(REQUIRES_JAVA_11);
+    }
+
+    @Override
+    public CompletableFuture<Integer> readAsync(ByteBuffer dst, long position) {
+        throw new UnsupportedOperationException(REQUIRES_JAVA_11);
+    }
+}
@@ -2,33 +2,438 @@ package ch.poole.geo.pmtiles;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Wrapper around an HttpURLConnection to implement a read-only FileChannel
- * 
+ *
+ * Requests that fail with a transient error (HTTP status 500, 502, 503 or 504, a reset connection or a socket timeout)
+ * are retried with exponential backoff, see setRetries. Optionally each read can be bounded by a deadline and slow
+ * requests can be hedged: if a request hasn't completed when a percentile of the latencies of previous requests has
+ * elapsed, a second identical request is sent and the result of whichever completes first is used. When a deadline or
+ * hedging is set the requests are run on an Executor, see setExecutor.
+ *
+ * Once the ETag of the source is known requests are made conditional with an If-Match header, a server that supports
+ * this answers with 412 Precondition Failed and no body if the source has been replaced. For servers that ignore the
+ * header the ETag of the response is compared too.
+ *
  * @author simon
  *
  */
 public class HttpUrlConnectionChannel extends UrlFileChannel {
 
-    private final URL url;
-    private String savedETag = null;
+    public static final int  DEFAULT_RETRIES      = 2;
+    public static final long DEFAULT_BACKOFF      = 100;
+    private static final int MIN_HEDGE_SAMPLES    = 20;
+    private static final int HTTP_BAD_GATEWAY     = 502;
+    private static final int HTTP_GATEWAY_TIMEOUT = 504;
+
+    private final URL                   url;
+    private volatile String             savedETag     = null;
+    private volatile int                retries       = DEFAULT_RETRIES;
+    private volatile long               backoffNanos  = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BACKOFF);
+    private volatile long               deadlineNanos = 0;
+    private volatile double             hedgePercentile;
+    private volatile long               minHedgeNanos;
+    private volatile Executor           executor;
+    private final ReaderStats.Histogram latencies     = new ReaderStats.Histogram();
+
+    /**
+     * Response with a status that indicates a, potentially transient, server error
+     */
+    private static final class ServerErrorException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        /**
+         * Construct a new instance
+         *
+         * @param url the requested URL
+         * @param status the HTTP status
+         */
+        ServerErrorException(@NotNull URL url, int status) {
+            super("Request for " + url + " failed with status " + status);
+            this.status = status;
+        }
+    }
+
+    /**
+     * A single range request that can be aborted from another thread
+     */
+    private final class RangeRequest implements Callable<ByteBuffer> {
+        private final long                 pos;
+        private final int                  length;
+        private final long                 deadline;
+        private volatile HttpURLConnection conn;
+        private volatile boolean           aborted;
+
+        /**
+         * Construct a new request
+         *
+         * @param pos start of the range
+         * @param length length of the range
+         * @param deadline System.nanoTime() by which the request has to complete or 0
+         */
+        RangeRequest(long pos, int length, long deadline) {
+            this.pos = pos;
+            this.length = length;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public ByteBuffer call() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            request(buffer, pos, deadline, this);
+            buffer.flip();
+            return buffer;
+        }
+
+        /**
+         * Set the connection used by the request
+         *
+         * @param conn the HttpURLConnection
+         * @throws InterruptedIOException if the request has already been aborted
+         */
+        void connection(@NotNull HttpURLConnection conn) throws InterruptedIOException {
+            this.conn = conn;
+            if (aborted) {
+                conn.disconnect();
+                throw new InterruptedIOException("Request aborted");
+            }
+        }
+
+        /**
+         * Abort the request by closing its connection
+         */
+        void abort() {
+            aborted = true;
+            HttpURLConnection c = conn;
+            if (c != null) {
+                c.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Lazily created default Executor for deadline bounded and hedged requests
+     */
+    private static final class DefaultExecutor {
+        static final Executor INSTANCE = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "pmtiles-http");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
 
     public HttpUrlConnectionChannel(@NotNull URL url) {
         this.url = url;
     }
 
+    @Override
+    @Nullable
+    public String getETag() {
+        return savedETag;
+    }
+
+    @Override
+    public void resetETag() {
+        savedETag = null;
+    }
+
+    /**
+     * Set how often requests that failed with a transient error are retried
+     *
+     * The n-th retry waits for backoff * 2^(n-1) milliseconds plus up to 50% random jitter. The default is 2 retries
+     * with a backoff of 100 milliseconds.
+     *
+     * @param retries the maximum number of retries, 0 disables retrying
+     * @param backoff the wait before the first retry in milliseconds
+     */
+    public void setRetries(int retries, long backoff) {
+        this.retries = Math.max(0, retries);
+        backoffNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, backoff));
+    }
+
+    /**
+     * Set the maximum time a read, including retries and hedged requests, may take
+     *
+     * If the deadline is exceeded the read fails with a SocketTimeoutException and the outstanding requests are
+     * aborted. The default is no deadline.
+     *
+     * @param deadline the deadline in milliseconds, 0 for none
+     */
+    public void setDeadline(long deadline) {
+        deadlineNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, deadline));
+    }
+
+    /**
+     * Enable hedging of slow requests
+     *
+     * A duplicate request is sent when a request hasn't completed after the given percentile of the latencies of the
+     * previous successful requests of this channel, but not earlier than minDelay. Until 20 requests have completed
+     * minDelay is used. The request that completes first is used and the other is aborted. Hedging trades a small
+     * number of additional requests for a lower tail latency, a percentile of 0.95 sends duplicates for roughly 5% of
+     * the requests.
+     *
+     * @param percentile the percentile as a fraction between 0 and 1, for example 0.95, 0 disables hedging
+     * @param minDelay the minimum delay before sending a duplicate request in milliseconds
+     */
+    public void setHedging(double percentile, long minDelay) {
+        hedgePercentile = Math.max(0, Math.min(1, percentile));
+        minHedgeNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, minDelay));
+    }
+
+    /**
+     * Set the Executor deadline bounded and hedged requests are run on
+     *
+     * @param executor the Executor or null to use a shared pool of daemon threads
+     */
+    public void setExecutor(@Nullable Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Read dst.remaining() bytes starting at pos in to dst
+     *
+     * The position of dst is advanced by the number of bytes read.
+     */
     @Override
     public int read(ByteBuffer dst, long pos) throws IOException {
+        final long deadline = deadlineNanos > 0 ? System.nanoTime() + deadlineNanos : 0;
+        final boolean concurrent = deadline != 0 || hedgePercentile > 0;
+        final int length = dst.remaining();
+        for (int attempt = 0;; attempt++) {
+            try {
+                if (!concurrent) {
+                    return request(dst, pos, 0, null);
+                }
+                ByteBuffer result = requestConcurrently(pos, length, deadline);
+                final int read = result.remaining();
+                dst.put(result);
+                return read;
+            } catch (IOException e) {
+                if (attempt >= retries || !isTransient(e)) {
+                    throw e;
+                }
+                backoff(attempt, deadline, e);
+            }
+        }
+    }
+
+    /**
+     * Check if a failed request should be retried
+     *
+     * @param e the exception the request failed with
+     * @return true if the failure is likely transient
+     */
+    private static boolean isTransient(@NotNull IOException e) {
+        if (e instanceof ServerErrorException) {
+            final int status = ((ServerErrorException) e).status;
+            return status == HttpURLConnection.HTTP_INTERNAL_ERROR || status == HTTP_BAD_GATEWAY || status == HttpURLConnection.HTTP_UNAVAILABLE
+                    || status == HTTP_GATEWAY_TIMEOUT;
+        }
+        return e instanceof SocketException || e instanceof SocketTimeoutException;
+    }
+
+    /**
+     * Wait before retrying a request
+     *
+     * @param attempt the number of the failed attempt starting with 0
+     * @param deadline System.nanoTime() by which the read has to complete or 0
+     * @param failure the exception the request failed with
+     * @throws IOException failure if waiting would exceed the deadline, or if interrupted
+     */
+    private void backoff(int attempt, long deadline, @NotNull IOException failure) throws IOException {
+        final long base = backoffNanos << Math.min(attempt, 16);
+        final long wait = base + (base > 1 ? ThreadLocalRandom.current().nextLong(base / 2) : 0);
+        if (deadline != 0 && System.nanoTime() + wait >= deadline) {
+            throw failure;
+        }
+        final ReaderStats stats = getStats();
+        if (stats != null) {
+            stats.retry();
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Run a request on the Executor, waiting at most until the deadline and sending a duplicate request if hedging is
+     * enabled and it takes too long
+     *
+     * @param pos start of the range
+     * @param length length of the range
+     * @param deadline System.nanoTime() by which the read has to complete or 0
+     * @return a ByteBuffer positioned at 0 containing the data received
+     * @throws IOException if the request failed or the deadline was exceeded
+     */
+    @NotNull
+    private ByteBuffer requestConcurrently(long pos, int length, long deadline) throws IOException {
+        final Executor e = executor;
+        final ExecutorCompletionService<ByteBuffer> completion = new ExecutorCompletionService<>(e != null ? e : DefaultExecutor.INSTANCE);
+        final List<RangeRequest> requests = new ArrayList<>(2);
+        final double percentile = hedgePercentile;
+        final long hedgeAt = percentile > 0 ? System.nanoTime() + hedgeDelay(percentile) : 0;
+        try {
+            submit(completion, requests, new RangeRequest(pos, length, deadline));
+            int pending = 1;
+            while (true) {
+                final boolean canHedge = hedgeAt != 0 && requests.size() == 1;
+                final long now = System.nanoTime();
+                long wait = Long.MAX_VALUE;
+                if (canHedge) {
+                    wait = hedgeAt - now;
+                }
+                if (deadline != 0) {
+                    wait = Math.min(wait, deadline - now);
+                }
+                Future<ByteBuffer> done = wait == Long.MAX_VALUE ? completion.take() : completion.poll(Math.max(0, wait), TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+                        throw new SocketTimeoutException("Deadline exceeded for range " + pos + "-" + (pos + length - 1) + " of " + url);
+                    }
+                    if (canHedge) {
+                        final ReaderStats stats = getStats();
+                        if (stats != null) {
+                            stats.hedge();
+                        }
+                        submit(completion, requests, new RangeRequest(pos, length, deadline));
+                        pending++;
+                    }
+                    continue;
+                }
+                pending--;
+                try {
+                    return done.get();
+                } catch (ExecutionException ex) {
+                    // a SourceChangedException is thrown immediately
+                    IOException failure = unwrap(ex);
+                    if (pending == 0) {
+                        throw failure;
+                    }
+                    // wait for the other request
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(ex.getMessage());
+        } finally {
+            for (RangeRequest request : requests) {
+                request.abort();
+            }
+        }
+    }
+
+    /**
+     * Submit a request
+     *
+     * @param completion the ExecutorCompletionService
+     * @param requests the List of submitted requests
+     * @param request the new request
+     */
+    private static void submit(@NotNull ExecutorCompletionService<ByteBuffer> completion, @NotNull List<RangeRequest> requests,
+            @NotNull RangeRequest request) {
+        requests.add(request);
+        completion.submit(request);
+    }
+
+    /**
+     * Get the original exception of a failed request
+     *
+     * @param e the ExecutionException
+     * @return the IOException the request failed with
+     * @throws RuntimeException if the request failed with one, for example a SourceChangedException
+     */
+    @NotNull
+    private static IOException unwrap(@NotNull ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IOException(cause);
+    }
+
+    /**
+     * Get the time after which a duplicate request is sent
+     *
+     * @param percentile the percentile of the previous latencies to use
+     * @return the delay in nanoseconds
+     */
+    private long hedgeDelay(double percentile) {
+        final long min = minHedgeNanos;
+        return latencies.getCount() < MIN_HEDGE_SAMPLES ? min : Math.max(min, latencies.getPercentile(percentile));
+    }
+
+    /**
+     * Make a single range request and read the response in to dst
+     *
+     * @param dst the destination buffer
+     * @param pos start of the range
+     * @param deadline System.nanoTime() by which the request has to complete or 0
+     * @param request the RangeRequest this is run for or null
+     * @return the number of bytes read
+     * @throws IOException if the request fails
+     */
+    private int request(@NotNull ByteBuffer dst, long pos, long deadline, @Nullable RangeRequest request) throws IOException {
+        final long requestStart = System.nanoTime();
         HttpURLConnection conn = (HttpURLConnection) url.openConnection();
         conn.setInstanceFollowRedirects(true);
-        final int capacity = dst.capacity();
-        conn.setRequestProperty(RANGE_HEADER, "bytes=" + pos + "-" + (pos + capacity - 1));
+        if (deadline != 0) {
+            final int timeout = (int) Math.max(1, Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(deadline - requestStart)));
+            conn.setConnectTimeout(timeout);
+            conn.setReadTimeout(timeout);
+        }
+        if (request != null) {
+            request.connection(conn);
+        }
+        final int length = dst.remaining();
+        conn.setRequestProperty(RANGE_HEADER, "bytes=" + pos + "-" + (pos + length - 1));
+        final String expectedETag = savedETag;
+        if (expectedETag != null) {
+            conn.setRequestProperty(IF_MATCH_HEADER, expectedETag);
+        }
+        final int status = conn.getResponseCode();
+        if (status == HttpURLConnection.HTTP_PRECON_FAILED) {
+            conn.disconnect();
+            throw new SourceChangedException();
+        }
+        if (status >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+            conn.disconnect();
+            throw new ServerErrorException(url, status);
+        }
         try (InputStream is = conn.getInputStream()) {
             String eTag = conn.getHeaderField(ETAG_HEADER);
             if (eTag != null) {
@@ -38,15 +443,29 @@ public class HttpUrlConnectionChannel extends UrlFileChannel {
                 }
                 savedETag = eTag;
             }
-            dst.rewind();
-            int offset = 0;
+            final boolean hasArray = dst.hasArray();
+            final byte[] buffer = hasArray ? dst.array() : new byte[length];
+            final int start = hasArray ? dst.arrayOffset() + dst.position() : 0;
+            int offset = start;
             int count = 0;
-            int remaining = capacity;
-            while (remaining > 0 && (count = is.read(dst.array(), offset, remaining)) != -1) {
+            int remaining = length;
+            while (remaining > 0 && (count = is.read(buffer, offset, remaining)) != -1) {
                 remaining -= count;
                 offset += count;
             }
-            return capacity - remaining;
+            final int read = length - remaining;
+            if (hasArray) {
+                dst.position(dst.position() + read);
+            } else {
+                dst.put(buffer, 0, read);
+            }
+            final long nanos = System.nanoTime() - requestStart;
+            latencies.record(nanos);
+            final ReaderStats stats = getStats();
+            if (stats != null) {
+                stats.request(nanos, read);
+            }
+            return read;
         }
     }
 }
@@ -0,0 +1,100 @@
+package ch.poole.geo.pmtiles;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Sorted, non-overlapping ranges of tile ids
+ *
+ * Ranges are added in any order and sorted and merged by build.
+ *
+ * @author simon
+ *
+ */
+final class IdRanges {
+
+    private static final int INITIAL_SIZE = 16;
+
+    private long[] starts = new long[INITIAL_SIZE];
+    private long[] ends   = new long[INITIAL_SIZE];
+    private int    size;
+
+    /**
+     * Add a range
+     *
+     * @param start the first id of the range
+     * @param end the id after the last id of the range
+     */
+    void add(long start, long end) {
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    /**
+     * Sort the ranges and merge overlapping and adjacent ones
+     *
+     * @return this instance
+     */
+    IdRanges build() {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Long.compare(starts[i1], starts[i2]);
+            }
+        });
+        long[] sortedStarts = new long[Math.max(1, size)];
+        long[] sortedEnds = new long[Math.max(1, size)];
+        int count = 0;
+        for (int i : order) {
+            if (count > 0 && starts[i] <= sortedEnds[count - 1]) {
+                sortedEnds[count - 1] = Math.max(sortedEnds[count - 1], ends[i]);
+            } else {
+                sortedStarts[count] = starts[i];
+                sortedEnds[count] = ends[i];
+                count++;
+            }
+        }
+        starts = sortedStarts;
+        ends = sortedEnds;
+        size = count;
+        return this;
+    }
+
+    /**
+     * Get the number of ranges
+     *
+     * @return the number of ranges
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get the start of a range
+     *
+     * @param index the index of the range
+     * @return the first id of the range
+     */
+    long start(int index) {
+        return starts[index];
+    }
+
+    /**
+     * Get the end of a range
+     *
+     * @param index the index of the range
+     * @return the id after the last id of the range
+     */
+    long end(int index) {
+        return ends[index];
+    }
+}
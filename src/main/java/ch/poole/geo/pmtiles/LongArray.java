@@ -0,0 +1,40 @@
+package ch.poole.geo.pmtiles;
+
+/**
+ * Read-only random access array of longs, used for the columns of a directory
+ *
+ * @author simon
+ *
+ */
+interface LongArray {
+
+    /**
+     * Get a value
+     *
+     * @param index the index of the value
+     * @return the value
+     */
+    long get(int index);
+
+    /**
+     * Get the number of values
+     *
+     * @return the number of values
+     */
+    int size();
+
+    /**
+     * Search for a value in an array that is sorted in ascending order and doesn't contain duplicates
+     *
+     * @param key the value to search for
+     * @return the same as Arrays.binarySearch: the index of the value if found, otherwise (-(insertion point) - 1)
+     */
+    int binarySearch(long key);
+
+    /**
+     * Get an estimate of the heap memory used
+     *
+     * @return the size in bytes
+     */
+    long memorySize();
+}
@@ -0,0 +1,104 @@
+package ch.poole.geo.pmtiles;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Read-only memory mapping of a complete file
+ *
+ * As a MappedByteBuffer can't be larger than Integer.MAX_VALUE bytes, the file is mapped in chunks of at most
+ * chunkSize bytes. Ranges that are completely contained in one chunk are returned as a slice of the mapped buffer
+ * without copying, the rare ranges that straddle a chunk boundary are copied in to a heap buffer.
+ *
+ * @author simon
+ *
+ */
+final class MappedFile {
+
+    static final long DEFAULT_CHUNK_SIZE = 1L << 30;
+
+    private final MappedByteBuffer[] chunks;
+    private final long               chunkSize;
+    private final long               size;
+
+    /**
+     * Map the contents of a FileChannel
+     *
+     * @param channel the FileChannel
+     * @param chunkSize the maximum size of an individual mapping
+     * @throws IOException if mapping fails
+     */
+    MappedFile(@NotNull FileChannel channel, long chunkSize) throws IOException {
+        if (chunkSize <= 0 || chunkSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Illegal chunk size " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        size = channel.size();
+        final int count = (int) ((size + chunkSize - 1) / chunkSize);
+        chunks = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            final long start = i * chunkSize;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(chunkSize, size - start));
+        }
+    }
+
+    /**
+     * Get the size of the mapped file
+     *
+     * @return the size in bytes
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Get a range of the file
+     *
+     * The returned buffer is positioned at 0 and its limit is set to length, it must not be modified.
+     *
+     * @param position the start of the range in the file
+     * @param length the length of the range
+     * @return a ByteBuffer containing the range
+     * @throws IOException if the range extends past the end of the file
+     */
+    @NotNull
+    ByteBuffer get(long position, int length) throws IOException {
+        if (position < 0 || length < 0 || position + length > size) {
+            throw new IOException("Range " + position + " length " + length + " outside of file size " + size);
+        }
+        int chunk = (int) (position / chunkSize);
+        int offset = (int) (position - chunk * chunkSize);
+        if (offset + (long) length <= chunkSize) {
+            return slice(chunks[chunk], offset, length);
+        }
+        ByteBuffer result = ByteBuffer.allocate(length);
+        while (result.hasRemaining()) {
+            final int count = Math.min(result.remaining(), (int) (chunkSize - offset));
+            result.put(slice(chunks[chunk], offset, count));
+            chunk++;
+            offset = 0;
+        }
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Get a slice of a mapped chunk without modifying the shared buffer
+     *
+     * @param chunk the mapped chunk
+     * @param offset the start of the slice
+     * @param length the length of the slice
+     * @return a new ByteBuffer sharing the contents of chunk
+     */
+    @NotNull
+    private static ByteBuffer slice(@NotNull ByteBuffer chunk, int offset, int length) {
+        ByteBuffer temp = chunk.duplicate();
+        temp.position(offset);
+        temp.limit(offset + length);
+        return temp.slice();
+    }
+}
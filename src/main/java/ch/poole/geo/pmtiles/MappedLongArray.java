@@ -0,0 +1,104 @@
+package ch.poole.geo.pmtiles;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Array of longs backed by, typically memory mapped, LongBuffers
+ *
+ * The values are not copied to the heap, so the memory used is independent of the number of values. As a mapping
+ * can't be larger than Integer.MAX_VALUE bytes, large arrays are split in to chunks of 2^chunkShift values.
+ *
+ * @author simon
+ *
+ */
+final class MappedLongArray implements LongArray {
+
+    static final int DEFAULT_CHUNK_SHIFT = 27;
+
+    private static final int OBJECT_OVERHEAD = 64;
+    private static final int LONG_BYTES      = 8;
+
+    private final LongBuffer[] chunks;
+    private final int          chunkShift;
+    private final int          chunkMask;
+    private final int          size;
+
+    /**
+     * Construct a new instance
+     *
+     * @param chunks the LongBuffers containing the values, all but the last one containing 2^chunkShift values
+     * @param chunkShift the log2 of the number of values per chunk
+     * @param size the total number of values
+     */
+    private MappedLongArray(@NotNull LongBuffer[] chunks, int chunkShift, int size) {
+        this.chunks = chunks;
+        this.chunkShift = chunkShift;
+        this.chunkMask = (1 << chunkShift) - 1;
+        this.size = size;
+    }
+
+    /**
+     * Map little endian longs from a FileChannel
+     *
+     * @param channel the FileChannel
+     * @param position the position of the first value in the file
+     * @param size the number of values
+     * @param chunkShift the log2 of the maximum number of values per mapping, at most DEFAULT_CHUNK_SHIFT
+     * @return a MappedLongArray
+     * @throws IOException if mapping fails
+     */
+    @NotNull
+    static MappedLongArray map(@NotNull FileChannel channel, long position, int size, int chunkShift) throws IOException {
+        if (chunkShift < 0 || chunkShift > DEFAULT_CHUNK_SHIFT) {
+            throw new IllegalArgumentException("Illegal chunk shift " + chunkShift);
+        }
+        final long chunkLength = 1L << chunkShift;
+        final int count = (int) Math.max(1, (size + chunkLength - 1) >>> chunkShift);
+        LongBuffer[] chunks = new LongBuffer[count];
+        for (int i = 0; i < count; i++) {
+            final long start = i * chunkLength;
+            final long length = Math.min(chunkLength, size - start);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + start * LONG_BYTES, length * LONG_BYTES).order(ByteOrder.LITTLE_ENDIAN)
+                    .asLongBuffer();
+        }
+        return new MappedLongArray(chunks, chunkShift, size);
+    }
+
+    @Override
+    public long get(int index) {
+        return chunks[index >>> chunkShift].get(index & chunkMask);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int binarySearch(long key) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long value = get(mid);
+            if (value < key) {
+                low = mid + 1;
+            } else if (value > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    public long memorySize() {
+        return OBJECT_OVERHEAD + (long) chunks.length * OBJECT_OVERHEAD;
+    }
+}
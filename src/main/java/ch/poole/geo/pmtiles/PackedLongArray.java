@@ -0,0 +1,130 @@
+package ch.poole.geo.pmtiles;
+
+import java.util.Arrays;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Immutable compact representation of an array of longs
+ *
+ * Values are split in to blocks of 16, for each block the minimum value is stored as a base and the differences to it
+ * are bit packed with a width sufficient for the largest difference in the whole array. For the typical contents of a
+ * PMTiles directory (ascending ids, small run lengths and tile lengths, mostly contiguous offsets) this needs a
+ * fraction of the 8 bytes per value of a long[].
+ *
+ * @author simon
+ *
+ */
+final class PackedLongArray implements LongArray {
+
+    private static final int BLOCK_SHIFT     = 4;
+    private static final int BLOCK_SIZE      = 1 << BLOCK_SHIFT;
+    private static final int LONG_BYTES      = 8;
+    private static final int OBJECT_OVERHEAD = 48;
+    private static final int ARRAY_OVERHEAD  = 16;
+
+    private final int    size;
+    private final long[] bases;
+    private final long[] words;
+    private final int    bits;
+    private final long   mask;
+
+    /**
+     * Pack an array of longs
+     *
+     * @param values the values
+     */
+    PackedLongArray(@NotNull long[] values) {
+        size = values.length;
+        bases = new long[(size + BLOCK_SIZE - 1) >>> BLOCK_SHIFT];
+        long allDeltas = 0;
+        for (int b = 0; b < bases.length; b++) {
+            final int start = b << BLOCK_SHIFT;
+            final int end = Math.min(start + BLOCK_SIZE, size);
+            long min = values[start];
+            for (int i = start + 1; i < end; i++) {
+                min = Math.min(min, values[i]);
+            }
+            bases[b] = min;
+            for (int i = start; i < end; i++) {
+                allDeltas |= values[i] - min;
+            }
+        }
+        bits = Long.SIZE - Long.numberOfLeadingZeros(allDeltas);
+        mask = bits == Long.SIZE ? -1L : (1L << bits) - 1;
+        words = new long[(int) (((long) size * bits + Long.SIZE - 1) >>> 6)];
+        if (bits > 0) {
+            for (int i = 0; i < size; i++) {
+                set(i, values[i] - bases[i >>> BLOCK_SHIFT]);
+            }
+        }
+    }
+
+    /**
+     * Store a packed value
+     *
+     * @param index the index of the value
+     * @param delta the difference to the base of the block
+     */
+    private void set(int index, long delta) {
+        final long bitPos = (long) index * bits;
+        final int word = (int) (bitPos >>> 6);
+        final int shift = (int) (bitPos & 63);
+        words[word] |= delta << shift;
+        if (shift + bits > Long.SIZE) {
+            words[word + 1] |= delta >>> (Long.SIZE - shift);
+        }
+    }
+
+    @Override
+    public long get(int index) {
+        final long base = bases[index >>> BLOCK_SHIFT];
+        if (bits == 0) {
+            return base;
+        }
+        final long bitPos = (long) index * bits;
+        final int word = (int) (bitPos >>> 6);
+        final int shift = (int) (bitPos & 63);
+        long value = words[word] >>> shift;
+        if (shift + bits > Long.SIZE) {
+            value |= words[word + 1] << (Long.SIZE - shift);
+        }
+        return base + (value & mask);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int binarySearch(long key) {
+        int block = Arrays.binarySearch(bases, key);
+        if (block >= 0) {
+            return block << BLOCK_SHIFT;
+        }
+        block = -block - 2;
+        if (block < 0) {
+            return -1;
+        }
+        int low = (block << BLOCK_SHIFT) + 1;
+        int high = Math.min((block + 1) << BLOCK_SHIFT, size) - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long value = get(mid);
+            if (value < key) {
+                low = mid + 1;
+            } else if (value > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    public long memorySize() {
+        return OBJECT_OVERHEAD + 2L * ARRAY_OVERHEAD + LONG_BYTES * ((long) bases.length + words.length);
+    }
+}
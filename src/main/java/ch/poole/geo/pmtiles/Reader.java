@@ -4,14 +4,35 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -20,7 +41,8 @@ import org.jetbrains.annotations.Nullable;
  * Simple PMTiles reader
  * 
  * Note that this strives to be compatible with Android back to 4.1 and tries to avoid using at that time unsupported
- * Java features
+ * Java features, the exception being the asynchronous methods returning CompletableFuture which require Android 8.0
+ * (API 26) or later
  * 
  * @author simon
  *
@@ -38,35 +60,30 @@ public class Reader implements AutoCloseable, Closeable {
         private static final int    VERSION_OFFSET              = 7;
         byte                        version;                                                                              // NOSONAR
         private static final int    ROOT_DIR_OFFSET_OFFSET      = 8;
-        private long                rootDirOffset;
+        long                        rootDirOffset;                                                                        // NOSONAR
         private static final int    ROOT_DIR_LENGTH_OFFSET      = 16;
-        private long                rootDirLength;
+        long                        rootDirLength;                                                                        // NOSONAR
         private static final int    METADATA_OFFSET_OFFSET      = 24;
         private long                metadataOffset;
         private static final int    METADATA_LENGTH_OFFSET      = 32;
         private long                metadataLength;
         private static final int    LEAF_DIR_OFFSET_OFFSET      = 40;
-        private long                leafDirOffset;
+        long                        leafDirOffset;                                                                        // NOSONAR
         private static final int    LEAF_DIR_LENGTH_OFFSET      = 48;
         @SuppressWarnings("unused")
         private long                leafDirLength;
         private static final int    TILE_DATA_OFFSET_OFFSET     = 56;
-        private long                tileDataOffset;
+        long                        tileDataOffset;                                                                       // NOSONAR
         private static final int    TILE_DATA_LENGTH_OFFSET     = 64;
-        @SuppressWarnings("unused")
-        private long                tileDataLength;
+        long                        tileDataLength;                                                                       // NOSONAR
         private static final int    ADDRESSED_TILES_OFFSET      = 72;
-        @SuppressWarnings("unused")
         private long                addressedTiles;
         private static final int    TILE_ENTRIES_OFFSET         = 80;
-        @SuppressWarnings("unused")
         private long                tileEntries;
         private static final int    TILE_CONTENTS_OFFSET        = 88;
-        @SuppressWarnings("unused")
         private long                tileContents;
         private static final int    CLUSTERED_OFFSET            = 96;
-        @SuppressWarnings("unused")
-        private byte                clustered;
+        byte                        clustered;                                                                            // NOSONAR
         private static final int    INTERNAL_COMPRESSION_OFFSET = 97;
         byte                        internalCompression;
         private static final int    TILE_COMPRESSION_OFFSET     = 98;
@@ -89,22 +106,20 @@ public class Reader implements AutoCloseable, Closeable {
         private static final int    CENTER_POSITION_OFFSET      = 119;
         private int                 centerLatitude;
         private int                 centerLongitude;
+        byte[]                      raw;                                                                                  // NOSONAR
 
         /**
-         * Reader the root header from an FileInputStream
+         * Read the root header from a ByteBuffer
          * 
-         * @param fis the input stream
+         * @param buffer the buffer containing the header
          * @throws IOException if reading fails
          */
-        void read(@NotNull FileChannel channel) throws IOException {
-            ByteBuffer buffer = ByteBuffer.allocate(LENGTH).order(ByteOrder.LITTLE_ENDIAN);
-
-            int count = channel.read(buffer, 0);
-            if (count != LENGTH) {
+        void read(@NotNull ByteBuffer buffer) throws IOException {
+            if (buffer.remaining() != LENGTH) {
                 throw new IOException("Incomplete header");
             }
-
-            buffer.position(0);
+            raw = Util.toArray(buffer);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
             byte[] magic = new byte[VERSION_OFFSET];
             buffer.get(magic);
             if (!Arrays.equals(MAGIC, magic)) {
@@ -144,73 +159,88 @@ public class Reader implements AutoCloseable, Closeable {
     /**
      * PMTiles directory
      * 
-     * We keep the PMTiles structure and don't try to create individual directory entries
+     * We keep the PMTiles structure and don't try to create individual directory entries, the columns are stored as
+     * PackedLongArrays which typically need less than a third of the memory of plain long arrays, or as
+     * MappedLongArrays when mapped from a SidecarIndex
+     * 
+     * Directories are decompressed with the Codec registered in Codecs for the internal compression of the archive,
+     * that is gzip, and Zstandard and Brotli if their optional dependencies are available, or any codec loaded with
+     * ServiceLoader.
      * 
-     * Caveats: currently we don't support more than Integer.MAX_VALUE entries per directory, and only GZIP and ZIP
-     * compression.
+     * Caveats: currently we don't support more than Integer.MAX_VALUE entries per directory.
      * 
      * @author simon
      *
      */
-    private class Directory {
+    class Directory {
 
-        long[]         ids;
-        long[]         runLengths;
-        long[]         lengths;
-        long[]         offsets;
-        private byte[] cachedTile;
-        private long   cachedTileId = -1;
+        LongArray ids;
+        LongArray runLengths;
+        LongArray lengths;
+        LongArray offsets;
 
         /**
          * Read the directory contents from the input stream
          * 
-         * @param channel a FileChannel
          * @param offset the offset the data is in the file
          * @param length the length of the data
          * @param compression the internal compression method
          * @throws IOException if reading fails
          */
-        void read(@NotNull FileChannel channel, long offset, long length, byte compression) throws IOException {
-            cachedTileId = -1;
-            ByteBuffer dirBuffer = ByteBuffer.allocate((int) length);
-            dirBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        void read(long offset, long length, byte compression) throws IOException {
+            decode(Reader.this.read(offset, (int) length, "directory"), compression);
+        }
 
-            int count = channel.read(dirBuffer, offset);
-            if (count != length) {
-                throw new IOException("Incomplete directory read " + count + " bytes of " + length); // NOSONAR
-            }
-            dirBuffer = Util.decompress(dirBuffer, compression);
+        /**
+         * Decode the, potentially compressed, directory contents
+         * 
+         * @param buffer the raw directory
+         * @param compression the internal compression method
+         * @throws IOException if de-compressing fails
+         */
+        void decode(@NotNull ByteBuffer buffer, byte compression) throws IOException {
+            ByteBuffer dirBuffer = decompress(buffer, compression);
 
             long entries = VarInt.getVarLong(dirBuffer);
             if (entries > Integer.MAX_VALUE) {
                 throw new UnsupportedOperationException("Currently directories with more than Integer.MAX_VALUE are not supported");
             }
-            ids = new long[(int) entries];
-            runLengths = new long[(int) entries];
-            lengths = new long[(int) entries];
-            offsets = new long[(int) entries];
-
+            long[] temp = new long[(int) entries];
             long lastId = 0;
             for (int i = 0; i < entries; i++) {
                 long diff = VarInt.getVarLong(dirBuffer);
                 long newId = lastId + diff;
-                ids[i] = newId;
+                temp[i] = newId;
                 lastId = newId;
             }
+            ids = new PackedLongArray(temp);
             for (int i = 0; i < entries; i++) {
-                runLengths[i] = VarInt.getVarLong(dirBuffer);
+                temp[i] = VarInt.getVarLong(dirBuffer);
             }
+            runLengths = new PackedLongArray(temp);
+            long[] tempLengths = new long[(int) entries];
             for (int i = 0; i < entries; i++) {
-                lengths[i] = VarInt.getVarLong(dirBuffer);
+                tempLengths[i] = VarInt.getVarLong(dirBuffer);
             }
+            lengths = new PackedLongArray(tempLengths);
             for (int i = 0; i < entries; i++) {
                 long value = VarInt.getVarLong(dirBuffer);
                 if (value == 0 && i > 0) {
-                    offsets[i] = offsets[i - 1] + lengths[i - 1];
+                    temp[i] = temp[i - 1] + tempLengths[i - 1];
                 } else {
-                    offsets[i] = value - 1;
+                    temp[i] = value - 1;
                 }
             }
+            offsets = new PackedLongArray(temp);
+        }
+
+        /**
+         * Get an estimate of the heap memory used by this directory
+         * 
+         * @return the size in bytes
+         */
+        long memorySize() {
+            return ids.memorySize() + runLengths.memorySize() + lengths.memorySize() + offsets.memorySize();
         }
 
         /**
@@ -218,138 +248,370 @@ public class Reader implements AutoCloseable, Closeable {
          * 
          * This uses a binary search in the id array.
          * 
-         * @param header the PMTiles header
+         * @param state the State this directory belongs to
          * @param id the Hilbert index
-         * @return a "tile" or null
-         * @throws IOException if reading the tile fails
+         * @return the location of the tile data or null
+         * @throws IOException if reading a leaf directory fails
          */
         @Nullable
-        byte[] findTile(@NotNull Header header, long id) throws IOException {
-            int index = Arrays.binarySearch(ids, id);
+        TileLocation findTile(@NotNull State state, long id) throws IOException {
+            final int index = find(id);
+            if (index < 0) {
+                return null;
+            }
+            if (isLeaf(index)) {
+                return findTileInLeaf(state, id, index);
+            }
+            return location(state.header, index);
+        }
+
+        /**
+         * Find the entry that contains the tile with Hilbert index id
+         * 
+         * This uses a binary search in the id array.
+         * 
+         * @param id the Hilbert index
+         * @return the index of the entry, which is either a tile run containing id or a leaf directory, or -1
+         */
+        int find(long id) {
+            int index = ids.binarySearch(id);
             if (index >= 0) {
-                long runLength = runLengths[index];
-                if (runLength == 1) {
-                    return readTile(header, index);
-                } else if (runLength > 1) {
-                    return getCachedTile(header, id, index);
-                } else {
-                    return findTileInLeaf(header, id, index);
-                }
+                return index;
             }
             // insertion point was returned
             // get previous entry
             int prev = -index - 2;
             if (prev >= 0) {
-                long runLength = runLengths[prev];
-                if (runLength > 0) {
-                    final long prevId = ids[prev];
-                    if (prevId + runLength - 1 >= id) {
-                        return getCachedTile(header, prevId, prev);
-                    }
-                } else {
-                    return findTileInLeaf(header, id, prev);
+                long runLength = runLengths.get(prev);
+                if (runLength == 0 || ids.get(prev) + runLength - 1 >= id) {
+                    return prev;
                 }
             }
             // not found
-            return null;
+            return -1;
         }
 
         /**
-         * If we are getting a tile which is de-duplicated, aka in a range of a runlength > 1, cache it or retrieve it
-         * from cache
+         * Check if an entry points to a leaf directory
          * 
-         * @param header the PMTiles header
-         * @param id the Hilbert index
-         * @param dirIndex which entry this is in this directory
-         * @return a "tile"
-         * @throws IOException
+         * @param dirIndex the index of the entry
+         * @return true if the entry is a leaf directory
          */
-        @NotNull
-        private byte[] getCachedTile(@NotNull Header header, long id, int dirIndex) throws IOException {
-            if (cachedTileId == id) {
-                return cachedTile;
-            }
-            cachedTile = readTile(header, dirIndex);
-            cachedTileId = id;
-            return cachedTile;
+        boolean isLeaf(int dirIndex) {
+            return runLengths.get(dirIndex) == 0;
         }
 
         /**
          * Find a tile in a leaf directory
-         * 
-         * If the leaf directory hasn't been read yet, read and cache it
          *
-         * @param header the PMTiles header
+         * @param state the State this directory belongs to
          * @param id the Hilbert index
          * @param dirIndex which entry this is in this directory
-         * @return a "tile" or null
-         * @throws IOException if reading the leaf directory or the tile fails
+         * @return the location of the tile data or null
+         * @throws IOException if reading the leaf directory fails
          */
         @Nullable
-        private byte[] findTileInLeaf(@NotNull Header header, long id, int dirIndex) throws IOException {
-            // leaf directory
-            synchronized (leafCache) {
-                final long leafId = ids[dirIndex];
-                Directory leaf = leafCache.get(leafId); // NOSONAR Android compatibility
-                if (leaf == null) {
-                    leaf = new Directory();
-                    leaf.read(channel, header.leafDirOffset + offsets[dirIndex], lengths[dirIndex], header.internalCompression);
-                    leafCache.put(leafId, leaf);
+        private TileLocation findTileInLeaf(@NotNull final State state, long id, int dirIndex) throws IOException {
+            return getLeaf(state, dirIndex).findTile(state, id);
+        }
+
+        /**
+         * Get a leaf directory
+         * 
+         * If the leaf directory hasn't been read yet, read and cache it, concurrent requests for the same leaf
+         * directory will wait for a single read
+         *
+         * @param state the State this directory belongs to
+         * @param dirIndex which entry this is in this directory
+         * @return the leaf Directory
+         * @throws IOException if reading the leaf directory fails
+         */
+        @NotNull
+        Directory getLeaf(@NotNull State state, int dirIndex) throws IOException {
+            final Header header = state.header;
+            final ConcurrentCache<Long, Directory> leafCache = state.leafCache;
+            final long leafOffset = header.leafDirOffset + offsets.get(dirIndex);
+            final long leafLength = lengths.get(dirIndex);
+            final ReaderStats s = stats;
+            if (s != null) {
+                Directory leaf = leafCache.getIfPresent(leafOffset);
+                if (leaf != null) {
+                    s.leafCacheHit();
+                    return leaf;
                 }
-                return leaf.findTile(header, id);
             }
+            return leafCache.get(leafOffset, new ConcurrentCache.Loader<Long, Directory>() {
+                @Override
+                public Directory load(Long key) throws IOException {
+                    final long start = s != null ? System.nanoTime() : 0;
+                    Directory directory = new Directory();
+                    directory.read(leafOffset, leafLength, header.internalCompression);
+                    if (s != null) {
+                        s.leafCacheMiss(System.nanoTime() - start);
+                    }
+                    return directory;
+                }
+            });
         }
 
         /**
-         * Read and return a tile that is indexed in this directory
+         * Get the location of a tile that is indexed in this directory
          * 
          * @param header the PMTiles header
          * @param dirIndex which entry this is in this directory
-         * @return a "tile" o
-         * @throws IOException if reading the leaf directory or the tile fails
+         * @return a TileLocation
          */
         @NotNull
-        private byte[] readTile(@NotNull Header header, int dirIndex) throws IOException {
-            final long tileLength = lengths[dirIndex];
+        TileLocation location(@NotNull Header header, int dirIndex) {
+            final long tileLength = lengths.get(dirIndex);
             if (tileLength > Integer.MAX_VALUE) {
                 throw new UnsupportedOperationException("Currently tiles larger than Integer.MAX_VALUE are not supported");
             }
-            ByteBuffer tileBuffer = ByteBuffer.allocate((int) tileLength);
-            int count = channel.read(tileBuffer, header.tileDataOffset + offsets[dirIndex]);
-            if (count != tileLength) {
-                throw new IOException("Incomplete tile read " + count + " bytes of " + tileLength);
-            }
-            return tileBuffer.array();
+            return new TileLocation(header.tileDataOffset + offsets.get(dirIndex), (int) tileLength, runLengths.get(dirIndex) > 1);
+        }
+    }
+
+    /**
+     * Position and size of the data of a tile in the file
+     */
+    static final class TileLocation {
+        final long    offset;
+        final int     length;
+        final boolean deduplicated;
+
+        /**
+         * Construct a new instance
+         * 
+         * @param offset absolute offset of the tile data in the file
+         * @param length length of the tile data
+         * @param deduplicated true if the data is shared by a run of tiles
+         */
+        TileLocation(long offset, int length, boolean deduplicated) {
+            this.offset = offset;
+            this.length = length;
+            this.deduplicated = deduplicated;
+        }
+    }
+
+    /**
+     * The contents of the last read de-duplicated tile
+     */
+    private static final class CachedTile {
+        final long   offset;
+        final byte[] data;
+
+        /**
+         * Construct a new instance
+         * 
+         * @param offset absolute offset of the tile data in the file
+         * @param data the tile data
+         */
+        CachedTile(long offset, @NotNull byte[] data) {
+            this.offset = offset;
+            this.data = data;
         }
     }
 
-    private class DirCache<K, V> extends LinkedHashMap<K, V> { // NOSONAR
-        private static final long serialVersionUID = 1L;
+    /**
+     * Snapshot of everything that depends on the version of the archive
+     * 
+     * A State is never modified after it has been published: when the source changes a new State is read and replaces
+     * the current one with a single volatile write, so concurrent lookups don't lock and never see a partially read
+     * header or directory. The caches belong to the State and are retired with it. Configuration changes replace the
+     * State with a copy of the same generation that shares the unchanged parts.
+     */
+    static final class State {
+        final int                                                       generation;
+        final long                                                      version;
+        final Header                                                    header;
+        final Directory                                                 root;
+        final Directory                                                 leafIndex;
+        final ConcurrentCache<Long, Directory>                          leafCache;
+        final ConcurrentHashMap<Long, CompletableFuture<Directory>>     leafLoads;
+        final ConcurrentCache<Long, byte[]>                             tileCache;
+        final ConcurrentCache<Long, byte[]>                             decodedTileCache;
+        final AtomicReference<CachedTile>                               cachedTile;
+
+        /**
+         * Construct a new instance
+         * 
+         * @param generation incremented every time the source is re-read
+         * @param version identifies the version of the archive, see load
+         * @param header the PMTiles header
+         * @param root the root directory
+         * @param leafIndex the flattened leaf index or null
+         * @param leafCache the leaf directory cache
+         * @param leafLoads the in progress asynchronous leaf directory reads
+         * @param tileCache the tile cache or null
+         * @param decodedTileCache the cache of de-compressed tiles or null
+         * @param cachedTile the slot for the last de-duplicated tile
+         */
+        private State(int generation, long version, @NotNull Header header, @NotNull Directory root, @Nullable Directory leafIndex,
+                @NotNull ConcurrentCache<Long, Directory> leafCache, @NotNull ConcurrentHashMap<Long, CompletableFuture<Directory>> leafLoads,
+                @Nullable ConcurrentCache<Long, byte[]> tileCache, @Nullable ConcurrentCache<Long, byte[]> decodedTileCache,
+                @NotNull AtomicReference<CachedTile> cachedTile) {
+            this.generation = generation;
+            this.version = version;
+            this.header = header;
+            this.root = root;
+            this.leafIndex = leafIndex;
+            this.leafCache = leafCache;
+            this.leafLoads = leafLoads;
+            this.tileCache = tileCache;
+            this.decodedTileCache = decodedTileCache;
+            this.cachedTile = cachedTile;
+        }
+
+        /**
+         * Get the directory to start lookups in
+         * 
+         * @return the flattened leaf index if it has been loaded, otherwise the root directory
+         */
+        @NotNull
+        Directory lookupDirectory() {
+            return leafIndex != null ? leafIndex : root;
+        }
+
+        /**
+         * Copy this State with a different leaf index
+         * 
+         * @param index the flattened leaf index or null
+         * @return a new State
+         */
+        @NotNull
+        State withLeafIndex(@Nullable Directory index) {
+            return new State(generation, version, header, root, index, leafCache, leafLoads, tileCache, decodedTileCache, cachedTile);
+        }
+
+        /**
+         * Copy this State with a different tile cache
+         * 
+         * @param cache the tile cache or null
+         * @return a new State
+         */
+        @NotNull
+        State withTileCache(@Nullable ConcurrentCache<Long, byte[]> cache) {
+            return new State(generation, version, header, root, leafIndex, leafCache, leafLoads, cache, decodedTileCache, cachedTile);
+        }
+
+        /**
+         * Copy this State with a different cache of de-compressed tiles
+         * 
+         * @param cache the cache or null
+         * @return a new State
+         */
+        @NotNull
+        State withDecodedTileCache(@Nullable ConcurrentCache<Long, byte[]> cache) {
+            return new State(generation, version, header, root, leafIndex, leafCache, leafLoads, tileCache, cache, cachedTile);
+        }
+
+        /**
+         * Clear the caches of a State that has been replaced and detach them from the cache budget
+         */
+        void retire() {
+            cachedTile.set(null);
+            leafCache.setBudget(null, null);
+            retire(tileCache);
+            retire(decodedTileCache);
+        }
+
+        /**
+         * Clear a tile cache and detach it from the cache budget
+         * 
+         * @param cache the cache or null
+         */
+        static void retire(@Nullable ConcurrentCache<Long, byte[]> cache) {
+            if (cache != null) {
+                cache.setBudget(null, null);
+            }
+        }
+    }
 
-        private static final int DEFAULT_CACHE_SIZE = 20;
+    /**
+     * Growable columns of directory entries
+     */
+    private static final class Entries {
+        private static final int INITIAL_SIZE = 1024;
 
-        private int cacheSize = DEFAULT_CACHE_SIZE;
+        long[] ids        = new long[INITIAL_SIZE];
+        long[] runLengths = new long[INITIAL_SIZE];
+        long[] lengths    = new long[INITIAL_SIZE];
+        long[] offsets    = new long[INITIAL_SIZE];
+        int    size;
 
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-            return size() > cacheSize;
+        /**
+         * Add an entry
+         * 
+         * @param id the tile id
+         * @param runLength the run length
+         * @param length the length of the tile data
+         * @param offset the offset of the tile data relative to the tile data section
+         */
+        void add(long id, long runLength, long length, long offset) {
+            if (size == ids.length) {
+                if (size > Integer.MAX_VALUE / 2) {
+                    throw new UnsupportedOperationException("Currently directories with more than Integer.MAX_VALUE are not supported");
+                }
+                ids = Arrays.copyOf(ids, size * 2);
+                runLengths = Arrays.copyOf(runLengths, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            ids[size] = id;
+            runLengths[size] = runLength;
+            lengths[size] = length;
+            offsets[size] = offset;
+            size++;
         }
 
         /**
-         * Set the size of the cache
+         * Get the used part of a column
          * 
-         * @param size the size to set
+         * @param column the column
+         * @return an array with size elements
          */
-        public void setCacheSize(int cacheSize) {
-            this.cacheSize = cacheSize;
+        @NotNull
+        long[] get(@NotNull long[] column) {
+            return Arrays.copyOf(column, size);
         }
     }
 
-    private final FileChannel         channel;
-    Header                            header    = new Header();
-    private Directory                 root      = new Directory();
-    private DirCache<Long, Directory> leafCache = new DirCache<>();
-    private List<Long>                tileCount = new ArrayList<>();
+    private static final int DEFAULT_LEAF_CACHE_SIZE = 20;
+    private static final int TILE_CACHE_ENTRY_OVERHEAD = 64;
+    private static final int DIRECTORY_OVERHEAD        = 128;
+    private static final long DEFAULT_DECODED_TILE_CACHE_SIZE = 8L * 1024 * 1024;
+    static final int         COALESCE_GAP              = 64 * 1024;
+    static final int         MAX_COALESCED_READ        = 4 * 1024 * 1024;
+    static final int         HEADER_AND_ROOT_LENGTH    = 16384;
+
+    private static final double MAX_LAT = 85.0511287798066;
+
+    private static final ConcurrentCache.Weigher<byte[]>    TILE_WEIGHER      = new ConcurrentCache.Weigher<byte[]>() {
+                                                                                  @Override
+                                                                                  public long weigh(byte[] value) {
+                                                                                      return value.length + (long) TILE_CACHE_ENTRY_OVERHEAD;
+                                                                                  }
+                                                                              };
+    private static final ConcurrentCache.Weigher<Directory> DIRECTORY_WEIGHER = new ConcurrentCache.Weigher<Directory>() {
+                                                                                  @Override
+                                                                                  public long weigh(Directory value) {
+                                                                                      return value.memorySize() + DIRECTORY_OVERHEAD;
+                                                                                  }
+                                                                              };
+
+    private final FileChannel                                              channel;
+    private final MappedFile                                               mapped;
+    private final File                                                     file;
+    private volatile State                                                 state;
+    private volatile boolean                                               eagerLeaves;
+    private volatile File                                                  indexFile;
+    private int                                                            leafCacheSize        = DEFAULT_LEAF_CACHE_SIZE;         // guarded by this
+    private long                                                           tileCacheSize;                                          // guarded by this
+    private long                                                           decodedTileCacheSize = DEFAULT_DECODED_TILE_CACHE_SIZE; // guarded by this
+    private AsynchronousFileChannel                                        asyncChannel;
+    private volatile Executor                                              asyncExecutor;
+    private volatile ReaderStats                                           stats;
+    private volatile CacheBudget                                           cacheBudget;
 
     /**
      * Construct a new Reader instance
@@ -359,7 +621,24 @@ public class Reader implements AutoCloseable, Closeable {
      */
     @SuppressWarnings("resource")
     public Reader(@NotNull File file) throws IOException {
-        this(new FileInputStream(file).getChannel()); // NOSONAR closing the channel will close the stream
+        this(file, false);
+    }
+
+    /**
+     * Construct a new Reader instance, optionally memory mapping the file
+     * 
+     * If memoryMapped is true the complete file is mapped in to memory and directories and tiles are read from the
+     * mapping instead of via the FileChannel, avoiding a system call and copy per read. Files larger than 2GB are
+     * mapped in multiple chunks. Note that the mapping is only released when it is garbage collected, not when the
+     * Reader is closed.
+     * 
+     * @param file the PMTiles file
+     * @param memoryMapped if true map the file in to memory
+     * @throws IOException on read errors and similar issues
+     */
+    @SuppressWarnings("resource")
+    public Reader(@NotNull File file, boolean memoryMapped) throws IOException {
+        this(file, new FileInputStream(file).getChannel(), memoryMapped ? MappedFile.DEFAULT_CHUNK_SIZE : 0); // NOSONAR closing the channel will close the stream
     }
 
     /**
@@ -372,155 +651,1697 @@ public class Reader implements AutoCloseable, Closeable {
      * @throws IOException if we cannot read from the channel
      */
     public Reader(@NotNull FileChannel channel) throws IOException {
-        this.channel = channel;
-        init(channel);
-        tileCount.add(0L);
+        this(channel, 0);
     }
 
     /**
-     * Read the header and root directory
+     * Construct a new instance from a FileChannel, optionally memory mapping its contents
      * 
-     * @param channel the FileChannel to use
-     * @throws IOException if reading fails
+     * @param channel the FileChannel
+     * @param mapChunkSize if larger than 0 map the contents of channel in chunks of this size
+     * @throws IOException if we cannot read from or map the channel
      */
-    private void init(@NotNull FileChannel channel) throws IOException {
-        header.read(channel);
-        root.read(channel, header.rootDirOffset, header.rootDirLength, header.internalCompression);
+    Reader(@NotNull FileChannel channel, long mapChunkSize) throws IOException {
+        this(null, channel, mapChunkSize);
     }
 
     /**
-     * Retrieve a, potentially compressed, tile
+     * Construct a new instance
      * 
-     * @param zoom zoom level
-     * @param x x tile coordinate (google/osm convention)
-     * @param y y tile coordinate (google/osm convention)
-     * @return the "tile" or null if not found
-     * @throws IOException on read errors and similar issues
+     * @param file the PMTiles file channel was opened from or null, used for asynchronous reads
+     * @param channel the FileChannel
+     * @param mapChunkSize if larger than 0 map the contents of channel in chunks of this size
+     * @throws IOException if we cannot read from or map the channel
      */
-    @Nullable
-    public byte[] getTile(int zoom, int x, int y) throws IOException {
-        try {
-            long id = Hilbert.zxyToIndex(zoom, x, y) + getZoomOffset(zoom);
-            return root.findTile(header, id);
-        } catch (SourceChangedException sce) {
-            init(channel);
-            return getTile(zoom, x, y);
-        }
+    private Reader(@Nullable File file, @NotNull FileChannel channel, long mapChunkSize) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        mapped = mapChunkSize > 0 ? new MappedFile(channel, mapChunkSize) : null;
+        state = load(0);
     }
 
     /**
-     * Get the tile compression used
+     * Read the header and root directory and create new, empty, caches
      * 
-     * Note that we do not attempt to de-compress tiles and leave that to the calling application
+     * The header and root directory are read with a single read of the start of the archive. The version of the
+     * archive is derived from the contents of both and, if available, the ETag of a remote source or the size and
+     * modification time of a local file, so that it changes when the archive is replaced.
      * 
-     * @return a byte value identifying the compression in use
+     * The caller must hold the lock on this Reader, except during construction.
+     * 
+     * @param generation the generation of the new State
+     * @return a new State
+     * @throws IOException if reading fails
      */
-    public byte getTileCompression() {
-        return header.tileCompression;
+    @NotNull
+    private State load(int generation) throws IOException {
+        ByteBuffer start = readStart();
+        ByteBuffer headerBuffer = start.duplicate();
+        headerBuffer.limit(Header.LENGTH);
+        Header header = new Header();
+        header.read(headerBuffer.slice());
+        ByteBuffer rootBuffer;
+        if (header.rootDirOffset >= Header.LENGTH && header.rootDirOffset + header.rootDirLength <= start.limit()) {
+            rootBuffer = start.duplicate();
+            rootBuffer.limit((int) (header.rootDirOffset + header.rootDirLength));
+            rootBuffer.position((int) header.rootDirOffset);
+            rootBuffer = rootBuffer.slice();
+        } else {
+            rootBuffer = read(header.rootDirOffset, (int) header.rootDirLength, "directory");
+        }
+        final long version = version(header, rootBuffer);
+        Directory root = new Directory();
+        root.decode(rootBuffer, header.internalCompression);
+        ConcurrentCache<Long, Directory> leafCache = new ConcurrentCache<>(leafCacheSize);
+        leafCache.setEvictionListener(evictionListener(stats));
+        CacheBudget budget = cacheBudget;
+        if (budget != null) {
+            leafCache.setBudget(budget, DIRECTORY_WEIGHER);
+        }
+        State loaded = new State(generation, version, header, root, null, leafCache, new ConcurrentHashMap<Long, CompletableFuture<Directory>>(),
+                tileCacheSize > 0 ? budgeted(newTileCache(tileCacheSize)) : null,
+                decodedTileCacheSize > 0 ? budgeted(newTileCache(decodedTileCacheSize)) : null, new AtomicReference<CachedTile>());
+        if (eagerLeaves) {
+            File sidecar = indexFile;
+            loaded = loaded.withLeafIndex(sidecar != null ? loadOrWriteIndex(loaded, sidecar) : readLeafIndex(loaded));
+        }
+        return loaded;
     }
 
     /**
-     * Get the tile type
+     * Determine the version of the archive
      * 
-     * @return a byte value identifying the tile type
+     * @param header the PMTiles header
+     * @param rootBuffer the root directory as stored in the archive, its position is not changed
+     * @return the version
+     * @throws IOException if the size of a local file can't be determined
      */
-    public byte getTileType() {
-        return header.tileType;
+    private long version(@NotNull Header header, @NotNull ByteBuffer rootBuffer) throws IOException {
+        CRC32 contents = new CRC32();
+        contents.update(header.raw);
+        final byte[] root = Util.toArray(rootBuffer);
+        contents.update(root, 0, root.length);
+        String source;
+        if (channel instanceof UrlFileChannel) {
+            source = String.valueOf(((UrlFileChannel) channel).getETag());
+        } else {
+            source = (mapped != null ? mapped.size() : channel.size()) + "-" + (file != null ? file.lastModified() : 0);
+        }
+        CRC32 identity = new CRC32();
+        final byte[] sourceBytes = source.getBytes(StandardCharsets.UTF_8);
+        identity.update(sourceBytes, 0, sourceBytes.length);
+        return contents.getValue() << 32 | identity.getValue();
     }
 
     /**
-     * Get the minimum zoom
+     * Read the start of the archive containing the header and, as required by the specification, the root directory
      * 
-     * @return the minimum zoom level
+     * The length of remote sources is not known up front, a shorter response is accepted as long as it contains the
+     * header.
+     * 
+     * @return a ByteBuffer positioned at 0
+     * @throws IOException if the header couldn't be read completely
      */
-    public byte getMinZoom() {
-        return header.minZoom;
+    @NotNull
+    private ByteBuffer readStart() throws IOException {
+        if (!(channel instanceof UrlFileChannel)) {
+            return read(0, (int) Math.min(HEADER_AND_ROOT_LENGTH, mapped != null ? mapped.size() : channel.size()), "header");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_AND_ROOT_LENGTH);
+        int count = channel.read(buffer, 0);
+        final ReaderStats s = stats;
+        if (s != null) {
+            s.read(Math.max(0, count));
+        }
+        if (count < Header.LENGTH) {
+            throw new IOException("Incomplete header read " + count + " bytes of " + Header.LENGTH); // NOSONAR
+        }
+        buffer.flip();
+        return buffer;
     }
 
     /**
-     * Get the maximum zoom
+     * Re-read the header and root directory after the source has changed
      * 
-     * @return the maximum zoom level
+     * Only one thread re-reads, threads that detected the change concurrently using the same generation wait for it
+     * and then use the new State. Lookups that are not affected by the change continue with the previous State without
+     * waiting, its caches are cleared once the new State has been published. Identical header and root directory
+     * contents don't imply that the leaf directories and tiles are unchanged, so the caches are always replaced.
+     * 
+     * @param failed the State that was in use when the change was detected
+     * @return the current State
+     * @throws IOException if reading fails
      */
-    public byte getMaxZoom() {
-        return header.maxZoom;
+    @NotNull
+    synchronized State reload(@NotNull State failed) throws IOException {
+        final State current = state;
+        if (current.generation != failed.generation) {
+            return current;
+        }
+        final ReaderStats s = stats;
+        if (s != null) {
+            s.sourceChanged();
+        }
+        if (channel instanceof UrlFileChannel) {
+            ((UrlFileChannel) channel).resetETag();
+        }
+        final State loaded = load(current.generation + 1);
+        state = loaded;
+        current.retire();
+        return loaded;
     }
 
     /**
-     * Get the bounds for this file
+     * Get the current State
      * 
-     * @return left, bottom, right, top
+     * @return the State
      */
-    public double[] getBounds() {
-        return new double[] { header.minLongitude / 1E7D, header.minLatitude / 1E7D, header.maxLongitude / 1E7D, header.maxLatitude / 1E7D };
+    @NotNull
+    State state() {
+        return state;
     }
 
     /**
-     * Get the center of the tiles
+     * Get the PMTiles header of the current State
      * 
-     * @return lon, lat
+     * @return the Header
      */
-    public double[] getCenter() {
-        return new double[] { header.centerLongitude / 1E7D, header.centerLatitude / 1E7D };
+    @NotNull
+    Header header() {
+        return state.header;
     }
 
     /**
-     * Get a suggested zoom for the center
+     * De-compress a ByteBuffer, recording the time taken if stats are enabled
      * 
-     * @return a zoom value
+     * @param buffer the ByteBuffer to de-compress
+     * @param compression the compression method (see Constants)
+     * @return either the original buffer is no de-compression is needed or the de-compressed data positioned at 0
+     * @throws IOException if de-compressing goes wrong
      */
-    public byte getCenterZoom() {
-        return header.centerZoom;
+    @NotNull
+    private ByteBuffer decompress(@NotNull ByteBuffer buffer, byte compression) throws IOException {
+        final ReaderStats s = stats;
+        if (s == null) {
+            return Util.decompress(buffer, compression);
+        }
+        final long start = System.nanoTime();
+        ByteBuffer result = Util.decompress(buffer, compression);
+        s.decompression(System.nanoTime() - start);
+        return result;
     }
 
     /**
-     * Get the metadata
+     * Read a range of bytes from the mapped file or the channel
      * 
-     * @return a String containing the JSON format metadata
-     * @throws IOException if extracting the data fails
+     * @param offset offset of the range in the file
+     * @param length length of the range
+     * @param what description of the contents for error messages
+     * @return a ByteBuffer positioned at 0 with length bytes remaining
+     * @throws IOException if the range couldn't be read completely
      */
     @NotNull
-    public String getMetadata() throws IOException {
-        final int length = (int) header.metadataLength;
+    ByteBuffer read(long offset, int length, @NotNull String what) throws IOException {
+        final ReaderStats s = stats;
+        if (s != null) {
+            s.read(length);
+        }
+        if (mapped != null) {
+            return mapped.get(offset, length);
+        }
         ByteBuffer buffer = ByteBuffer.allocate(length);
-
-        int count = channel.read(buffer, header.metadataOffset);
+        int count = channel.read(buffer, offset);
         if (count != length) {
-            throw new IOException("directory incomplete read " + count + " bytes of " + length);
+            throw new IOException("Incomplete " + what + " read " + count + " bytes of " + length); // NOSONAR
         }
-
-        return new String(Util.decompress(buffer, header.internalCompression).array());
+        buffer.rewind();
+        return buffer;
     }
 
     /**
-     * Set how many leaf directories should be retained in cache (the root directory is always cached)
+     * Retrieve a, potentially compressed, tile
      * 
-     * @param size size (in entries) of the cache
+     * If the tile cache is enabled the returned array may be shared with other callers and must not be modified.
+     * 
+     * @param zoom zoom level
+     * @param x x tile coordinate (google/osm convention)
+     * @param y y tile coordinate (google/osm convention)
+     * @return the "tile" or null if not found
+     * @throws IOException on read errors and similar issues
      */
-    public void setLeafDirectoryCacheSize(int size) {
-        leafCache.setCacheSize(size);
+    @Nullable
+    public byte[] getTile(int zoom, int x, int y) throws IOException {
+        final State current = state;
+        try {
+            final TileLocation location = findTile(current, zoom, x, y);
+            if (location == null) {
+                return null;
+            }
+            return getTile(current, location);
+        } catch (SourceChangedException sce) {
+            reload(current);
+            return getTile(zoom, x, y);
+        }
     }
 
-    @Override
-    public void close() throws IOException {
-        channel.close();
+    /**
+     * Retrieve a tile, de-compressed with the tile compression method from the header
+     * 
+     * The de-compressed tiles are retained in a cache bounded by their total size, de-duplicated tiles share one entry.
+     * The returned array may be shared with other callers and must not be modified.
+     * 
+     * @param zoom zoom level
+     * @param x x tile coordinate (google/osm convention)
+     * @param y y tile coordinate (google/osm convention)
+     * @return the de-compressed tile or null if not found
+     * @throws IOException on read errors, if the tile is corrupt and similar issues
+     * @throws UnsupportedOperationException if there is no Codec for the tile compression method
+     */
+    @Nullable
+    public byte[] getDecodedTile(int zoom, int x, int y) throws IOException {
+        final State current = state;
+        try {
+            final TileLocation location = findTile(current, zoom, x, y);
+            if (location == null) {
+                return null;
+            }
+            final ConcurrentCache<Long, byte[]> decoded = current.decodedTileCache;
+            if (decoded != null) {
+                return decoded.get(location.offset, new ConcurrentCache.Loader<Long, byte[]>() {
+                    @Override
+                    public byte[] load(Long key) throws IOException {
+                        return decodeTile(current, location);
+                    }
+                });
+            }
+            return decodeTile(current, location);
+        } catch (SourceChangedException sce) {
+            reload(current);
+            return getDecodedTile(zoom, x, y);
+        }
     }
 
     /**
-     * Get the offset for the Hilbert curve based id for a zoom level
+     * Retrieve a tile and de-compress it with the tile compression method from the header
      * 
-     * This only works if z=0 has been pre-initialised to 0
+     * @param state the State the location was found in
+     * @param location the location of the tile data
+     * @return the de-compressed tile
+     * @throws IOException on read errors, if the tile is corrupt and similar issues
+     */
+    @NotNull
+    private byte[] decodeTile(@NotNull State state, @NotNull TileLocation location) throws IOException {
+        return Util.toArray(decompress(ByteBuffer.wrap(getTile(state, location)), state.header.tileCompression));
+    }
+
+    /**
+     * Retrieve a tile from the tile cache or the file
      * 
-     * @param z the zoom level
-     * @return the accumulated number of tiles up to, but not including zoom z
+     * @param state the State the location was found in
+     * @param location the location of the tile data
+     * @return the tile contents
+     * @throws IOException on read errors and similar issues
      */
-    long getZoomOffset(int z) {
-        final int size = tileCount.size();
-        if (size < z + 1) {
-            for (int i = size; i < z + 1; i++) {
-                tileCount.add((1L << (i - 1)) * (1L << (i - 1)) + tileCount.get(i - 1));
-            }
+    @NotNull
+    private byte[] getTile(@NotNull State state, @NotNull final TileLocation location) throws IOException {
+        final ConcurrentCache<Long, byte[]> tiles = state.tileCache;
+        if (tiles != null) {
+            return tiles.get(location.offset, new ConcurrentCache.Loader<Long, byte[]>() {
+                @Override
+                public byte[] load(Long key) throws IOException {
+                    return readTile(location);
+                }
+            });
         }
-        return tileCount.get(z);
+        return location.deduplicated ? getCachedTile(state, location) : readTile(location);
+    }
+
+    /**
+     * Write a, potentially compressed, tile to a WritableByteChannel
+     * 
+     * For local files this uses FileChannel.transferTo or writes directly from the memory mapping and doesn't copy the
+     * tile to the java heap.
+     * 
+     * @param zoom zoom level
+     * @param x x tile coordinate (google/osm convention)
+     * @param y y tile coordinate (google/osm convention)
+     * @param target the channel to write the tile to
+     * @return the number of bytes written or -1 if the tile was not found
+     * @throws IOException on read or write errors and similar issues
+     */
+    public long getTile(int zoom, int x, int y, @NotNull WritableByteChannel target) throws IOException {
+        final State current = state;
+        try {
+            TileLocation location = findTile(current, zoom, x, y);
+            if (location == null) {
+                return -1;
+            }
+            return transferTile(current, location, target);
+        } catch (SourceChangedException sce) {
+            reload(current);
+            return getTile(zoom, x, y, target);
+        }
+    }
+
+    /**
+     * Find a tile without reading its data
+     * 
+     * The returned TileHandle refers to the current version of the archive and can be used to write the tile data.
+     * 
+     * @param zoom zoom level
+     * @param x x tile coordinate (google/osm convention)
+     * @param y y tile coordinate (google/osm convention)
+     * @return a TileHandle or null if the tile doesn't exist
+     * @throws IOException on read errors and similar issues
+     */
+    @Nullable
+    public TileHandle getTileHandle(int zoom, int x, int y) throws IOException {
+        final State current = state;
+        try {
+            TileLocation location = findTile(current, zoom, x, y);
+            return location != null ? new TileHandle(this, current, location) : null;
+        } catch (SourceChangedException sce) {
+            reload(current);
+            return getTileHandle(zoom, x, y);
+        }
+    }
+
+    /**
+     * Write the data of a tile to a WritableByteChannel
+     * 
+     * @param state the State the location was found in
+     * @param location the location of the tile data
+     * @param target the channel to write the tile to
+     * @return the number of bytes written
+     * @throws IOException on read or write errors and similar issues
+     */
+    long transferTile(@NotNull State state, @NotNull TileLocation location, @NotNull WritableByteChannel target) throws IOException {
+        byte[] cached = getCachedTile(state, location.offset);
+        if (cached != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(cached);
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            return cached.length;
+        }
+        if (mapped == null && !(channel instanceof UrlFileChannel)) {
+            long position = location.offset;
+            final long end = location.offset + location.length;
+            while (position < end) {
+                final long count = channel.transferTo(position, end - position, target);
+                if (count <= 0) {
+                    throw new IOException("Incomplete tile transfer " + (position - location.offset) + " bytes of " + location.length);
+                }
+                position += count;
+            }
+        } else {
+            ByteBuffer buffer = read(location.offset, location.length, "tile");
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+        }
+        return location.length;
+    }
+
+    /**
+     * Read a, potentially compressed, tile in to a ByteBuffer
+     * 
+     * The tile is written starting at the current position of dst and the position is advanced by the length of the
+     * tile. If dst doesn't have enough space remaining nothing is written and a BufferOverflowException is thrown.
+     * 
+     * @param zoom zoom level
+     * @param x x tile coordinate (google/osm convention)
+     * @param y y tile coordinate (google/osm convention)
+     * @param dst the buffer to read the tile in to
+     * @return the length of the tile or -1 if the tile was not found
+     * @throws IOException on read errors and similar issues
+     */
+    public int getTile(int zoom, int x, int y, @NotNull ByteBuffer dst) throws IOException {
+        final State current = state;
+        try {
+            TileLocation location = findTile(current, zoom, x, y);
+            if (location == null) {
+                return -1;
+            }
+            if (dst.remaining() < location.length) {
+                throw new BufferOverflowException();
+            }
+            byte[] cached = getCachedTile(current, location.offset);
+            if (cached != null) {
+                dst.put(cached);
+                return cached.length;
+            }
+            if (mapped != null) {
+                dst.put(mapped.get(location.offset, location.length));
+                return location.length;
+            }
+            ByteBuffer view = dst.duplicate();
+            view.limit(view.position() + location.length);
+            int total = 0;
+            while (view.hasRemaining()) {
+                final int count = channel.read(view, location.offset + total);
+                if (count <= 0) {
+                    throw new IOException("Incomplete tile read " + total + " bytes of " + location.length);
+                }
+                total += count;
+            }
+            dst.position(dst.position() + total);
+            return total;
+        } catch (SourceChangedException sce) {
+            reload(current);
+            return getTile(zoom, x, y, dst);
+        }
+    }
+
+    /**
+     * Retrieve multiple, potentially compressed, tiles
+     * 
+     * The tiles are looked up in Hilbert id order, so that consecutive lookups use the same leaf directories, and tiles
+     * that are close to each other in the file are retrieved with a single read. For remote sources this can reduce the
+     * number of requests substantially.
+     * 
+     * @param coordinates the coordinates of the tiles
+     * @return a List containing the tiles in the same order as coordinates, with null for tiles that were not found
+     * @throws IOException on read errors and similar issues
+     */
+    @NotNull
+    public List<byte[]> getTiles(@NotNull List<TileCoordinates> coordinates) throws IOException {
+        final State current = state;
+        try {
+            final int count = coordinates.size();
+            final long[] ids = new long[count];
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                TileCoordinates c = coordinates.get(i);
+                ids[i] = Hilbert.zxyToIndex(c.getZoom(), c.getX(), c.getY()) + getZoomOffset(c.getZoom());
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i1, Integer i2) {
+                    return Long.compare(ids[i1], ids[i2]);
+                }
+            });
+            TileLocation[] locations = new TileLocation[count];
+            final Directory directory = current.lookupDirectory();
+            for (Integer i : order) {
+                locations[i] = directory.findTile(current, ids[i]);
+            }
+            return Arrays.asList(readTiles(current, locations));
+        } catch (SourceChangedException sce) {
+            reload(current);
+            return getTiles(coordinates);
+        }
+    }
+
+    /**
+     * Read multiple tiles coalescing reads of tiles that are close together in the file
+     * 
+     * Tiles that are separated by less than COALESCE_GAP bytes are read together as long as the total read doesn't
+     * exceed MAX_COALESCED_READ bytes. If the tile cache is enabled it is used and populated.
+     * 
+     * @param state the State the locations were found in
+     * @param locations the locations of the tile data, may contain nulls
+     * @return an array containing the tile contents in the same order as locations, null where the location is null
+     * @throws IOException if reading fails
+     */
+    @NotNull
+    private byte[][] readTiles(@NotNull State state, @NotNull final TileLocation[] locations) throws IOException {
+        byte[][] result = new byte[locations.length][];
+        List<Integer> toRead = getUncachedTiles(state, locations, result);
+        int groupStart = 0;
+        while (groupStart < toRead.size()) {
+            final int groupEnd = coalesce(locations, toRead, groupStart);
+            final long start = locations[toRead.get(groupStart)].offset;
+            ByteBuffer buffer = read(start, (int) (groupEnd(locations, toRead, groupStart, groupEnd) - start), "tile");
+            extractTiles(state, buffer, start, locations, toRead.subList(groupStart, groupEnd), result);
+            groupStart = groupEnd;
+        }
+        return result;
+    }
+
+    /**
+     * Fill in the tiles that are already cached and determine which need to be read
+     * 
+     * @param state the State the locations were found in
+     * @param locations the locations of the tile data, may contain nulls
+     * @param result the array to store cached tiles in
+     * @return a List of indices in to locations of the tiles that need to be read, sorted by offset
+     */
+    @NotNull
+    private List<Integer> getUncachedTiles(@NotNull State state, @NotNull final TileLocation[] locations, @NotNull byte[][] result) {
+        List<Integer> toRead = new ArrayList<>();
+        for (int i = 0; i < locations.length; i++) {
+            if (locations[i] != null) {
+                result[i] = getCachedTile(state, locations[i].offset);
+                if (result[i] == null) {
+                    toRead.add(i);
+                }
+            }
+        }
+        Collections.sort(toRead, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Long.compare(locations[i1].offset, locations[i2].offset);
+            }
+        });
+        return toRead;
+    }
+
+    /**
+     * Determine how many of the tiles to read can be read together with the one at groupStart
+     * 
+     * @param locations the locations of the tile data
+     * @param toRead indices in to locations sorted by offset
+     * @param groupStart the index in toRead of the first tile of the read
+     * @return the index in toRead after the last tile of the read
+     */
+    private static int coalesce(@NotNull TileLocation[] locations, @NotNull List<Integer> toRead, int groupStart) {
+        final long start = locations[toRead.get(groupStart)].offset;
+        long end = start + locations[toRead.get(groupStart)].length;
+        int groupEnd = groupStart + 1;
+        while (groupEnd < toRead.size()) {
+            TileLocation next = locations[toRead.get(groupEnd)];
+            final long nextEnd = Math.max(end, next.offset + next.length);
+            if (next.offset > end + COALESCE_GAP || nextEnd - start > MAX_COALESCED_READ) {
+                break;
+            }
+            end = nextEnd;
+            groupEnd++;
+        }
+        return groupEnd;
+    }
+
+    /**
+     * Get the end offset of a coalesced read
+     * 
+     * @param locations the locations of the tile data
+     * @param toRead indices in to locations sorted by offset
+     * @param groupStart the index in toRead of the first tile of the read
+     * @param groupEnd the index in toRead after the last tile of the read
+     * @return the offset after the last byte to read
+     */
+    private static long groupEnd(@NotNull TileLocation[] locations, @NotNull List<Integer> toRead, int groupStart, int groupEnd) {
+        long end = 0;
+        for (int j = groupStart; j < groupEnd; j++) {
+            TileLocation location = locations[toRead.get(j)];
+            end = Math.max(end, location.offset + location.length);
+        }
+        return end;
+    }
+
+    /**
+     * Copy the tiles contained in a coalesced read out of the buffer
+     * 
+     * @param state the State the locations were found in
+     * @param buffer the buffer containing the read data
+     * @param start the offset in the file of the start of buffer
+     * @param locations the locations of the tile data
+     * @param group indices in to locations of the tiles contained in buffer, sorted by offset
+     * @param result the array to store the tiles in
+     * @throws IOException if adding a tile to the tile cache fails
+     */
+    private void extractTiles(@NotNull State state, @NotNull ByteBuffer buffer, long start, @NotNull TileLocation[] locations, @NotNull List<Integer> group,
+            @NotNull byte[][] result) throws IOException {
+        TileLocation previous = null;
+        byte[] previousData = null;
+        for (int index : group) {
+            final TileLocation location = locations[index];
+            if (previous != null && previous.offset == location.offset && previous.length == location.length) {
+                result[index] = previousData;
+                continue;
+            }
+            byte[] data = new byte[location.length];
+            ByteBuffer slice = buffer.duplicate();
+            slice.position((int) (location.offset - start));
+            slice.get(data);
+            data = cacheTile(state, location, data);
+            result[index] = data;
+            previous = location;
+            previousData = data;
+        }
+    }
+
+    /**
+     * Add a tile that has just been read to the tile cache, or if it is de-duplicated and the cache is disabled, retain
+     * it as the last de-duplicated tile
+     * 
+     * @param state the State the location was found in
+     * @param location the location of the tile data
+     * @param data the tile contents
+     * @return the tile contents, potentially an instance that was concurrently cached
+     * @throws IOException never
+     */
+    @NotNull
+    private byte[] cacheTile(@NotNull State state, @NotNull TileLocation location, @NotNull final byte[] data) throws IOException {
+        final ConcurrentCache<Long, byte[]> tiles = state.tileCache;
+        if (tiles != null) {
+            return tiles.get(location.offset, new ConcurrentCache.Loader<Long, byte[]>() {
+                @Override
+                public byte[] load(Long key) {
+                    return data;
+                }
+            });
+        }
+        if (location.deduplicated) {
+            state.cachedTile.set(new CachedTile(location.offset, data));
+        }
+        return data;
+    }
+
+    /**
+     * Asynchronously retrieve a, potentially compressed, tile
+     * 
+     * Directory and tile reads are chained without blocking a thread: local files are read with an
+     * AsynchronousFileChannel, memory mapped files directly, and channels implementing AsyncChannel, for example
+     * HttpClientChannel, with their non-blocking reads. For other channels the blocking reads are run on the Executor
+     * set with setAsyncExecutor or, if none has been set, a shared pool of daemon threads.
+     * 
+     * Note that this requires Android 8.0 (API 26) or later.
+     * 
+     * @param zoom zoom level
+     * @param x x tile coordinate (google/osm convention)
+     * @param y y tile coordinate (google/osm convention)
+     * @return a CompletableFuture that completes with the "tile" or null if not found
+     */
+    @NotNull
+    public CompletableFuture<byte[]> getTileAsync(final int zoom, final int x, final int y) {
+        return retryIfSourceChanged(new Function<State, CompletableFuture<byte[]>>() {
+            @Override
+            public CompletableFuture<byte[]> apply(final State current) {
+                final long id = Hilbert.zxyToIndex(zoom, x, y) + getZoomOffset(zoom);
+                return findTileAsync(current, current.lookupDirectory(), id).thenCompose(new Function<TileLocation, CompletableFuture<byte[]>>() {
+                    @Override
+                    public CompletableFuture<byte[]> apply(final TileLocation location) {
+                        if (location == null) {
+                            return CompletableFuture.completedFuture(null);
+                        }
+                        byte[] cached = getCachedTile(current, location.offset);
+                        if (cached != null) {
+                            return CompletableFuture.completedFuture(cached);
+                        }
+                        return readAsync(location.offset, location.length, "tile").thenApply(new Function<ByteBuffer, byte[]>() {
+                            @Override
+                            public byte[] apply(ByteBuffer buffer) {
+                                try {
+                                    return cacheTile(current, location, Util.toArray(buffer));
+                                } catch (IOException e) {
+                                    throw new CompletionException(e);
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Asynchronously retrieve multiple, potentially compressed, tiles
+     * 
+     * Leaf directories are read once, even if they are needed for multiple tiles, and tiles that are close to each
+     * other in the file are retrieved with a single read, see getTiles.
+     * 
+     * Note that this requires Android 8.0 (API 26) or later.
+     * 
+     * @param coordinates the coordinates of the tiles
+     * @return a CompletableFuture that completes with a List containing the tiles in the same order as coordinates,
+     *         with null for tiles that were not found
+     */
+    @NotNull
+    public CompletableFuture<List<byte[]>> getTilesAsync(@NotNull final List<TileCoordinates> coordinates) {
+        return retryIfSourceChanged(new Function<State, CompletableFuture<List<byte[]>>>() {
+            @Override
+            public CompletableFuture<List<byte[]>> apply(final State current) {
+                final int count = coordinates.size();
+                final TileLocation[] locations = new TileLocation[count];
+                final CompletableFuture<?>[] lookups = new CompletableFuture<?>[count];
+                for (int i = 0; i < count; i++) {
+                    final int index = i;
+                    TileCoordinates c = coordinates.get(i);
+                    final long id = Hilbert.zxyToIndex(c.getZoom(), c.getX(), c.getY()) + getZoomOffset(c.getZoom());
+                    lookups[i] = findTileAsync(current, current.lookupDirectory(), id).thenAccept(new Consumer<TileLocation>() {
+                        @Override
+                        public void accept(TileLocation location) {
+                            locations[index] = location;
+                        }
+                    });
+                }
+                return CompletableFuture.allOf(lookups).thenCompose(new Function<Void, CompletableFuture<List<byte[]>>>() {
+                    @Override
+                    public CompletableFuture<List<byte[]>> apply(Void v) {
+                        return readTilesAsync(current, locations);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Asynchronously read the tiles that are not cached, coalescing reads of tiles that are close to each other
+     * 
+     * @param state the State the locations were found in
+     * @param locations the locations of the tiles, null for tiles that were not found
+     * @return a CompletableFuture that completes with a List containing the tiles in the same order as locations
+     */
+    @NotNull
+    private CompletableFuture<List<byte[]>> readTilesAsync(@NotNull final State state, @NotNull final TileLocation[] locations) {
+        final byte[][] result = new byte[locations.length][];
+        List<Integer> toRead = getUncachedTiles(state, locations, result);
+        List<CompletableFuture<Void>> reads = new ArrayList<>();
+        int groupStart = 0;
+        while (groupStart < toRead.size()) {
+            final int groupEnd = coalesce(locations, toRead, groupStart);
+            final long start = locations[toRead.get(groupStart)].offset;
+            final List<Integer> group = toRead.subList(groupStart, groupEnd);
+            reads.add(readAsync(start, (int) (groupEnd(locations, toRead, groupStart, groupEnd) - start), "tile").thenAccept(new Consumer<ByteBuffer>() {
+                @Override
+                public void accept(ByteBuffer buffer) {
+                    try {
+                        extractTiles(state, buffer, start, locations, group, result);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }
+            }));
+            groupStart = groupEnd;
+        }
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).thenApply(new Function<Void, List<byte[]>>() {
+            @Override
+            public List<byte[]> apply(Void v) {
+                return Arrays.asList(result);
+            }
+        });
+    }
+
+    /**
+     * Run an asynchronous operation and, if it fails because the source has changed, re-read the header and root
+     * directory and run it again
+     * 
+     * @param <T> the result type
+     * @param operation a Function starting the operation with the current State
+     * @return a CompletableFuture for the result of the operation
+     */
+    @NotNull
+    private <T> CompletableFuture<T> retryIfSourceChanged(@NotNull final Function<State, CompletableFuture<T>> operation) {
+        final State current = state;
+        return operation.apply(current).handle(new BiFunction<T, Throwable, CompletableFuture<T>>() {
+            @Override
+            public CompletableFuture<T> apply(T value, Throwable t) {
+                if (t == null) {
+                    return CompletableFuture.completedFuture(value);
+                }
+                if (unwrap(t) instanceof SourceChangedException) {
+                    return CompletableFuture.runAsync(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                reload(current);
+                            } catch (IOException e) {
+                                throw new CompletionException(e);
+                            }
+                        }
+                    }, getAsyncExecutor()).thenCompose(new Function<Void, CompletableFuture<T>>() {
+                        @Override
+                        public CompletableFuture<T> apply(Void v) {
+                            return retryIfSourceChanged(operation);
+                        }
+                    });
+                }
+                return Reader.<T>failed(t);
+            }
+        }).thenCompose(new Function<CompletableFuture<T>, CompletableFuture<T>>() {
+            @Override
+            public CompletableFuture<T> apply(CompletableFuture<T> f) {
+                return f;
+            }
+        });
+    }
+
+    /**
+     * Asynchronously find the location of a tile, reading leaf directories as necessary
+     * 
+     * @param state the State directory belongs to
+     * @param directory the directory to start the search in
+     * @param id the Hilbert index
+     * @return a CompletableFuture that completes with the location of the tile data or null
+     */
+    @NotNull
+    private CompletableFuture<TileLocation> findTileAsync(@NotNull final State state, @NotNull Directory directory, final long id) {
+        final int index = directory.find(id);
+        if (index < 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (!directory.isLeaf(index)) {
+            return CompletableFuture.completedFuture(directory.location(state.header, index));
+        }
+        final long leafOffset = state.header.leafDirOffset + directory.offsets.get(index);
+        Directory leaf = state.leafCache.getIfPresent(leafOffset);
+        final ReaderStats s = stats;
+        if (leaf != null) {
+            if (s != null) {
+                s.leafCacheHit();
+            }
+            return findTileAsync(state, leaf, id);
+        }
+        return loadLeafAsync(state, leafOffset, (int) directory.lengths.get(index)).thenCompose(new Function<Directory, CompletableFuture<TileLocation>>() {
+            @Override
+            public CompletableFuture<TileLocation> apply(Directory d) {
+                return findTileAsync(state, d, id);
+            }
+        });
+    }
+
+    /**
+     * Asynchronously read a leaf directory and add it to the leaf directory cache
+     * 
+     * Concurrent requests for the same leaf directory share a single read
+     * 
+     * @param state the State the leaf directory belongs to
+     * @param leafOffset the absolute offset of the leaf directory
+     * @param length the length of the leaf directory
+     * @return a CompletableFuture that completes with the directory
+     */
+    @NotNull
+    private CompletableFuture<Directory> loadLeafAsync(@NotNull final State state, final long leafOffset, int length) {
+        final CompletableFuture<Directory> load = new CompletableFuture<>();
+        CompletableFuture<Directory> existing = state.leafLoads.putIfAbsent(leafOffset, load);
+        if (existing != null) {
+            return existing;
+        }
+        final ReaderStats s = stats;
+        final long start = s != null ? System.nanoTime() : 0;
+        readAsync(leafOffset, length, "directory").whenComplete(new BiConsumer<ByteBuffer, Throwable>() {
+            @Override
+            public void accept(ByteBuffer buffer, Throwable t) {
+                Directory leaf = null;
+                Throwable error = t;
+                if (error == null) {
+                    try {
+                        final Directory directory = new Directory();
+                        directory.decode(buffer, state.header.internalCompression);
+                        if (s != null) {
+                            s.leafCacheMiss(System.nanoTime() - start);
+                        }
+                        leaf = state.leafCache.get(leafOffset, new ConcurrentCache.Loader<Long, Directory>() {
+                            @Override
+                            public Directory load(Long key) {
+                                return directory;
+                            }
+                        });
+                    } catch (IOException | RuntimeException e) {
+                        error = e;
+                    }
+                }
+                state.leafLoads.remove(leafOffset, load);
+                if (error != null) {
+                    load.completeExceptionally(unwrap(error));
+                } else {
+                    load.complete(leaf);
+                }
+            }
+        });
+        return load;
+    }
+
+    /**
+     * Asynchronously read a range of bytes
+     * 
+     * @param offset offset of the range in the file
+     * @param length length of the range
+     * @param what description of the contents for error messages
+     * @return a CompletableFuture that completes with a ByteBuffer positioned at 0 with length bytes remaining
+     */
+    @NotNull
+    private CompletableFuture<ByteBuffer> readAsync(final long offset, final int length, @NotNull final String what) {
+        if (mapped != null) {
+            try {
+                return CompletableFuture.completedFuture(mapped.get(offset, length));
+            } catch (IOException e) {
+                return failed(e);
+            }
+        }
+        if (channel instanceof AsyncChannel) {
+            final ByteBuffer buffer = ByteBuffer.allocate(length);
+            return ((AsyncChannel) channel).readAsync(buffer, offset).thenApply(new Function<Integer, ByteBuffer>() {
+                @Override
+                public ByteBuffer apply(Integer count) {
+                    if (count != length) {
+                        throw new CompletionException(new IOException("Incomplete " + what + " read " + count + " bytes of " + length)); // NOSONAR
+                    }
+                    buffer.rewind();
+                    return buffer;
+                }
+            });
+        }
+        if (file != null) {
+            try {
+                return readFileAsync(getAsyncChannel(), offset, length, what);
+            } catch (IOException e) {
+                return failed(e);
+            }
+        }
+        return CompletableFuture.supplyAsync(new Supplier<ByteBuffer>() {
+            @Override
+            public ByteBuffer get() {
+                try {
+                    return read(offset, length, what);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }
+        }, getAsyncExecutor());
+    }
+
+    /**
+     * Read a range of bytes from an AsynchronousFileChannel, continuing after partial reads
+     * 
+     * @param fileChannel the AsynchronousFileChannel
+     * @param offset offset of the range in the file
+     * @param length length of the range
+     * @param what description of the contents for error messages
+     * @return a CompletableFuture that completes with a ByteBuffer positioned at 0 with length bytes remaining
+     */
+    @NotNull
+    private static CompletableFuture<ByteBuffer> readFileAsync(@NotNull final AsynchronousFileChannel fileChannel, final long offset, final int length,
+            @NotNull final String what) {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        final CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        fileChannel.read(buffer, offset, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer count, Void attachment) {
+                if (!buffer.hasRemaining()) {
+                    buffer.rewind();
+                    result.complete(buffer);
+                } else if (count <= 0) {
+                    result.completeExceptionally(new IOException("Incomplete " + what + " read " + buffer.position() + " bytes of " + length)); // NOSONAR
+                } else {
+                    fileChannel.read(buffer, offset + buffer.position(), null, this);
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                result.completeExceptionally(exc);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Get the AsynchronousFileChannel for the file, opening it if necessary
+     * 
+     * @return an AsynchronousFileChannel
+     * @throws IOException if the file can't be opened
+     */
+    @NotNull
+    private synchronized AsynchronousFileChannel getAsyncChannel() throws IOException {
+        if (asyncChannel == null) {
+            asyncChannel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        return asyncChannel;
+    }
+
+    /**
+     * Get the Executor used for blocking operations of the asynchronous API
+     * 
+     * @return an Executor
+     */
+    @NotNull
+    private Executor getAsyncExecutor() {
+        Executor executor = asyncExecutor;
+        return executor != null ? executor : DefaultExecutor.INSTANCE;
+    }
+
+    /**
+     * Lazily created default Executor for blocking operations of the asynchronous API
+     */
+    private static final class DefaultExecutor {
+        static final Executor INSTANCE = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "pmtiles-reader-async");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Set the Executor used by the asynchronous API for reads from channels that don't support non-blocking reads
+     * 
+     * Note that the asynchronous API requires Android 8.0 (API 26) or later.
+     * 
+     * @param executor the Executor or null to use the default shared pool of daemon threads
+     */
+    public void setAsyncExecutor(@Nullable Executor executor) {
+        asyncExecutor = executor;
+    }
+
+    /**
+     * Create a CompletableFuture that has failed
+     * 
+     * @param <T> the result type
+     * @param t the cause of the failure
+     * @return a CompletableFuture completed exceptionally with t
+     */
+    @NotNull
+    private static <T> CompletableFuture<T> failed(@NotNull Throwable t) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(unwrap(t));
+        return result;
+    }
+
+    /**
+     * Get the original cause of a failed asynchronous operation
+     * 
+     * @param t the Throwable
+     * @return the cause if t is a CompletionException, otherwise t
+     */
+    @NotNull
+    private static Throwable unwrap(@NotNull Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    }
+
+    /**
+     * Find the location of a tile in the file
+     * 
+     * @param state the State to search in
+     * @param zoom zoom level
+     * @param x x tile coordinate (google/osm convention)
+     * @param y y tile coordinate (google/osm convention)
+     * @return a TileLocation or null if the tile doesn't exist
+     * @throws IOException on read errors and similar issues
+     */
+    @Nullable
+    private TileLocation findTile(@NotNull State state, int zoom, int x, int y) throws IOException {
+        long id = Hilbert.zxyToIndex(zoom, x, y) + getZoomOffset(zoom);
+        final ReaderStats s = stats;
+        if (s == null) {
+            return state.lookupDirectory().findTile(state, id);
+        }
+        final long start = System.nanoTime();
+        TileLocation location = state.lookupDirectory().findTile(state, id);
+        s.directoryLookup(System.nanoTime() - start);
+        return location;
+    }
+
+    /**
+     * Read a tile
+     * 
+     * @param location the location of the tile data
+     * @return the tile contents
+     * @throws IOException if reading the tile fails
+     */
+    @NotNull
+    private byte[] readTile(@NotNull TileLocation location) throws IOException {
+        return Util.toArray(read(location.offset, location.length, "tile"));
+    }
+
+    /**
+     * If we are getting a tile which is de-duplicated, aka in a range of a runlength > 1, cache it or retrieve it from
+     * cache
+     * 
+     * @param state the State the location was found in
+     * @param location the location of the tile data
+     * @return the tile contents
+     * @throws IOException if reading the tile fails
+     */
+    @NotNull
+    private byte[] getCachedTile(@NotNull State state, @NotNull TileLocation location) throws IOException {
+        CachedTile cached = state.cachedTile.get();
+        if (cached != null && cached.offset == location.offset) {
+            return cached.data;
+        }
+        byte[] data = readTile(location);
+        state.cachedTile.set(new CachedTile(location.offset, data));
+        return data;
+    }
+
+    /**
+     * Get a tile from the tile cache or the de-duplicated tile slot without reading it
+     * 
+     * @param state the State the tile was found in
+     * @param offset absolute offset of the tile data in the file
+     * @return the tile contents or null if not cached
+     */
+    @Nullable
+    private byte[] getCachedTile(@NotNull State state, long offset) {
+        final ConcurrentCache<Long, byte[]> tiles = state.tileCache;
+        if (tiles != null) {
+            return tiles.getIfPresent(offset);
+        }
+        CachedTile cached = state.cachedTile.get();
+        return cached != null && cached.offset == offset ? cached.data : null;
+    }
+
+    /**
+     * Get the tile compression used
+     * 
+     * Note that we do not attempt to de-compress tiles and leave that to the calling application
+     * 
+     * @return a byte value identifying the compression in use
+     */
+    public byte getTileCompression() {
+        return state.header.tileCompression;
+    }
+
+    /**
+     * Get the tile type
+     * 
+     * @return a byte value identifying the tile type
+     */
+    public byte getTileType() {
+        return state.header.tileType;
+    }
+
+    /**
+     * Get the minimum zoom
+     * 
+     * @return the minimum zoom level
+     */
+    public byte getMinZoom() {
+        return state.header.minZoom;
+    }
+
+    /**
+     * Get the maximum zoom
+     * 
+     * @return the maximum zoom level
+     */
+    public byte getMaxZoom() {
+        return state.header.maxZoom;
+    }
+
+    /**
+     * Get the bounds for this file
+     * 
+     * @return left, bottom, right, top
+     */
+    public double[] getBounds() {
+        final Header header = state.header;
+        return new double[] { header.minLongitude / 1E7D, header.minLatitude / 1E7D, header.maxLongitude / 1E7D, header.maxLatitude / 1E7D };
+    }
+
+    /**
+     * Get the center of the tiles
+     * 
+     * @return lon, lat
+     */
+    public double[] getCenter() {
+        final Header header = state.header;
+        return new double[] { header.centerLongitude / 1E7D, header.centerLatitude / 1E7D };
+    }
+
+    /**
+     * Get a suggested zoom for the center
+     * 
+     * @return a zoom value
+     */
+    public byte getCenterZoom() {
+        return state.header.centerZoom;
+    }
+
+    /**
+     * Get the number of addressed tiles from the header
+     * 
+     * @return the number of tiles or 0 if unknown
+     */
+    public long getAddressedTiles() {
+        return state.header.addressedTiles;
+    }
+
+    /**
+     * Get the number of tile entries from the header
+     * 
+     * @return the number of entries or 0 if unknown
+     */
+    public long getTileEntries() {
+        return state.header.tileEntries;
+    }
+
+    /**
+     * Get the number of distinct tile contents from the header
+     * 
+     * @return the number of tile contents or 0 if unknown
+     */
+    public long getTileContents() {
+        return state.header.tileContents;
+    }
+
+    /**
+     * Check if the tile data is clustered, that is ordered by tile id
+     * 
+     * @return true if the archive is clustered
+     */
+    public boolean isClustered() {
+        return state.header.clustered == 1;
+    }
+
+    /**
+     * Get the length of the tile data section
+     * 
+     * @return the length in bytes
+     */
+    public long getTileDataLength() {
+        return state.header.tileDataLength;
+    }
+
+    /**
+     * Get the metadata
+     * 
+     * @return a String containing the JSON format metadata
+     * @throws IOException if extracting the data fails
+     */
+    @NotNull
+    public String getMetadata() throws IOException {
+        final Header header = state.header;
+        ByteBuffer buffer = read(header.metadataOffset, (int) header.metadataLength, "metadata");
+        return new String(Util.toArray(decompress(buffer, header.internalCompression)));
+    }
+
+    /**
+     * Get an iterator over all tiles in the archive
+     * 
+     * Tiles are returned in tile id (Hilbert curve) order, the root directory and each leaf directory are read once
+     * without using the leaf directory cache (unless they have been loaded with loadLeafDirectories), runs of
+     * de-duplicated tiles are expanded with the data read only once, and the tile data is read in chunks of up to
+     * TileIterator.DEFAULT_CHUNK_SIZE bytes.
+     * 
+     * @return a TileIterator
+     */
+    @NotNull
+    public TileIterator getTileIterator() {
+        final State current = state;
+        return new TileIterator(this, current, current.lookupDirectory(), TileIterator.DEFAULT_CHUNK_SIZE, null);
+    }
+
+    /**
+     * Get an iterator over all tiles in the archive reading the tile data in chunks of chunkSize bytes
+     * 
+     * @param chunkSize the size of the reads of tile data in bytes
+     * @return a TileIterator
+     */
+    @NotNull
+    public TileIterator getTileIterator(int chunkSize) {
+        final State current = state;
+        return new TileIterator(this, current, current.lookupDirectory(), chunkSize, null);
+    }
+
+    /**
+     * Get an iterator over the tiles intersecting a bounding box
+     * 
+     * The area is decomposed per zoom level in to contiguous ranges of tile ids, the ranges are then resolved with a
+     * single merged pass over the directories instead of a lookup per tile. Tiles are returned in tile id order, that
+     * is by zoom level and then along the Hilbert curve, tiles that are not present in the archive are omitted. For
+     * clustered archives the tile data of each range is read with few large reads.
+     * 
+     * @param bbox left, bottom, right, top in WGS84 coordinates, left may be larger than right if the box crosses the
+     *            antimeridian
+     * @param minZoom the minimum zoom level
+     * @param maxZoom the maximum zoom level
+     * @return a TileIterator
+     */
+    @NotNull
+    public TileIterator getTiles(@NotNull double[] bbox, int minZoom, int maxZoom) {
+        if (bbox.length != 4) {
+            throw new IllegalArgumentException("Bounding box needs 4 values");
+        }
+        final State current = state;
+        IdRanges ranges = new IdRanges();
+        for (int z = Math.max(minZoom, current.header.minZoom); z <= Math.min(maxZoom, current.header.maxZoom); z++) {
+            final long minY = yTile(bbox[3], z);
+            final long maxY = yTile(bbox[1], z);
+            if (bbox[0] <= bbox[2]) {
+                Hilbert.rectangleToTileIdRanges(z, xTile(bbox[0], z), minY, xTile(bbox[2], z), maxY, ranges);
+            } else {
+                Hilbert.rectangleToTileIdRanges(z, xTile(bbox[0], z), minY, (1L << z) - 1, maxY, ranges);
+                Hilbert.rectangleToTileIdRanges(z, 0, minY, xTile(bbox[2], z), maxY, ranges);
+            }
+        }
+        ranges.build();
+        return new TileIterator(this, current, current.lookupDirectory(), TileIterator.DEFAULT_CHUNK_SIZE, ranges);
+    }
+
+    /**
+     * Calculate the x tile coordinate of a longitude
+     * 
+     * @param lon the longitude
+     * @param z the zoom level
+     * @return the x coordinate clamped to the tile grid
+     */
+    private static long xTile(double lon, int z) {
+        final long max = (1L << z) - 1;
+        return Math.max(0, Math.min(max, (long) Math.floor((lon + 180D) / 360D * (1L << z))));
+    }
+
+    /**
+     * Calculate the y tile coordinate of a latitude
+     * 
+     * @param lat the latitude
+     * @param z the zoom level
+     * @return the y coordinate clamped to the tile grid
+     */
+    private static long yTile(double lat, int z) {
+        final long max = (1L << z) - 1;
+        final double rad = Math.toRadians(Math.max(-MAX_LAT, Math.min(MAX_LAT, lat)));
+        final double y = (1D - Math.log(Math.tan(rad) + 1D / Math.cos(rad)) / Math.PI) / 2D * (1L << z);
+        return Math.max(0, Math.min(max, (long) Math.floor(y)));
+    }
+
+    /**
+     * Visit all tile entries of the archive in parallel on the common ForkJoinPool
+     * 
+     * The archive is partitioned by leaf directory, see ScanVisitor. Directories are read without using the leaf
+     * directory cache and tile data isn't read.
+     * 
+     * @param <V> the type of the visitor
+     * @param visitor the visitor for the first partition
+     * @return visitor with the results of all partitions merged in to it
+     * @throws IOException if reading a directory fails
+     */
+    @NotNull
+    public <V extends ScanVisitor<V>> V scan(@NotNull V visitor) throws IOException {
+        return scan(visitor, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Visit all tile entries of the archive in parallel
+     * 
+     * @param <V> the type of the visitor
+     * @param visitor the visitor for the first partition
+     * @param pool the ForkJoinPool to use
+     * @return visitor with the results of all partitions merged in to it
+     * @throws IOException if reading a directory fails
+     */
+    @NotNull
+    public <V extends ScanVisitor<V>> V scan(@NotNull V visitor, @NotNull ForkJoinPool pool) throws IOException {
+        try {
+            final State current = state;
+            return pool.invoke(new ScanTask<>(this, current.header, current.root, 0, current.root.ids.size(), visitor));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Collect statistics on and validate the tile entries of the archive
+     * 
+     * @return an ArchiveStatistics instance
+     * @throws IOException if reading a directory fails
+     */
+    @NotNull
+    public ArchiveStatistics getStatistics() throws IOException {
+        return scan(new ArchiveStatistics(state.header.tileDataLength));
+    }
+
+    /**
+     * Read all leaf directories up front
+     * 
+     * The complete leaf directory section is read with a single read, all leaf directories are decoded and their
+     * entries combined in to one flattened directory that is used for all further lookups, so that retrieving tiles
+     * doesn't require any further directory reads. This is useful for remote archives accessed randomly, where the
+     * leaf directory cache would otherwise need to re-fetch leaf directories constantly. The memory used by the index
+     * is proportional to the number of tile entries of the archive, it is rebuilt if the source changes.
+     * 
+     * @throws IOException if reading or decoding the leaf directories fails
+     */
+    public synchronized void loadLeafDirectories() throws IOException {
+        final State current = state;
+        state = current.withLeafIndex(readLeafIndex(current));
+        eagerLeaves = true;
+    }
+
+    /**
+     * Read all leaf directories up front using a local sidecar index file
+     * 
+     * If indexFile contains an index for the current source it is memory mapped and used for all lookups, avoiding
+     * reading and decompressing the leaf directories. Otherwise the leaf directories are loaded as with
+     * loadLeafDirectories() and the resulting index, including the entries of the root directory, is written to
+     * indexFile for later use. The index file is stamped with the PMTiles header and, if available, the ETag or the
+     * size of the source, an index for a different version of the archive is ignored and overwritten. If the source
+     * changes while the Reader is in use the index is rebuilt and rewritten.
+     * 
+     * @param indexFile the sidecar index file
+     * @throws IOException if reading or writing fails
+     */
+    public synchronized void loadLeafDirectories(@NotNull File indexFile) throws IOException {
+        final State current = state;
+        state = current.withLeafIndex(loadOrWriteIndex(current, indexFile));
+        this.indexFile = indexFile;
+        eagerLeaves = true;
+    }
+
+    /**
+     * Map the index from a sidecar file, creating the file if it doesn't exist or doesn't match the source
+     * 
+     * @param state the State to create the index for
+     * @param indexFile the sidecar index file
+     * @return a Directory containing all tile entries
+     * @throws IOException if reading or writing fails
+     */
+    @NotNull
+    private Directory loadOrWriteIndex(@NotNull State state, @NotNull File indexFile) throws IOException {
+        final String eTag = channel instanceof UrlFileChannel ? ((UrlFileChannel) channel).getETag() : null;
+        final long size = channel instanceof UrlFileChannel ? -1 : channel.size();
+        Directory index = SidecarIndex.map(indexFile, this, state.header.raw, size, eTag);
+        if (index == null) {
+            index = readLeafIndex(state);
+            if (index == null) {
+                index = state.root;
+            }
+            SidecarIndex.write(indexFile, index, state.header.raw, size, eTag);
+        }
+        return index;
+    }
+
+    /**
+     * Read the leaf directory section and build a flattened directory from it
+     * 
+     * @param state the State to create the index for
+     * @return a Directory containing all tile entries or null if the archive doesn't have leaf directories
+     * @throws IOException if reading or decoding fails
+     */
+    @Nullable
+    private Directory readLeafIndex(@NotNull State state) throws IOException {
+        final Header header = state.header;
+        if (header.leafDirLength == 0) {
+            return null;
+        }
+        if (header.leafDirLength > Integer.MAX_VALUE) {
+            throw new UnsupportedOperationException("Currently leaf directory sections larger than Integer.MAX_VALUE are not supported");
+        }
+        ByteBuffer leaves = read(header.leafDirOffset, (int) header.leafDirLength, "leaf directories");
+        Entries entries = new Entries();
+        flatten(state.root, header.internalCompression, leaves, entries);
+        Directory index = new Directory();
+        index.ids = new PackedLongArray(entries.get(entries.ids));
+        index.runLengths = new PackedLongArray(entries.get(entries.runLengths));
+        index.lengths = new PackedLongArray(entries.get(entries.lengths));
+        index.offsets = new PackedLongArray(entries.get(entries.offsets));
+        return index;
+    }
+
+    /**
+     * Add the tile entries of a directory and, recursively, of its leaf directories
+     * 
+     * @param directory the Directory
+     * @param compression the internal compression method
+     * @param leaves the contents of the leaf directory section
+     * @param entries the Entries to add the tile entries to
+     * @throws IOException if decoding fails
+     */
+    private void flatten(@NotNull Directory directory, byte compression, @NotNull ByteBuffer leaves, @NotNull Entries entries) throws IOException {
+        for (int i = 0; i < directory.ids.size(); i++) {
+            if (!directory.isLeaf(i)) {
+                entries.add(directory.ids.get(i), directory.runLengths.get(i), directory.lengths.get(i), directory.offsets.get(i));
+                continue;
+            }
+            final long offset = directory.offsets.get(i);
+            final long length = directory.lengths.get(i);
+            if (offset < 0 || offset + length > leaves.limit()) {
+                throw new IOException("Leaf directory " + offset + " " + length + " outside of leaf directory section");
+            }
+            ByteBuffer buffer = leaves.duplicate();
+            buffer.limit((int) (offset + length));
+            buffer.position((int) offset);
+            Directory leaf = new Directory();
+            leaf.decode(buffer.slice(), compression);
+            flatten(leaf, compression, leaves, entries);
+        }
+    }
+
+    /**
+     * Set how many leaf directories should be retained in cache (the root directory is always cached)
+     * 
+     * @param size size (in entries) of the cache
+     */
+    public synchronized void setLeafDirectoryCacheSize(int size) {
+        leafCacheSize = size;
+        state.leafCache.setCapacity(size);
+    }
+
+    /**
+     * Start or stop collecting ReaderStats
+     * 
+     * The stats are recorded for directory lookups, the leaf directory cache, reads, de-compression and re-reads
+     * because the source changed. If the channel is an UrlFileChannel the stats are attached to it too, so that the
+     * requests it makes are recorded. A ReaderStats instance can be shared by multiple Readers. When no stats are set
+     * the overhead is a check for null.
+     * 
+     * @param stats the ReaderStats to record in or null to stop collecting
+     */
+    public synchronized void setStats(@Nullable ReaderStats stats) {
+        this.stats = stats;
+        if (channel instanceof UrlFileChannel) {
+            ((UrlFileChannel) channel).setStats(stats);
+        }
+        state.leafCache.setEvictionListener(evictionListener(stats));
+    }
+
+    /**
+     * Create a listener that records leaf directory cache evictions
+     * 
+     * @param stats the ReaderStats to record in or null
+     * @return a Runnable or null if stats is null
+     */
+    @Nullable
+    private static Runnable evictionListener(@Nullable final ReaderStats stats) {
+        return stats == null ? null : new Runnable() {
+            @Override
+            public void run() {
+                stats.leafCacheEviction();
+            }
+        };
+    }
+
+    /**
+     * Get the ReaderStats currently being collected
+     * 
+     * @return the ReaderStats or null if not collecting
+     */
+    @Nullable
+    public ReaderStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Set the maximum size of the tile cache in bytes
+     * 
+     * The tile cache is shared by all tiles retrieved from this Reader and is keyed by the offset of the tile data, so
+     * de-duplicated tiles only occupy one entry. The size includes a small per entry overhead. By default the cache is
+     * disabled and only the last de-duplicated tile is retained.
+     * 
+     * @param size maximum size of the cache in bytes, 0 disables the cache
+     */
+    public synchronized void setTileCacheSize(long size) {
+        tileCacheSize = size;
+        final State current = state;
+        ConcurrentCache<Long, byte[]> tiles = current.tileCache;
+        if (size <= 0) {
+            state = current.withTileCache(null);
+            State.retire(tiles);
+        } else if (tiles == null) {
+            state = current.withTileCache(budgeted(newTileCache(size)));
+        } else {
+            tiles.setCapacity(size);
+        }
+    }
+
+    /**
+     * Set the maximum size of the cache of de-compressed tiles used by getDecodedTile in bytes
+     * 
+     * The cache is keyed by the offset of the tile data, so de-duplicated tiles only occupy one entry. The size
+     * includes a small per entry overhead. The default is 8MB.
+     * 
+     * @param size maximum size of the cache in bytes, 0 disables the cache
+     */
+    public synchronized void setDecodedTileCacheSize(long size) {
+        decodedTileCacheSize = size;
+        final State current = state;
+        ConcurrentCache<Long, byte[]> decoded = current.decodedTileCache;
+        if (size <= 0) {
+            state = current.withDecodedTileCache(null);
+            State.retire(decoded);
+        } else if (decoded == null) {
+            state = current.withDecodedTileCache(budgeted(newTileCache(size)));
+        } else {
+            decoded.setCapacity(size);
+        }
+    }
+
+    /**
+     * Create a cache for tile contents bounded by their total size
+     * 
+     * @param size maximum size of the cache in bytes
+     * @return a new ConcurrentCache
+     */
+    @NotNull
+    private static ConcurrentCache<Long, byte[]> newTileCache(long size) {
+        return new ConcurrentCache<>(size, TILE_WEIGHER);
+    }
+
+    /**
+     * Attach a new tile cache to the cache budget if one is set
+     * 
+     * @param cache the ConcurrentCache
+     * @return cache
+     */
+    @NotNull
+    private ConcurrentCache<Long, byte[]> budgeted(@NotNull ConcurrentCache<Long, byte[]> cache) {
+        CacheBudget budget = cacheBudget;
+        if (budget != null) {
+            cache.setBudget(budget, TILE_WEIGHER);
+        }
+        return cache;
+    }
+
+    /**
+     * Set a memory budget shared with other Readers
+     * 
+     * The leaf directory cache, the tile cache and the cache of de-compressed tiles are charged to the budget with the
+     * estimated size of their entries and entries are evicted if the total size of the caches of all Readers using the
+     * budget exceeds it, see CacheBudget. The caches are cleared when the budget is changed.
+     * 
+     * @param budget the CacheBudget or null to only use the limits of this Reader
+     */
+    public synchronized void setCacheBudget(@Nullable CacheBudget budget) {
+        cacheBudget = budget;
+        final State current = state;
+        current.leafCache.setBudget(budget, budget != null ? DIRECTORY_WEIGHER : null);
+        ConcurrentCache<Long, byte[]> tiles = current.tileCache;
+        if (tiles != null) {
+            tiles.setBudget(budget, budget != null ? TILE_WEIGHER : null);
+        }
+        ConcurrentCache<Long, byte[]> decoded = current.decodedTileCache;
+        if (decoded != null) {
+            decoded.setBudget(budget, budget != null ? TILE_WEIGHER : null);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (cacheBudget != null) {
+            setCacheBudget(null);
+        }
+        try {
+            synchronized (this) {
+                if (asyncChannel != null) {
+                    asyncChannel.close();
+                }
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Get the offset for the Hilbert curve based id for a zoom level
+     * 
+     * @param z the zoom level
+     * @return the accumulated number of tiles up to, but not including zoom z
+     */
+    static long getZoomOffset(int z) {
+        return Hilbert.zoomOffset(z);
     }
 }
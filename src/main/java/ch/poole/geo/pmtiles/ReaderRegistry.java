@@ -0,0 +1,280 @@
+package ch.poole.geo.pmtiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Registry for a large number of local PMTiles archives
+ *
+ * Archives are registered by name and a Reader is only created when the archive is first used. The Readers use a
+ * ReopenableFileChannel, so the file descriptors of archives that haven't been accessed for the idle timeout are
+ * released and files are re-opened transparently on the next access. The leaf directory caches and tile caches of all
+ * Readers are charged to a single CacheBudget, so the total memory used for caching is bounded independently of the
+ * number of archives.
+ *
+ * Usage:
+ *
+ * <pre>
+ * try (ReaderRegistry registry = new ReaderRegistry(256L * 1024 * 1024, 60000)) {
+ *     registry.register("firenze", new File("firenze.pmtiles"));
+ *     ...
+ *     byte[] tile = registry.get("firenze").getTile(13, 4350, 2984);
+ * }
+ * </pre>
+ *
+ * @author simon
+ *
+ */
+public class ReaderRegistry implements AutoCloseable {
+
+    /**
+     * A registered archive
+     */
+    private static final class Entry {
+        final File            file;
+        ReopenableFileChannel channel; // guarded by this
+        Reader                reader;  // guarded by this
+        boolean               closed;  // guarded by this
+
+        /**
+         * Construct a new instance
+         *
+         * @param file the PMTiles file
+         */
+        Entry(@NotNull File file) {
+            this.file = file;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final CacheBudget                      budget;
+    private final long                             idleNanos;
+    private final ScheduledExecutorService         idleCloser;
+    private volatile long                          tileCacheSize;
+
+    /**
+     * Construct a new registry
+     *
+     * If idleTimeout is larger than 0 a daemon thread checks for idle files every idleTimeout / 2 milliseconds.
+     *
+     * @param cacheBudget the maximum total size of the caches of all Readers in bytes
+     * @param idleTimeout the time in milliseconds after which unused files are closed, 0 to only close them when
+     *            closeIdle is called
+     */
+    public ReaderRegistry(long cacheBudget, long idleTimeout) {
+        budget = new CacheBudget(cacheBudget);
+        tileCacheSize = cacheBudget;
+        idleNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+        if (idleTimeout > 0) {
+            idleCloser = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "pmtiles-registry");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            final long period = Math.max(1, idleTimeout / 2);
+            idleCloser.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    closeIdle();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            idleCloser = null;
+        }
+    }
+
+    /**
+     * Register an archive, the file is not opened until the archive is used
+     *
+     * If an archive with the same name is already registered it is replaced and its Reader is closed.
+     *
+     * @param name the name of the archive
+     * @param file the PMTiles file
+     * @throws IOException if closing a replaced Reader fails
+     */
+    public void register(@NotNull String name, @NotNull File file) throws IOException {
+        close(entries.put(name, new Entry(file)));
+    }
+
+    /**
+     * Remove an archive and close its Reader
+     *
+     * @param name the name of the archive
+     * @return true if the archive was registered
+     * @throws IOException if closing the Reader fails
+     */
+    public boolean unregister(@NotNull String name) throws IOException {
+        Entry entry = entries.remove(name);
+        close(entry);
+        return entry != null;
+    }
+
+    /**
+     * Get the names of the registered archives
+     *
+     * @return an unmodifiable Set of names
+     */
+    @NotNull
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * Get the Reader for an archive, creating it if necessary
+     *
+     * The Reader is owned by the registry and must not be closed by the caller.
+     *
+     * @param name the name of the archive
+     * @return the Reader or null if no archive with the name is registered
+     * @throws IOException if the file can't be opened or isn't a valid PMTiles archive
+     */
+    @Nullable
+    public Reader get(@NotNull String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (entry) {
+            if (entry.closed) {
+                return null;
+            }
+            if (entry.reader == null) {
+                ReopenableFileChannel channel = new ReopenableFileChannel(entry.file);
+                try {
+                    Reader reader = new Reader(channel);
+                    reader.setLeafDirectoryCacheSize(Integer.MAX_VALUE);
+                    reader.setCacheBudget(budget);
+                    reader.setTileCacheSize(tileCacheSize);
+                    entry.channel = channel;
+                    entry.reader = reader;
+                } catch (IOException | RuntimeException e) {
+                    channel.close();
+                    throw e;
+                }
+            }
+            return entry.reader;
+        }
+    }
+
+    /**
+     * Set the maximum size of the tile cache of each Reader
+     *
+     * By default the tile caches are only limited by the cache budget, 0 disables tile caching. This applies to Readers
+     * created after the call.
+     *
+     * @param size the size in bytes
+     */
+    public void setTileCacheSize(long size) {
+        tileCacheSize = size;
+    }
+
+    /**
+     * Get the CacheBudget shared by all Readers
+     *
+     * @return the CacheBudget
+     */
+    @NotNull
+    public CacheBudget getCacheBudget() {
+        return budget;
+    }
+
+    /**
+     * Close the files of archives that haven't been accessed for the idle timeout
+     *
+     * The Readers and their caches are retained, the files are re-opened on the next access.
+     *
+     * @return the number of files closed
+     */
+    public int closeIdle() {
+        int closed = 0;
+        for (Entry entry : entries.values()) {
+            ReopenableFileChannel channel;
+            synchronized (entry) {
+                channel = entry.channel;
+            }
+            try {
+                if (channel != null && channel.closeIfIdle(idleNanos)) {
+                    closed++;
+                }
+            } catch (IOException e) {
+                // the channel will be re-opened on the next access anyway
+            }
+        }
+        return closed;
+    }
+
+    /**
+     * Get the number of files that are currently open
+     *
+     * @return the number of open files
+     */
+    public int getOpenFiles() {
+        int open = 0;
+        for (Entry entry : entries.values()) {
+            ReopenableFileChannel channel;
+            synchronized (entry) {
+                channel = entry.channel;
+            }
+            if (channel != null && channel.isFileOpen()) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    /**
+     * Close the Reader of an entry
+     *
+     * @param entry the Entry or null
+     * @throws IOException if closing fails
+     */
+    private static void close(@Nullable Entry entry) throws IOException {
+        if (entry == null) {
+            return;
+        }
+        Reader reader;
+        synchronized (entry) {
+            reader = entry.reader;
+            entry.reader = null;
+            entry.channel = null;
+            entry.closed = true;
+        }
+        if (reader != null) {
+            reader.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (idleCloser != null) {
+            idleCloser.shutdownNow();
+        }
+        IOException exception = null;
+        List<String> names = new ArrayList<>(entries.keySet());
+        for (String name : names) {
+            try {
+                unregister(name);
+            } catch (IOException e) {
+                exception = e;
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package ch.poole.geo.pmtiles;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Counters and latency histograms for the internals of a Reader and its channel
+ *
+ * An instance is attached with Reader.setStats, which also attaches it to the channel if that is an UrlFileChannel.
+ * When no instance is attached the only cost on the hot paths is a check for null. An instance can be shared between
+ * multiple Readers to collect aggregated values. All values are updated without locking and can be read at any time,
+ * the values are not a consistent snapshot.
+ *
+ * Usage:
+ *
+ * <pre>
+ * ReaderStats stats = new ReaderStats();
+ * reader.setStats(stats);
+ * ...
+ * long misses = stats.getLeafCacheMisses();
+ * long p99 = stats.getDirectoryLookupLatency().getPercentile(0.99);
+ * </pre>
+ *
+ * @author simon
+ *
+ */
+public final class ReaderStats {
+
+    /**
+     * Histogram with buckets for powers of 2
+     *
+     * Bucket 0 counts the value 0, bucket i the values from 2^(i-1) to 2^i - 1.
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong      count   = new AtomicLong();
+        private final AtomicLong      total   = new AtomicLong();
+
+        /**
+         * Add a value
+         *
+         * @param value the value, negative values are counted as 0
+         */
+        void record(long value) {
+            final long v = Math.max(0, value);
+            buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(v));
+            count.incrementAndGet();
+            total.addAndGet(v);
+        }
+
+        /**
+         * Get the number of values
+         *
+         * @return the number of values
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * Get the sum of all values
+         *
+         * @return the sum of the values
+         */
+        public long getTotal() {
+            return total.get();
+        }
+
+        /**
+         * Get the mean of all values
+         *
+         * @return the mean or 0 if there are no values
+         */
+        public double getMean() {
+            final long c = count.get();
+            return c == 0 ? 0 : total.get() / (double) c;
+        }
+
+        /**
+         * Get the counts per bucket
+         *
+         * @return an array with 64 elements, element i counting the values less than 2^i and not counted in i - 1
+         */
+        @NotNull
+        public long[] getBuckets() {
+            long[] result = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                result[i] = buckets.get(i);
+            }
+            return result;
+        }
+
+        /**
+         * Get an upper bound for a percentile
+         *
+         * @param fraction the percentile as a fraction between 0 and 1, for example 0.99
+         * @return the upper limit of the bucket containing the percentile or 0 if there are no values
+         */
+        public long getPercentile(double fraction) {
+            long[] counts = getBuckets();
+            long sum = 0;
+            for (long c : counts) {
+                sum += c;
+            }
+            final long rank = (long) Math.ceil(Math.max(0, Math.min(1, fraction)) * sum);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return i == 0 ? 0 : (i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Reset the histogram
+         */
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            total.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return "count " + getCount() + " mean " + Math.round(getMean()) + " p50 " + getPercentile(0.5) + " p99 " + getPercentile(0.99);
+        }
+    }
+
+    private final Histogram  directoryLookups   = new Histogram();
+    private final Histogram  leafLoads          = new Histogram();
+    private final AtomicLong leafCacheHits      = new AtomicLong();
+    private final AtomicLong leafCacheMisses    = new AtomicLong();
+    private final AtomicLong leafCacheEvictions = new AtomicLong();
+    private final AtomicLong reads              = new AtomicLong();
+    private final AtomicLong bytesRead          = new AtomicLong();
+    private final Histogram  requests           = new Histogram();
+    private final AtomicLong requestBytes       = new AtomicLong();
+    private final AtomicLong retries            = new AtomicLong();
+    private final AtomicLong hedgedRequests     = new AtomicLong();
+    private final Histogram  decompressions     = new Histogram();
+    private final AtomicLong sourceChanges      = new AtomicLong();
+
+    /**
+     * Record a directory lookup
+     *
+     * @param nanos the time the lookup took including reading leaf directories
+     */
+    void directoryLookup(long nanos) {
+        directoryLookups.record(nanos);
+    }
+
+    /**
+     * Record a leaf directory that was found in the cache
+     */
+    void leafCacheHit() {
+        leafCacheHits.incrementAndGet();
+    }
+
+    /**
+     * Record a leaf directory that had to be loaded
+     *
+     * @param nanos the time reading and decoding the leaf directory took
+     */
+    void leafCacheMiss(long nanos) {
+        leafCacheMisses.incrementAndGet();
+        leafLoads.record(nanos);
+    }
+
+    /**
+     * Record a leaf directory that was evicted from the cache
+     */
+    void leafCacheEviction() {
+        leafCacheEvictions.incrementAndGet();
+    }
+
+    /**
+     * Record a read from the channel or mapping of the Reader
+     *
+     * @param length the number of bytes read
+     */
+    void read(long length) {
+        reads.incrementAndGet();
+        bytesRead.addAndGet(length);
+    }
+
+    /**
+     * Record a request made by an UrlFileChannel
+     *
+     * @param nanos the time the request took
+     * @param length the number of bytes received
+     */
+    void request(long nanos, long length) {
+        requests.record(nanos);
+        requestBytes.addAndGet(length);
+    }
+
+    /**
+     * Record a request that is retried after a transient failure
+     */
+    void retry() {
+        retries.incrementAndGet();
+    }
+
+    /**
+     * Record a duplicate request sent because the original was slow
+     */
+    void hedge() {
+        hedgedRequests.incrementAndGet();
+    }
+
+    /**
+     * Record a de-compression
+     *
+     * @param nanos the time de-compressing took
+     */
+    void decompression(long nanos) {
+        decompressions.record(nanos);
+    }
+
+    /**
+     * Record that the header and root directory were re-read because the source changed
+     */
+    void sourceChanged() {
+        sourceChanges.incrementAndGet();
+    }
+
+    /**
+     * Get the latencies of finding tiles in the directories, including reading leaf directories
+     *
+     * @return a Histogram of nanoseconds
+     */
+    @NotNull
+    public Histogram getDirectoryLookupLatency() {
+        return directoryLookups;
+    }
+
+    /**
+     * Get the latencies of reading and decoding leaf directories that were not cached
+     *
+     * @return a Histogram of nanoseconds
+     */
+    @NotNull
+    public Histogram getLeafLoadLatency() {
+        return leafLoads;
+    }
+
+    /**
+     * Get the number of lookups that found the leaf directory in the cache
+     *
+     * @return the number of hits
+     */
+    public long getLeafCacheHits() {
+        return leafCacheHits.get();
+    }
+
+    /**
+     * Get the number of lookups that needed to read a leaf directory
+     *
+     * @return the number of misses
+     */
+    public long getLeafCacheMisses() {
+        return leafCacheMisses.get();
+    }
+
+    /**
+     * Get the number of leaf directories evicted from the cache
+     *
+     * @return the number of evictions
+     */
+    public long getLeafCacheEvictions() {
+        return leafCacheEvictions.get();
+    }
+
+    /**
+     * Get the number of reads by the Reader
+     *
+     * @return the number of reads
+     */
+    public long getReads() {
+        return reads.get();
+    }
+
+    /**
+     * Get the number of bytes read by the Reader
+     *
+     * @return the number of bytes
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * Get the latencies of the requests made by the channel
+     *
+     * @return a Histogram of nanoseconds
+     */
+    @NotNull
+    public Histogram getRequestLatency() {
+        return requests;
+    }
+
+    /**
+     * Get the number of bytes received by the channel
+     *
+     * @return the number of bytes
+     */
+    public long getRequestBytes() {
+        return requestBytes.get();
+    }
+
+    /**
+     * Get the number of requests the channel retried after a transient failure
+     *
+     * @return the number of retries
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Get the number of duplicate requests the channel sent because the original request was slow
+     *
+     * @return the number of hedged requests
+     */
+    public long getHedgedRequests() {
+        return hedgedRequests.get();
+    }
+
+    /**
+     * Get the de-compression times of directories, metadata and decoded tiles
+     *
+     * @return a Histogram of nanoseconds
+     */
+    @NotNull
+    public Histogram getDecompressionLatency() {
+        return decompressions;
+    }
+
+    /**
+     * Get the number of times the header and root directory were re-read because the source changed
+     *
+     * @return the number of re-initializations
+     */
+    public long getSourceChanges() {
+        return sourceChanges.get();
+    }
+
+    /**
+     * Reset all values
+     */
+    public void reset() {
+        directoryLookups.reset();
+        leafLoads.reset();
+        leafCacheHits.set(0);
+        leafCacheMisses.set(0);
+        leafCacheEvictions.set(0);
+        reads.set(0);
+        bytesRead.set(0);
+        requests.reset();
+        requestBytes.set(0);
+        retries.set(0);
+        hedgedRequests.set(0);
+        decompressions.reset();
+        sourceChanges.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "lookups " + directoryLookups + "\nleaf cache hits " + getLeafCacheHits() + " misses " + getLeafCacheMisses() + " evictions "
+                + getLeafCacheEvictions() + "\nleaf loads " + leafLoads + "\nreads " + getReads() + " bytes " + getBytesRead() + "\nrequests " + requests
+                + " bytes " + getRequestBytes() + " retries " + getRetries() + " hedged " + getHedgedRequests() + "\ndecompression " + decompressions
+                + "\nsource changes " + getSourceChanges();
+    }
+}
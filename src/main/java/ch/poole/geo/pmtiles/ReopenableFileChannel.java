@@ -0,0 +1,220 @@
+package ch.poole.geo.pmtiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Read-only FileChannel for a local file that releases the underlying file descriptor when idle
+ *
+ * The file is opened on the first access and can be closed with closeIfIdle when it hasn't been used for a while, it is
+ * then transparently re-opened by the next access. If the file has been replaced in the meantime, detected by a
+ * change of its size or modification time, the access throws a SourceChangedException so that the Reader re-reads the
+ * header and directories.
+ *
+ * @author simon
+ *
+ */
+public class ReopenableFileChannel extends FileChannel {
+
+    private static final String OPERATION_NOT_SUPPORTED = "Operation not supported";
+
+    private final File  file;
+    private FileChannel channel;      // guarded by this
+    private int         users;        // guarded by this
+    private long        lastUsed;     // guarded by this
+    private long        lastModified; // guarded by this
+    private long        length = -1;  // guarded by this
+    private long        position = 0;
+
+    /**
+     * Construct a new instance, the file is only opened on first access
+     *
+     * @param file the file
+     */
+    public ReopenableFileChannel(@NotNull File file) {
+        this.file = file;
+    }
+
+    /**
+     * Close the underlying FileChannel if it hasn't been used for a while
+     *
+     * @param idleNanos the minimum time in nanoseconds since the last access
+     * @return true if the FileChannel was closed
+     * @throws IOException if closing fails
+     */
+    public synchronized boolean closeIfIdle(long idleNanos) throws IOException {
+        if (channel == null || users > 0 || System.nanoTime() - lastUsed < idleNanos) {
+            return false;
+        }
+        try {
+            channel.close();
+        } finally {
+            channel = null;
+        }
+        return true;
+    }
+
+    /**
+     * Check if the underlying FileChannel is currently open
+     *
+     * @return true if the file is open
+     */
+    public synchronized boolean isFileOpen() {
+        return channel != null;
+    }
+
+    /**
+     * Get the underlying FileChannel, opening the file if necessary, and mark it as in use
+     *
+     * @return the FileChannel
+     * @throws IOException if the file can't be opened
+     * @throws SourceChangedException if the file has changed since it was last opened
+     */
+    @NotNull
+    private synchronized FileChannel acquire() throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+        if (channel == null) {
+            channel = new RandomAccessFile(file, "r").getChannel(); // NOSONAR closing the channel will close the file
+            final long previousLength = length;
+            final long previousModified = lastModified;
+            length = file.length();
+            lastModified = file.lastModified();
+            if (previousLength >= 0 && (length != previousLength || lastModified != previousModified)) {
+                throw new SourceChangedException();
+            }
+        }
+        users++;
+        return channel;
+    }
+
+    /**
+     * Mark the underlying FileChannel as no longer in use
+     */
+    private synchronized void release() {
+        users--;
+        lastUsed = System.nanoTime();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int count = read(dst, position);
+        if (count > 0) {
+            position += count;
+        }
+        return count;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long pos) throws IOException {
+        FileChannel c = acquire();
+        try {
+            return c.read(dst, pos);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public long transferTo(long pos, long count, WritableByteChannel target) throws IOException {
+        FileChannel c = acquire();
+        try {
+            return c.transferTo(pos, count, target);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public long size() throws IOException {
+        FileChannel c = acquire();
+        try {
+            return c.size();
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public long position() throws IOException {
+        return position;
+    }
+
+    @Override
+    public FileChannel position(long newPosition) throws IOException {
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        throw new UnsupportedOperationException(OPERATION_NOT_SUPPORTED);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        throw new UnsupportedOperationException(OPERATION_NOT_SUPPORTED);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        throw new UnsupportedOperationException(OPERATION_NOT_SUPPORTED);
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+        throw new UnsupportedOperationException(OPERATION_NOT_SUPPORTED);
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        throw new UnsupportedOperationException(OPERATION_NOT_SUPPORTED);
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        throw new UnsupportedOperationException(OPERATION_NOT_SUPPORTED);
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        throw new UnsupportedOperationException(OPERATION_NOT_SUPPORTED);
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        throw new UnsupportedOperationException(OPERATION_NOT_SUPPORTED);
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        throw new UnsupportedOperationException(OPERATION_NOT_SUPPORTED);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        throw new UnsupportedOperationException(OPERATION_NOT_SUPPORTED);
+    }
+
+    @Override
+    protected synchronized void implCloseChannel() throws IOException {
+        if (channel != null) {
+            try {
+                channel.close();
+            } finally {
+                channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package ch.poole.geo.pmtiles;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.RecursiveTask;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Fork/join task that visits a range of entries of a directory
+ *
+ * Ranges that contain more than one leaf directory are split in half, the upper half is processed with a forked
+ * visitor and merged in to the visitor of the lower half, so results are merged in tile id order along a balanced
+ * tree. Leaf directories are read directly without using the leaf directory cache and are recursively processed in
+ * the same way.
+ *
+ * @author simon
+ *
+ * @param <V> the type of the visitor
+ */
+final class ScanTask<V extends ScanVisitor<V>> extends RecursiveTask<V> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient Reader           reader;
+    private final transient Reader.Header    header;
+    private final transient Reader.Directory directory;
+    private final int                        from;
+    private final int                        to;
+    private final transient V                visitor;
+
+    /**
+     * Construct a new task
+     *
+     * @param reader the Reader
+     * @param header the PMTiles header the directory belongs to
+     * @param directory the directory
+     * @param from index of the first entry to visit
+     * @param to index after the last entry to visit
+     * @param visitor the visitor
+     */
+    ScanTask(@NotNull Reader reader, @NotNull Reader.Header header, @NotNull Reader.Directory directory, int from, int to, @NotNull V visitor) {
+        this.reader = reader;
+        this.header = header;
+        this.directory = directory;
+        this.from = from;
+        this.to = to;
+        this.visitor = visitor;
+    }
+
+    @Override
+    protected V compute() {
+        if (to - from > 1 && leafCount() > 1) {
+            final int middle = (from + to) >>> 1;
+            ScanTask<V> upper = new ScanTask<>(reader, header, directory, middle, to, visitor.fork());
+            upper.fork();
+            new ScanTask<>(reader, header, directory, from, middle, visitor).compute();
+            visitor.merge(upper.join());
+            return visitor;
+        }
+        for (int i = from; i < to; i++) {
+            if (directory.isLeaf(i)) {
+                Reader.Directory leaf = reader.new Directory();
+                try {
+                    leaf.read(header.leafDirOffset + directory.offsets.get(i), directory.lengths.get(i), header.internalCompression);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                new ScanTask<>(reader, header, leaf, 0, leaf.ids.size(), visitor).compute();
+            } else {
+                visitor.visit(directory.ids.get(i), directory.runLengths.get(i), directory.offsets.get(i), directory.lengths.get(i));
+            }
+        }
+        return visitor;
+    }
+
+    /**
+     * Count the leaf directories in our range, stopping at 2
+     *
+     * @return the number of leaf directories, at most 2
+     */
+    private int leafCount() {
+        int count = 0;
+        for (int i = from; i < to && count < 2; i++) {
+            if (directory.isLeaf(i)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,45 @@
+package ch.poole.geo.pmtiles;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Visitor for the tile entries of an archive used by Reader.scan
+ *
+ * The archive is partitioned by leaf directory and the partitions are processed in parallel. Each partition gets its
+ * own visitor created with fork, so an individual instance is only used by one thread at a time and doesn't need to
+ * be thread safe. When partitions have been processed their visitors are merged, the visitor on which merge is called
+ * always covers tile ids that are lower than those of the visitor that is merged in to it.
+ *
+ * @author simon
+ *
+ * @param <V> the type of the visitor
+ */
+public interface ScanVisitor<V extends ScanVisitor<V>> {
+
+    /**
+     * Create a new, empty, visitor for a partition
+     *
+     * @return a new visitor
+     */
+    @NotNull
+    V fork();
+
+    /**
+     * Visit a directory entry pointing to tile data
+     *
+     * Within a partition entries are visited in tile id order.
+     *
+     * @param tileId the tile id of the first tile of the entry
+     * @param runLength the number of consecutive tile ids that share the tile data, at least 1
+     * @param offset the offset of the tile data relative to the start of the tile data section
+     * @param length the length of the tile data
+     */
+    void visit(long tileId, long runLength, long offset, long length);
+
+    /**
+     * Add the results of another visitor to this one
+     *
+     * @param other the visitor for the partition immediately following the partition(s) of this visitor
+     */
+    void merge(@NotNull V other);
+}
@@ -0,0 +1,212 @@
+package ch.poole.geo.pmtiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Local file containing a fully decoded directory in a fixed width layout that can be memory mapped
+ *
+ * Layout, all values little endian:
+ *
+ * <pre>
+ * 0   magic "PMTX"
+ * 4   int format version
+ * 8   long size of the source or -1 if unknown
+ * 16  long number of entries
+ * 24  int length of the ETag in bytes or -1 if unknown
+ * 28  the 127 byte PMTiles header of the source
+ * 155 the UTF-8 encoded ETag
+ * followed, aligned to 8 bytes, by the ids, run lengths, lengths and offsets columns, each containing one long per
+ * entry
+ * </pre>
+ *
+ * The source size, ETag and header together identify the source the index was created from, an index that doesn't
+ * match the current source is ignored.
+ *
+ * @author simon
+ *
+ */
+final class SidecarIndex {
+
+    private static final int  MAGIC              = 0x58544d50;
+    private static final int  FORMAT_VERSION     = 1;
+    private static final int  VERSION_OFFSET     = 4;
+    private static final int  SIZE_OFFSET        = 8;
+    private static final int  ENTRIES_OFFSET     = 16;
+    private static final int  ETAG_LENGTH_OFFSET = 24;
+    private static final int  HEADER_OFFSET      = 28;
+    private static final int  COLUMNS            = 4;
+    private static final int  LONG_BYTES         = 8;
+    private static final int  WRITE_BUFFER_SIZE  = 64 * 1024;
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private SidecarIndex() {
+        // empty
+    }
+
+    /**
+     * Write a directory to a file
+     *
+     * The file is first written to a temporary file that then replaces file, the temporary file is removed if writing
+     * fails.
+     *
+     * @param file the file to write to
+     * @param directory the Directory, it shouldn't contain leaf directory entries
+     * @param header the PMTiles header of the source
+     * @param size the size of the source or -1 if unknown
+     * @param eTag the ETag of the source or null if unknown
+     * @throws IOException if writing fails
+     */
+    static void write(@NotNull File file, @NotNull Reader.Directory directory, @NotNull byte[] header, long size, @Nullable String eTag)
+            throws IOException {
+        final byte[] eTagBytes = eTag != null ? eTag.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        final int entries = directory.ids.size();
+        final int columnsOffset = columnsOffset(header.length, eTagBytes.length);
+        File temp = new File(file.getPath() + ".tmp");
+        boolean replaced = false;
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(temp, "rw"); FileChannel channel = raf.getChannel()) {
+                raf.setLength(0);
+                ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(size).putLong(entries).putInt(eTag != null ? eTagBytes.length : -1);
+                buffer.put(header).put(eTagBytes);
+                while (buffer.position() < columnsOffset) {
+                    buffer.put((byte) 0);
+                }
+                for (LongArray column : new LongArray[] { directory.ids, directory.runLengths, directory.lengths, directory.offsets }) {
+                    for (int i = 0; i < entries; i++) {
+                        if (buffer.remaining() < LONG_BYTES) {
+                            flush(buffer, channel);
+                        }
+                        buffer.putLong(column.get(i));
+                    }
+                }
+                flush(buffer, channel);
+                channel.force(true);
+            }
+            if ((file.exists() && !file.delete()) || !temp.renameTo(file)) {
+                throw new IOException("Unable to replace " + file);
+            }
+            replaced = true;
+        } finally {
+            if (!replaced) {
+                temp.delete(); // NOSONAR
+            }
+        }
+    }
+
+    /**
+     * Write the contents of a buffer to a channel and clear it
+     *
+     * @param buffer the ByteBuffer
+     * @param channel the FileChannel
+     * @throws IOException if writing fails
+     */
+    private static void flush(@NotNull ByteBuffer buffer, @NotNull FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Map a directory from a file
+     *
+     * @param file the file to read from
+     * @param reader the Reader the directory is for
+     * @param header the PMTiles header of the source
+     * @param size the size of the source or -1 if unknown
+     * @param eTag the ETag of the source or null if unknown
+     * @return the Directory or null if the file doesn't exist, isn't an index file or doesn't match the source
+     * @throws IOException if reading fails
+     */
+    @Nullable
+    static Reader.Directory map(@NotNull File file, @NotNull Reader reader, @NotNull byte[] header, long size, @Nullable String eTag) throws IOException {
+        return map(file, reader, header, size, eTag, MappedLongArray.DEFAULT_CHUNK_SHIFT);
+    }
+
+    /**
+     * Map a directory from a file
+     *
+     * @param file the file to read from
+     * @param reader the Reader the directory is for
+     * @param header the PMTiles header of the source
+     * @param size the size of the source or -1 if unknown
+     * @param eTag the ETag of the source or null if unknown
+     * @param chunkShift the log2 of the maximum number of entries per mapping
+     * @return the Directory or null if the file doesn't exist, isn't an index file or doesn't match the source
+     * @throws IOException if reading fails
+     */
+    @Nullable
+    static Reader.Directory map(@NotNull File file, @NotNull Reader reader, @NotNull byte[] header, long size, @Nullable String eTag, int chunkShift)
+            throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            final long fileLength = channel.size();
+            final int prefixLength = HEADER_OFFSET + header.length;
+            if (fileLength < prefixLength) {
+                return null;
+            }
+            ByteBuffer prefix = ByteBuffer.allocate(prefixLength).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(prefix, 0);
+            byte[] storedHeader = new byte[header.length];
+            prefix.position(HEADER_OFFSET);
+            prefix.get(storedHeader);
+            final long storedSize = prefix.getLong(SIZE_OFFSET);
+            final long entries = prefix.getLong(ENTRIES_OFFSET);
+            final int eTagLength = prefix.getInt(ETAG_LENGTH_OFFSET);
+            if (prefix.getInt(0) != MAGIC || prefix.getInt(VERSION_OFFSET) != FORMAT_VERSION || !Arrays.equals(header, storedHeader)
+                    || (storedSize >= 0 && size >= 0 && storedSize != size) || entries < 0 || entries > Integer.MAX_VALUE
+                    || entries > fileLength / (COLUMNS * LONG_BYTES) || eTagLength > fileLength) {
+                return null;
+            }
+            if (eTagLength >= 0 && eTag != null) {
+                ByteBuffer eTagBuffer = ByteBuffer.allocate(eTagLength);
+                channel.read(eTagBuffer, prefixLength);
+                if (!eTag.equals(new String(eTagBuffer.array(), StandardCharsets.UTF_8))) {
+                    return null;
+                }
+            }
+            final long columnLength = entries * LONG_BYTES;
+            final long columnsOffset = columnsOffset(header.length, Math.max(0, eTagLength));
+            if (fileLength != columnsOffset + COLUMNS * columnLength) {
+                return null;
+            }
+            MappedLongArray[] columns = new MappedLongArray[COLUMNS];
+            for (int i = 0; i < COLUMNS; i++) {
+                columns[i] = MappedLongArray.map(channel, columnsOffset + i * columnLength, (int) entries, chunkShift);
+            }
+            Reader.Directory directory = reader.new Directory();
+            directory.ids = columns[0];
+            directory.runLengths = columns[1];
+            directory.lengths = columns[2];
+            directory.offsets = columns[3];
+            return directory;
+        }
+    }
+
+    /**
+     * Calculate the offset of the first column
+     *
+     * @param headerLength the length of the PMTiles header
+     * @param eTagLength the length of the encoded ETag
+     * @return the offset aligned to 8 bytes
+     */
+    private static int columnsOffset(int headerLength, int eTagLength) {
+        return (HEADER_OFFSET + headerLength + eTagLength + LONG_BYTES - 1) & -LONG_BYTES;
+    }
+}
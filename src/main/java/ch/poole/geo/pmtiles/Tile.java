@@ -0,0 +1,76 @@
+package ch.poole.geo.pmtiles;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A tile together with its coordinates
+ *
+ * @author simon
+ *
+ */
+public final class Tile {
+
+    private final int    zoom;
+    private final int    x;
+    private final int    y;
+    private final byte[] data;
+
+    /**
+     * Construct a new instance
+     *
+     * @param zoom zoom level
+     * @param x x tile coordinate
+     * @param y y tile coordinate
+     * @param data the, potentially compressed, tile contents
+     */
+    public Tile(int zoom, int x, int y, @NotNull byte[] data) {
+        this.zoom = zoom;
+        this.x = x;
+        this.y = y;
+        this.data = data;
+    }
+
+    /**
+     * Get the zoom level
+     *
+     * @return the zoom level
+     */
+    public int getZoom() {
+        return zoom;
+    }
+
+    /**
+     * Get the x tile coordinate
+     *
+     * @return the x coordinate
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * Get the y tile coordinate
+     *
+     * @return the y coordinate
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Get the, potentially compressed, tile contents
+     *
+     * De-duplicated tiles may share the same array, it must not be modified.
+     *
+     * @return the tile contents
+     */
+    @NotNull
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return zoom + "/" + x + "/" + y + " " + data.length + " bytes";
+    }
+}
@@ -0,0 +1,76 @@
+package ch.poole.geo.pmtiles;
+
+/**
+ * Immutable zoom, x, y tile coordinates (google/osm convention)
+ *
+ * @author simon
+ *
+ */
+public final class TileCoordinates {
+
+    private final int zoom;
+    private final int x;
+    private final int y;
+
+    /**
+     * Construct a new instance
+     *
+     * @param zoom zoom level
+     * @param x x tile coordinate
+     * @param y y tile coordinate
+     */
+    public TileCoordinates(int zoom, int x, int y) {
+        this.zoom = zoom;
+        this.x = x;
+        this.y = y;
+    }
+
+    /**
+     * Get the zoom level
+     *
+     * @return the zoom level
+     */
+    public int getZoom() {
+        return zoom;
+    }
+
+    /**
+     * Get the x tile coordinate
+     *
+     * @return the x coordinate
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * Get the y tile coordinate
+     *
+     * @return the y coordinate
+     */
+    public int getY() {
+        return y;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * zoom + x) + y;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof TileCoordinates)) {
+            return false;
+        }
+        TileCoordinates other = (TileCoordinates) obj;
+        return zoom == other.zoom && x == other.x && y == other.y;
+    }
+
+    @Override
+    public String toString() {
+        return zoom + "/" + x + "/" + y;
+    }
+}
@@ -0,0 +1,86 @@
+package ch.poole.geo.pmtiles;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The location of the data of a tile in a specific version of an archive
+ * 
+ * This allows servers to determine the length of the tile data and an identifier for it before writing it, see
+ * Reader.getTileHandle.
+ *
+ * @author simon
+ *
+ */
+public final class TileHandle {
+
+    private final Reader              reader;
+    private final Reader.State        state;
+    private final Reader.TileLocation location;
+
+    /**
+     * Construct a new instance
+     *
+     * @param reader the Reader the tile was found with
+     * @param state the State the tile was found in
+     * @param location the location of the tile data
+     */
+    TileHandle(@NotNull Reader reader, @NotNull Reader.State state, @NotNull Reader.TileLocation location) {
+        this.reader = reader;
+        this.state = state;
+        this.location = location;
+    }
+
+    /**
+     * Get the offset of the tile data in the archive
+     * 
+     * Tiles with identical contents that have been de-duplicated share the same offset.
+     *
+     * @return the offset
+     */
+    public long getOffset() {
+        return location.offset;
+    }
+
+    /**
+     * Get the length of the, potentially compressed, tile data
+     *
+     * @return the length in bytes
+     */
+    public int getLength() {
+        return location.length;
+    }
+
+    /**
+     * Get an identifier for the version of the archive the tile was found in
+     * 
+     * The value changes when the archive is replaced.
+     *
+     * @return a hexadecimal String
+     */
+    @NotNull
+    public String getArchiveVersion() {
+        return Long.toHexString(state.version);
+    }
+
+    /**
+     * Write the tile data to a WritableByteChannel
+     * 
+     * If the archive has changed since the tile was found, the Reader is reloaded and a SourceChangedException is
+     * thrown, the tile then needs to be retrieved again.
+     *
+     * @param target the channel to write the tile to
+     * @return the number of bytes written
+     * @throws IOException on read or write errors and similar issues
+     */
+    public long transferTo(@NotNull WritableByteChannel target) throws IOException {
+        try {
+            return reader.transferTile(state, location, target);
+        } catch (SourceChangedException sce) {
+            reader.reload(state);
+            throw sce;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package ch.poole.geo.pmtiles;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.NoSuchElementException;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Sequential iterator over all tiles in an archive or in a set of tile id ranges
+ *
+ * The directories are walked depth first, which returns the tiles in tile id order. If the iteration is restricted to
+ * ranges of tile ids, the ranges and the directory entries are merged, entries between ranges are skipped with a
+ * binary search and leaf directories that don't intersect a range are not read. Runs of de-duplicated tiles are
+ * expanded with the data read once.
+ *
+ * Tile data is read in chunks: when a tile isn't contained in the current chunk, the following entries of the same
+ * directory that are wanted and whose data follows closely are read together with it, up to the chunk size. For
+ * clustered archives this results in the tile data of each range being read with a few large reads. When iterating
+ * over all tiles leaf directories are read directly and discarded when they have been processed, otherwise the leaf
+ * directory cache of the Reader is used.
+ *
+ * As the methods can throw IOExceptions this doesn't implement java.util.Iterator. An iterator should only be used by
+ * one thread at a time and it isn't affected by the caches of the Reader. If the source changes during the iteration
+ * the SourceChangedException is propagated.
+ *
+ * Usage:
+ *
+ * <pre>
+ * TileIterator iterator = reader.getTileIterator();
+ * while (iterator.hasNext()) {
+ *     Tile tile = iterator.next();
+ *     ...
+ * }
+ * </pre>
+ *
+ * @author simon
+ *
+ */
+public final class TileIterator {
+
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Position in a directory
+     */
+    private static final class Position {
+        final Reader.Directory directory;
+        final long             end;
+        int                    index;
+
+        /**
+         * Construct a new instance positioned at the start of directory
+         *
+         * @param directory the Directory
+         * @param end the tile id after the last id that can be contained in the directory
+         */
+        Position(@NotNull Reader.Directory directory, long end) {
+            this.directory = directory;
+            this.end = end;
+        }
+    }
+
+    private final Reader          reader;
+    private final Reader.State    state;
+    private final Reader.Header   header;
+    private final int             chunkSize;
+    private final IdRanges        ranges;
+    private int                   range;
+    private final Deque<Position> stack = new ArrayDeque<>();
+
+    private ByteBuffer          chunk;
+    private long                chunkStart;
+    private Reader.TileLocation run;
+    private Reader.Directory    runDirectory;
+    private int                 runIndex;
+    private long                runId;
+    private long                runEnd;
+    private byte[]              runData;
+
+    /**
+     * Construct a new instance
+     *
+     * @param reader the Reader
+     * @param state the State of the Reader the iteration uses
+     * @param root the directory to start with
+     * @param chunkSize the maximum size of the reads of tile data in bytes
+     * @param ranges the tile id ranges to return tiles for or null for all tiles
+     */
+    TileIterator(@NotNull Reader reader, @NotNull Reader.State state, @NotNull Reader.Directory root, int chunkSize, @Nullable IdRanges ranges) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Illegal chunk size " + chunkSize);
+        }
+        this.reader = reader;
+        this.state = state;
+        this.header = state.header;
+        this.chunkSize = chunkSize;
+        this.ranges = ranges;
+        stack.push(new Position(root, Long.MAX_VALUE));
+    }
+
+    /**
+     * Check if there are more tiles
+     *
+     * @return true if next will return a tile
+     * @throws IOException if reading a leaf directory fails
+     */
+    public boolean hasNext() throws IOException {
+        while (true) {
+            if (run != null) {
+                if (clipRun()) {
+                    return true;
+                }
+                run = null;
+                runData = null;
+            }
+            Position position = stack.peek();
+            if (position == null) {
+                return false;
+            }
+            final Reader.Directory directory = position.directory;
+            final int size = directory.ids.size();
+            if (position.index >= size) {
+                stack.pop();
+                continue;
+            }
+            final int index = position.index++;
+            final long start = directory.ids.get(index);
+            final boolean leaf = directory.isLeaf(index);
+            final long end = !leaf ? start + directory.runLengths.get(index) : (index + 1 < size ? directory.ids.get(index + 1) : position.end);
+            if (ranges != null) {
+                while (range < ranges.size() && ranges.end(range) <= start) {
+                    range++;
+                }
+                if (range >= ranges.size()) {
+                    stack.clear();
+                    return false;
+                }
+                final long next = ranges.start(range);
+                if (next >= end) {
+                    // skip to the entry that could contain the start of the next range
+                    int skip = directory.ids.binarySearch(next);
+                    position.index = Math.max(position.index, skip >= 0 ? skip : -skip - 2);
+                    continue;
+                }
+            }
+            if (leaf) {
+                stack.push(new Position(getLeaf(directory, index), end));
+                continue;
+            }
+            run = directory.location(header, index);
+            runDirectory = directory;
+            runIndex = index;
+            runId = start;
+            runEnd = end;
+        }
+    }
+
+    /**
+     * Get a leaf directory
+     *
+     * @param directory the parent directory
+     * @param index the index of the entry for the leaf directory
+     * @return the leaf Directory
+     * @throws IOException if reading fails
+     */
+    @NotNull
+    private Reader.Directory getLeaf(@NotNull Reader.Directory directory, int index) throws IOException {
+        if (ranges != null) {
+            return directory.getLeaf(state, index);
+        }
+        Reader.Directory leaf = reader.new Directory();
+        leaf.read(header.leafDirOffset + directory.offsets.get(index), directory.lengths.get(index), header.internalCompression);
+        return leaf;
+    }
+
+    /**
+     * Move the current position in the current run to the next wanted tile id
+     *
+     * @return true if the run contains a further wanted tile
+     */
+    private boolean clipRun() {
+        if (runId >= runEnd) {
+            return false;
+        }
+        if (ranges == null) {
+            return true;
+        }
+        while (range < ranges.size() && ranges.end(range) <= runId) {
+            range++;
+        }
+        if (range >= ranges.size()) {
+            return false;
+        }
+        runId = Math.max(runId, ranges.start(range));
+        return runId < runEnd;
+    }
+
+    /**
+     * Get the next tile
+     *
+     * @return the next Tile
+     * @throws IOException if reading fails
+     * @throws NoSuchElementException if there are no more tiles
+     */
+    @NotNull
+    public Tile next() throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (runData == null) {
+            runData = readData(run);
+        }
+        TileCoordinates coordinates = Hilbert.tileIdToZxy(runId);
+        runId++;
+        return new Tile(coordinates.getZoom(), coordinates.getX(), coordinates.getY(), runData);
+    }
+
+    /**
+     * Read tile data from the current chunk, reading a new chunk if necessary
+     *
+     * Tiles before the current chunk, typically references to de-duplicated data, are read individually without
+     * replacing the chunk.
+     *
+     * @param location the location of the tile data
+     * @return the tile contents
+     * @throws IOException if reading fails
+     */
+    @NotNull
+    private byte[] readData(@NotNull Reader.TileLocation location) throws IOException {
+        if (chunk == null || location.offset < chunkStart || location.offset + location.length > chunkStart + chunk.limit()) {
+            if (chunk != null && location.offset < chunkStart) {
+                return Util.toArray(reader.read(location.offset, location.length, "tile"));
+            }
+            chunk = reader.read(location.offset, (int) (coalescedEnd(location) - location.offset), "tile data");
+            chunkStart = location.offset;
+        }
+        byte[] data = new byte[location.length];
+        ByteBuffer temp = chunk.duplicate();
+        temp.position((int) (location.offset - chunkStart));
+        temp.get(data);
+        return data;
+    }
+
+    /**
+     * Determine the end of a read starting with the current run
+     *
+     * Following entries of the same directory are included as long as they are wanted and their data follows within
+     * Reader.COALESCE_GAP bytes, for clustered archives entries that point backwards (de-duplicated data) are skipped.
+     *
+     * @param location the location of the tile data of the current run
+     * @return the offset after the last byte to read
+     */
+    private long coalescedEnd(@NotNull Reader.TileLocation location) {
+        long end = location.offset + location.length;
+        final boolean clustered = header.clustered == 1;
+        final int size = runDirectory.ids.size();
+        int k = range;
+        for (int j = runIndex + 1; j < size && !runDirectory.isLeaf(j); j++) {
+            final long id = runDirectory.ids.get(j);
+            if (ranges != null) {
+                while (k < ranges.size() && ranges.end(k) <= id) {
+                    k++;
+                }
+                if (k >= ranges.size() || ranges.start(k) >= id + runDirectory.runLengths.get(j)) {
+                    break;
+                }
+            }
+            final long offset = header.tileDataOffset + runDirectory.offsets.get(j);
+            final long length = runDirectory.lengths.get(j);
+            if (offset < location.offset) {
+                if (clustered) {
+                    continue;
+                }
+                break;
+            }
+            if (offset > end + Reader.COALESCE_GAP || offset + length - location.offset > chunkSize) {
+                break;
+            }
+            end = Math.max(end, offset + length);
+        }
+        return end;
+    }
+}
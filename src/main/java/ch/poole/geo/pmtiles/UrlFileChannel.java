@@ -8,6 +8,8 @@ import java.nio.channels.FileLock;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 
+import org.jetbrains.annotations.Nullable;
+
 /**
  * Abstract wrapper around a HTTP connection to implement a read-only FileChannel
  * 
@@ -16,12 +18,14 @@ import java.nio.channels.WritableByteChannel;
  */
 public abstract class UrlFileChannel extends FileChannel {
 
-    protected static final String RANGE_HEADER = "Range";
-    protected static final String ETAG_HEADER  = "ETag";
+    protected static final String RANGE_HEADER    = "Range";
+    protected static final String ETAG_HEADER     = "ETag";
+    protected static final String IF_MATCH_HEADER = "If-Match";
 
     private static final String OPERATION_NOT_SUPPORTED = "Operation not supported";
 
-    private long position = 0;
+    private long                 position = 0;
+    private volatile ReaderStats stats;
 
     @Override
     public int read(ByteBuffer dst) throws IOException {
@@ -33,6 +37,47 @@ public abstract class UrlFileChannel extends FileChannel {
     @Override
     public abstract int read(ByteBuffer dst, long pos) throws IOException;
 
+    /**
+     * Set the ReaderStats instance request counts and latencies are recorded in
+     * 
+     * This is called by Reader.setStats.
+     * 
+     * @param stats the ReaderStats or null to stop recording
+     */
+    public void setStats(@Nullable ReaderStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Get the ReaderStats instance requests should be recorded in
+     * 
+     * @return the ReaderStats or null if not recording
+     */
+    @Nullable
+    protected ReaderStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Get the ETag of the source
+     * 
+     * @return the ETag returned by the last request or null if unknown
+     */
+    @Nullable
+    public String getETag() {
+        return null;
+    }
+
+    /**
+     * Forget the ETag of the source
+     * 
+     * This is called by the Reader before it re-reads the header and root directory after a change has been detected,
+     * the next response then establishes the ETag of the new version.
+     */
+    public void resetETag() {
+        // nothing to reset by default
+    }
+
     @Override
     public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
         throw new UnsupportedOperationException(OPERATION_NOT_SUPPORTED);
@@ -2,16 +2,46 @@ package ch.poole.geo.pmtiles;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.InflaterInputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
 
 import org.jetbrains.annotations.NotNull;
 
 public final class Util {
 
+    private static final int GZIP_MAGIC          = 0x8b1f;
+    private static final int GZIP_DEFLATE        = 8;
+    private static final int GZIP_HEADER_LENGTH  = 10;
+    private static final int GZIP_TRAILER_LENGTH = 8;
+    private static final int FHCRC               = 2;
+    private static final int FEXTRA              = 4;
+    private static final int FNAME               = 8;
+    private static final int FCOMMENT            = 16;
+    private static final int MAX_DEFLATE_RATIO   = 1032;
+    private static final int MIN_OUTPUT_SIZE     = 1024;
+
+    /**
+     * Per thread Inflater for raw deflate data, avoids allocating an Inflater and its native state per call
+     */
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    /**
+     * Per thread input buffer for ByteBuffers that are not backed by an array
+     */
+    private static final ThreadLocal<byte[]> INPUT = new ThreadLocal<>();
+
     private Util() {
         throw new IllegalStateException("Utility class, can't be instantiated");
     }
@@ -19,27 +49,231 @@ public final class Util {
     /**
      * De-compress a ByteBuffer with the specified compression method
      * 
+     * The buffer can be heap, direct or memory mapped and its position and limit are respected.
+     * 
      * @param buffer the ByteBuffer to de-compress
      * @param compression the compression method (see Constants)
-     * @return either the original buffer is no de-compression is needed or the de-compressed data
+     * @return either the original buffer is no de-compression is needed or the de-compressed data positioned at 0
      * @throws IOException if de-compressing goes wrong
+     * @throws UnsupportedOperationException if there is no Codec for the compression method
      */
     static ByteBuffer decompress(@NotNull ByteBuffer buffer, byte compression) throws IOException {
-        if (compression != Constants.COMPRESSION_NONE) {
-            try (ByteArrayInputStream bis = new ByteArrayInputStream(buffer.array())) {
-                switch (compression) {
-                case Constants.COMPRESSION_GZIP:
-                    buffer = copy(new GZIPInputStream(bis));
-                    break;
-                case Constants.COMPRESSION_ZSTD:
-                    buffer = copy(new InflaterInputStream(bis));
-                    break;
-                default:
-                    throw new UnsupportedOperationException("Internal compression " + compression + " not supported");
+        return Codecs.decompress(buffer, compression);
+    }
+
+    /**
+     * De-compress gzip data
+     * 
+     * The gzip header is parsed here and the deflate data is inflated with a per thread Inflater directly in to an
+     * array sized from the ISIZE field of the trailer, so that typically the only allocation is the result. The CRC
+     * and size of each member are checked as with GZIPInputStream, concatenated members are supported and trailing
+     * data that isn't a gzip member is ignored.
+     * 
+     * @param buffer the ByteBuffer containing the gzip data
+     * @return a ByteBuffer with the de-compressed data
+     * @throws IOException if the data is not in gzip format or corrupt
+     */
+    @NotNull
+    static ByteBuffer gunzip(@NotNull ByteBuffer buffer) throws IOException {
+        final int length = buffer.remaining();
+        final byte[] input;
+        int offset;
+        if (buffer.hasArray()) {
+            input = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+        } else {
+            input = inputBuffer(length);
+            buffer.duplicate().get(input, 0, length);
+            offset = 0;
+        }
+        final int end = offset + length;
+        byte[] output = new byte[sizeHint(input, offset, end)];
+        int count = 0;
+        final Inflater inflater = INFLATER.get();
+        final CRC32 crc = new CRC32();
+        try {
+            do {
+                offset = skipHeader(input, offset, end);
+                inflater.reset();
+                inflater.setInput(input, offset, end - offset);
+                final int memberStart = count;
+                while (!inflater.finished()) {
+                    if (count == output.length) {
+                        output = Arrays.copyOf(output, Math.max(MIN_OUTPUT_SIZE, output.length * 2));
+                    }
+                    final int inflated = inflater.inflate(output, count, output.length - count);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new EOFException("Unexpected end of gzip data");
+                    }
+                    count += inflated;
+                }
+                offset = end - inflater.getRemaining();
+                if (end - offset < GZIP_TRAILER_LENGTH) {
+                    throw new EOFException("Missing gzip trailer");
                 }
+                crc.reset();
+                crc.update(output, memberStart, count - memberStart);
+                if ((int) crc.getValue() != getInt(input, offset) || count - memberStart != getInt(input, offset + 4)) {
+                    throw new ZipException("Corrupt gzip trailer");
+                }
+                offset += GZIP_TRAILER_LENGTH;
+            } while (end - offset >= GZIP_HEADER_LENGTH && getShort(input, offset) == GZIP_MAGIC);
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        } finally {
+            inflater.reset();
+        }
+        return ByteBuffer.wrap(output, 0, count);
+    }
+
+    /**
+     * Get the per thread input buffer, growing it if necessary
+     * 
+     * @param length the minimum length
+     * @return a byte array of at least length bytes
+     */
+    @NotNull
+    private static byte[] inputBuffer(int length) {
+        byte[] input = INPUT.get();
+        if (input == null || input.length < length) {
+            input = new byte[Math.max(length, MIN_OUTPUT_SIZE)];
+            INPUT.set(input);
+        }
+        return input;
+    }
+
+    /**
+     * Determine the initial size of the output from the ISIZE field of the last gzip member
+     * 
+     * ISIZE is only exact if there is a single member and is limited by the maximum deflate compression ratio so that
+     * a corrupt value doesn't cause a huge allocation.
+     * 
+     * @param input the gzip data
+     * @param offset the start of the gzip data
+     * @param end the end of the gzip data
+     * @return the size of the output buffer to allocate
+     */
+    private static int sizeHint(@NotNull byte[] input, int offset, int end) {
+        final int length = end - offset;
+        if (length < GZIP_HEADER_LENGTH + GZIP_TRAILER_LENGTH) {
+            return 1;
+        }
+        final long size = getInt(input, end - 4) & 0xFFFFFFFFL;
+        return (int) Math.max(1, Math.min(size, Math.min((long) length * MAX_DEFLATE_RATIO, Integer.MAX_VALUE - 8)));
+    }
+
+    /**
+     * Skip a gzip member header
+     * 
+     * @param input the gzip data
+     * @param offset the start of the header
+     * @param end the end of the gzip data
+     * @return the offset of the deflate data
+     * @throws IOException if the header is invalid
+     */
+    private static int skipHeader(@NotNull byte[] input, int offset, int end) throws IOException {
+        if (end - offset < GZIP_HEADER_LENGTH || getShort(input, offset) != GZIP_MAGIC) {
+            throw new ZipException("Not in GZIP format");
+        }
+        if (input[offset + 2] != GZIP_DEFLATE) {
+            throw new ZipException("Unsupported compression method");
+        }
+        final int flags = input[offset + 3] & 0xFF;
+        int pos = offset + GZIP_HEADER_LENGTH;
+        if ((flags & FEXTRA) != 0) {
+            if (end - pos < 2) {
+                throw new EOFException("Truncated gzip header");
+            }
+            pos += 2 + getShort(input, pos);
+        }
+        if ((flags & FNAME) != 0) {
+            pos = skipString(input, pos, end);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            pos = skipString(input, pos, end);
+        }
+        if ((flags & FHCRC) != 0) {
+            pos += 2;
+        }
+        if (pos > end) {
+            throw new EOFException("Truncated gzip header");
+        }
+        return pos;
+    }
+
+    /**
+     * Skip a zero terminated string
+     * 
+     * @param input the gzip data
+     * @param pos the start of the string
+     * @param end the end of the gzip data
+     * @return the offset after the terminating zero
+     * @throws IOException if the string isn't terminated
+     */
+    private static int skipString(@NotNull byte[] input, int pos, int end) throws IOException {
+        while (pos < end) {
+            if (input[pos++] == 0) {
+                return pos;
             }
         }
-        return buffer;
+        throw new EOFException("Truncated gzip header");
+    }
+
+    /**
+     * Get an unsigned little endian 16 bit value
+     * 
+     * @param input the data
+     * @param pos the position of the value
+     * @return the value
+     */
+    private static int getShort(@NotNull byte[] input, int pos) {
+        return (input[pos] & 0xFF) | (input[pos + 1] & 0xFF) << 8;
+    }
+
+    /**
+     * Get a little endian 32 bit value
+     * 
+     * @param input the data
+     * @param pos the position of the value
+     * @return the value
+     */
+    private static int getInt(@NotNull byte[] input, int pos) {
+        return getShort(input, pos) | getShort(input, pos + 2) << 16;
+    }
+
+    /**
+     * Get the remaining contents of a ByteBuffer as a byte array
+     * 
+     * If the buffer is backed by an array that exactly matches its contents that array is returned, otherwise the
+     * contents are copied. The position of the buffer is not changed.
+     * 
+     * @param buffer the ByteBuffer
+     * @return a byte array with the contents of the buffer
+     */
+    @NotNull
+    static byte[] toArray(@NotNull ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0 && buffer.remaining() == buffer.array().length) {
+            return buffer.array();
+        }
+        byte[] result = new byte[buffer.remaining()];
+        buffer.duplicate().get(result);
+        return result;
+    }
+
+    /**
+     * Get an InputStream for the remaining contents of a ByteBuffer
+     * 
+     * The contents are only copied if the buffer isn't backed by an array. The position of the buffer is not changed.
+     * 
+     * @param buffer the ByteBuffer
+     * @return an InputStream
+     */
+    @NotNull
+    static InputStream inputStream(@NotNull ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        return new ByteArrayInputStream(toArray(buffer));
     }
 
     /**
@@ -50,7 +284,7 @@ public final class Util {
      * @throws IOException if reading or writing fails
      */
     @NotNull
-    private static ByteBuffer copy(@NotNull InputStream is) throws IOException {
+    static ByteBuffer copy(@NotNull InputStream is) throws IOException {
         try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
             byte[] temp = new byte[1024];
             int len;
@@ -0,0 +1,48 @@
+package ch.poole.geo.pmtiles;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.jetbrains.annotations.NotNull;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdInputStream;
+
+/**
+ * Zstandard codec using zstd-jni
+ * 
+ * This is only instantiated by Codecs if zstd-jni is on the class path. If the frame header contains the content size
+ * the data is de-compressed in one call in to an array of that size, otherwise, or if that fails because the data
+ * consists of multiple frames, it is streamed.
+ * 
+ * @author simon
+ *
+ */
+final class ZstdCodec implements Codec {
+
+    private static final int MAX_RATIO = 1024;
+
+    @Override
+    public byte getCompression() {
+        return Constants.COMPRESSION_ZSTD;
+    }
+
+    @Override
+    @NotNull
+    public ByteBuffer decompress(@NotNull ByteBuffer buffer) throws IOException {
+        final byte[] input = Util.toArray(buffer);
+        final long size = Zstd.getFrameContentSize(input);
+        if (size >= 0 && size <= (long) input.length * MAX_RATIO && size < Integer.MAX_VALUE) {
+            byte[] output = new byte[(int) size];
+            final long result = Zstd.decompressByteArray(output, 0, output.length, input, 0, input.length);
+            if (!Zstd.isError(result) && result == size) {
+                return ByteBuffer.wrap(output);
+            }
+            // multiple frames or corrupt data, the stream will either handle it or report the error
+        }
+        try (InputStream is = new ZstdInputStream(Util.inputStream(buffer))) {
+            return Util.copy(is);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package ch.poole.geo.pmtiles;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Read-only FileChannel using java.net.http.HttpClient
+ * 
+ * All instances with the same connect timeout share one HttpClient and with that its connection pool. HTTP/2 is used
+ * if the server supports it, in which case concurrent reads are multiplexed over one connection. Changes of the source
+ * are detected via conditional requests and the ETag header in the same way as in HttpUrlConnectionChannel.
+ * Non-blocking reads are supported via readAsync.
+ * 
+ * This is the Java 11 implementation contained in the multi-release part of the jar.
+ * 
+ * @author simon
+ *
+ */
+public class HttpClientChannel extends UrlFileChannel implements AsyncChannel {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_READ_TIMEOUT    = 30000;
+
+    private static final ConcurrentMap<Integer, HttpClient> CLIENTS = new ConcurrentHashMap<>();
+
+    private final URI        uri;
+    private final HttpClient client;
+    private final Duration   readTimeout;
+    private volatile String  savedETag = null;
+
+    /**
+     * Check if HttpClientChannel can be used on this runtime
+     * 
+     * @return true, as this is the Java 11 implementation
+     */
+    public static boolean isSupported() {
+        return true;
+    }
+
+    /**
+     * Construct a new instance with default timeouts
+     * 
+     * @param url the URL of the PMTiles source
+     */
+    public HttpClientChannel(@NotNull URL url) {
+        this(url, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    /**
+     * Construct a new instance
+     * 
+     * @param url the URL of the PMTiles source
+     * @param connectTimeout connect timeout in milliseconds
+     * @param readTimeout timeout for a complete read in milliseconds
+     */
+    public HttpClientChannel(@NotNull URL url, int connectTimeout, int readTimeout) {
+        try {
+            uri = url.toURI();
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+        client = CLIENTS.computeIfAbsent(connectTimeout, timeout -> HttpClient.newBuilder().version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL).connectTimeout(Duration.ofMillis(timeout)).build());
+        this.readTimeout = Duration.ofMillis(readTimeout);
+    }
+
+    @Override
+    @Nullable
+    public String getETag() {
+        return savedETag;
+    }
+
+    @Override
+    public void resetETag() {
+        savedETag = null;
+    }
+
+    /**
+     * Read dst.remaining() bytes starting at pos in to dst
+     * 
+     * The position of dst is advanced by the number of bytes read.
+     */
+    @Override
+    public int read(ByteBuffer dst, long pos) throws IOException {
+        final int length = dst.remaining();
+        final long start = System.nanoTime();
+        try {
+            return copy(client.send(request(pos, length), HttpResponse.BodyHandlers.ofByteArray()), dst, pos, length, start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    @Override
+    public CompletableFuture<Integer> readAsync(ByteBuffer dst, long position) {
+        final int length = dst.remaining();
+        final long start = System.nanoTime();
+        return client.sendAsync(request(position, length), HttpResponse.BodyHandlers.ofByteArray()).thenApply(response -> {
+            try {
+                return copy(response, dst, position, length, start);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Create a range request, conditional on the ETag if it is known
+     * 
+     * @param pos start of the range
+     * @param length length of the range
+     * @return an HttpRequest
+     */
+    @NotNull
+    private HttpRequest request(long pos, int length) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri).timeout(readTimeout).header(RANGE_HEADER, "bytes=" + pos + "-" + (pos + length - 1));
+        final String expectedETag = savedETag;
+        if (expectedETag != null) {
+            builder.header(IF_MATCH_HEADER, expectedETag);
+        }
+        return builder.GET().build();
+    }
+
+    /**
+     * Check the response and copy its body to the destination buffer
+     * 
+     * @param response the HttpResponse
+     * @param dst the destination buffer
+     * @param pos start of the requested range
+     * @param length length of the requested range
+     * @param start System.nanoTime() when the request was started
+     * @return the number of bytes copied
+     * @throws IOException if the request failed
+     */
+    private int copy(@NotNull HttpResponse<byte[]> response, @NotNull ByteBuffer dst, long pos, int length, long start) throws IOException {
+        final int status = response.statusCode();
+        if (status == HttpURLConnection.HTTP_PRECON_FAILED) {
+            throw new SourceChangedException();
+        }
+        if (status != HttpURLConnection.HTTP_PARTIAL && status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Request for " + uri + " failed with status " + status);
+        }
+        String eTag = response.headers().firstValue(ETAG_HEADER).orElse(null);
+        if (eTag != null) {
+            String previous = savedETag;
+            savedETag = eTag;
+            if (previous != null && !eTag.equals(previous)) {
+                throw new SourceChangedException();
+            }
+        }
+        byte[] body = response.body();
+        // if the server ignored the range the complete file is returned
+        final int offset = status == HttpURLConnection.HTTP_OK && body.length > length ? (int) Math.min(pos, body.length) : 0;
+        final int count = Math.min(length, body.length - offset);
+        dst.put(body, offset, count);
+        final ReaderStats stats = getStats();
+        if (stats != null) {
+            stats.request(System.nanoTime() - start, count);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,488 @@
+package ch.poole.geo.pmtiles.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import ch.poole.geo.pmtiles.Constants;
+import ch.poole.geo.pmtiles.Reader;
+import ch.poole.geo.pmtiles.TileHandle;
+
+/**
+ * Tile server for one or more PMTiles archives based on the HTTP server included in the JDK
+ *
+ * Tiles are served as /{name}/{z}/{x}/{y} with an optional extension, for example /firenze/13/4350/2984.mvt, and a
+ * TileJSON document as /{name} or /{name}.json. Tiles are passed through as stored with a Content-Encoding header
+ * matching the tile compression of the archive, and a strong ETag derived from the version of the archive and the
+ * offset of the tile data, so that de-duplicated tiles share the same ETag and tiles get new ETags when the archive is
+ * replaced. Conditional requests with If-None-Match are answered with 304 Not Modified without reading the tile. Tile
+ * data is written to the response like with Reader.getTile(..., WritableByteChannel), that is with
+ * FileChannel.transferTo for local archives and directly from the mapping for memory mapped archives, without
+ * allocating an array for the complete tile.
+ *
+ * By default requests are handled on virtual threads if they are available (Java 21 and later), otherwise on a
+ * cached pool of daemon threads. The Readers are not closed when the server is stopped.
+ *
+ * This is packaged separately from the reader as com.sun.net.httpserver isn't available on Android.
+ *
+ * Usage:
+ *
+ * <pre>
+ * TileServer server = new TileServer(new InetSocketAddress(8080));
+ * server.add("firenze", new Reader(new File("firenze.pmtiles")));
+ * server.start();
+ * </pre>
+ *
+ * @author simon
+ *
+ */
+public class TileServer implements AutoCloseable {
+
+    private static final String GET                   = "GET";
+    private static final String HEAD                  = "HEAD";
+    private static final String JSON_EXTENSION        = ".json";
+    private static final String ETAG_HEADER           = "ETag";
+    private static final String IF_NONE_MATCH_HEADER  = "If-None-Match";
+    private static final String CONTENT_TYPE_HEADER   = "Content-Type";
+    private static final String CONTENT_ENCODING      = "Content-Encoding";
+    private static final String CONTENT_LENGTH_HEADER = "Content-Length";
+    private static final String CACHE_CONTROL_HEADER  = "Cache-Control";
+    private static final String HOST_HEADER           = "Host";
+    private static final String ALLOW_HEADER          = "Allow";
+    private static final String WEAK_PREFIX           = "W/";
+    private static final String JSON_CONTENT_TYPE     = "application/json; charset=utf-8";
+    private static final String TILEJSON_VERSION      = "3.0.0";
+
+    private static final Pattern HOST_PATTERN = Pattern.compile("(?:[A-Za-z0-9.-]+|\\[[0-9A-Fa-f:.]+\\])(?::[0-9]{1,5})?");
+
+    /**
+     * Default value of the Cache-Control header of tile responses
+     */
+    public static final String DEFAULT_CACHE_CONTROL = "public, max-age=86400";
+
+    private final HttpServer          server;
+    private final ExecutorService     ownExecutor;
+    private final Map<String, Reader> readers      = new ConcurrentHashMap<>();
+    private volatile String           cacheControl = DEFAULT_CACHE_CONTROL;
+    private volatile String           baseUrl;
+
+    /**
+     * Construct a new server handling requests on virtual threads if available
+     *
+     * @param address the address to listen on, port 0 selects a free port
+     * @throws IOException if the server can't be created
+     */
+    public TileServer(@NotNull InetSocketAddress address) throws IOException {
+        this(address, null);
+    }
+
+    /**
+     * Construct a new server
+     *
+     * @param address the address to listen on, port 0 selects a free port
+     * @param executor the Executor to handle requests on or null for the default
+     * @throws IOException if the server can't be created
+     */
+    public TileServer(@NotNull InetSocketAddress address, @Nullable Executor executor) throws IOException {
+        server = HttpServer.create(address, 0);
+        ownExecutor = executor == null ? defaultExecutor() : null;
+        server.setExecutor(executor != null ? executor : ownExecutor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                TileServer.this.handle(exchange);
+            }
+        });
+    }
+
+    /**
+     * Create an Executor that runs each request on a new virtual thread, falling back to a cached thread pool
+     *
+     * @return an ExecutorService
+     */
+    @NotNull
+    private static ExecutorService defaultExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "pmtiles-server");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Add an archive
+     *
+     * @param name the name the archive is served under, this must not contain a slash or end with .json
+     * @param reader the Reader for the archive
+     */
+    public void add(@NotNull String name, @NotNull Reader reader) {
+        if (name.isEmpty() || name.indexOf('/') >= 0 || name.endsWith(JSON_EXTENSION)) {
+            throw new IllegalArgumentException("Invalid name " + name);
+        }
+        readers.put(name, reader);
+    }
+
+    /**
+     * Remove an archive
+     *
+     * @param name the name the archive is served under
+     * @return the Reader for the archive or null if there was none
+     */
+    @Nullable
+    public Reader remove(@NotNull String name) {
+        return readers.remove(name);
+    }
+
+    /**
+     * Set the value of the Cache-Control header of tile responses
+     *
+     * @param cacheControl the value or null to not send the header, the default is DEFAULT_CACHE_CONTROL
+     */
+    public void setCacheControl(@Nullable String cacheControl) {
+        this.cacheControl = cacheControl;
+    }
+
+    /**
+     * Set the URL the tile URLs in TileJSON documents are relative to
+     *
+     * @param baseUrl the URL without a trailing slash, or null to use the Host header of the request
+     */
+    public void setBaseUrl(@Nullable String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * Start the server
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Get the address the server is listening on
+     *
+     * @return an InetSocketAddress
+     */
+    @NotNull
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Stop the server
+     *
+     * @param delay the maximum time in seconds to wait for current requests to finish
+     */
+    public void stop(int delay) {
+        server.stop(delay);
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    @Override
+    public void close() {
+        stop(0);
+    }
+
+    /**
+     * Handle a request
+     *
+     * @param exchange the HttpExchange
+     * @throws IOException if sending the response fails
+     */
+    private void handle(@NotNull HttpExchange exchange) throws IOException {
+        try {
+            final String method = exchange.getRequestMethod();
+            if (!GET.equals(method) && !HEAD.equals(method)) {
+                exchange.getResponseHeaders().set(ALLOW_HEADER, GET + ", " + HEAD);
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, -1);
+                return;
+            }
+            final String[] segments = exchange.getRequestURI().getPath().substring(1).split("/", -1);
+            if (segments.length == 1) {
+                final String name = segments[0];
+                Reader reader = readers.get(name.endsWith(JSON_EXTENSION) ? name.substring(0, name.length() - JSON_EXTENSION.length()) : name);
+                if (reader != null) {
+                    sendTileJson(exchange, reader, name);
+                    return;
+                }
+            } else if (segments.length == 4) {
+                Reader reader = readers.get(segments[0]);
+                if (reader != null && sendTile(exchange, reader, segments)) {
+                    return;
+                }
+            }
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+        } catch (IOException | RuntimeException e) {
+            if (exchange.getResponseCode() == -1) {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, -1);
+            } else {
+                throw e;
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Send a tile
+     *
+     * @param exchange the HttpExchange
+     * @param reader the Reader for the archive
+     * @param segments the segments of the request path
+     * @return false if the tile doesn't exist and nothing has been sent
+     * @throws IOException if reading the tile or sending the response fails
+     */
+    private boolean sendTile(@NotNull HttpExchange exchange, @NotNull Reader reader, @NotNull String[] segments) throws IOException {
+        final int z;
+        final int x;
+        final int y;
+        try {
+            z = Integer.parseInt(segments[1]);
+            x = Integer.parseInt(segments[2]);
+            final int dot = segments[3].indexOf('.');
+            y = Integer.parseInt(dot >= 0 ? segments[3].substring(0, dot) : segments[3]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (z < reader.getMinZoom() || z > reader.getMaxZoom() || x < 0 || y < 0 || ((x | y) >>> z) != 0) {
+            return false;
+        }
+        final TileHandle tile = reader.getTileHandle(z, x, y);
+        if (tile == null) {
+            return false;
+        }
+        final String eTag = "\"" + tile.getArchiveVersion() + "-" + Long.toHexString(tile.getOffset()) + "\"";
+        final Headers headers = exchange.getResponseHeaders();
+        headers.set(ETAG_HEADER, eTag);
+        final String cache = cacheControl;
+        if (cache != null) {
+            headers.set(CACHE_CONTROL_HEADER, cache);
+        }
+        if (matches(exchange.getRequestHeaders().getFirst(IF_NONE_MATCH_HEADER), eTag)) {
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+            return true;
+        }
+        headers.set(CONTENT_TYPE_HEADER, contentType(reader.getTileType()));
+        final String encoding = contentEncoding(reader.getTileCompression());
+        if (encoding != null) {
+            headers.set(CONTENT_ENCODING, encoding);
+        }
+        if (HEAD.equals(exchange.getRequestMethod()) || tile.getLength() == 0) {
+            headers.set(CONTENT_LENGTH_HEADER, Integer.toString(tile.getLength()));
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+            return true;
+        }
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, tile.getLength());
+        try (OutputStream os = exchange.getResponseBody(); WritableByteChannel target = Channels.newChannel(os)) {
+            // if the archive has changed the response can't be retracted, the next request will see the new archive
+            tile.transferTo(target);
+        }
+        return true;
+    }
+
+    /**
+     * Send a TileJSON document
+     *
+     * The contents of the metadata of the archive are included, the values derived from the header take precedence.
+     *
+     * @param exchange the HttpExchange
+     * @param reader the Reader for the archive
+     * @param name the requested name
+     * @throws IOException if reading the metadata or sending the response fails
+     */
+    private void sendTileJson(@NotNull HttpExchange exchange, @NotNull Reader reader, @NotNull String name) throws IOException {
+        final String base = baseUrl != null ? baseUrl : "http://" + host(exchange);
+        final String tileName = name.endsWith(JSON_EXTENSION) ? name.substring(0, name.length() - JSON_EXTENSION.length()) : name;
+        final String extension = extension(reader.getTileType());
+        StringBuilder json = new StringBuilder("{");
+        final String metadata = reader.getMetadata().trim();
+        if (metadata.startsWith("{") && metadata.endsWith("}")) {
+            final String fields = metadata.substring(1, metadata.length() - 1).trim();
+            if (!fields.isEmpty()) {
+                json.append(fields).append(',');
+            }
+        }
+        json.append("\"tilejson\":\"").append(TILEJSON_VERSION).append("\",\"scheme\":\"xyz\",\"tiles\":[\"").append(escape(base)).append('/').append(escape(tileName))
+                .append("/{z}/{x}/{y}").append(extension).append("\"],\"minzoom\":").append(reader.getMinZoom()).append(",\"maxzoom\":")
+                .append(reader.getMaxZoom()).append(",\"bounds\":[");
+        final double[] bounds = reader.getBounds();
+        for (int i = 0; i < bounds.length; i++) {
+            json.append(i > 0 ? "," : "").append(bounds[i]);
+        }
+        final double[] center = reader.getCenter();
+        json.append("],\"center\":[").append(center[0]).append(',').append(center[1]).append(',').append(reader.getCenterZoom()).append("]}");
+        final byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set(CONTENT_TYPE_HEADER, JSON_CONTENT_TYPE);
+        if (HEAD.equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set(CONTENT_LENGTH_HEADER, Integer.toString(body.length));
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    /**
+     * Get the host and port the request was sent to
+     *
+     * The Host header is supplied by the client, it is only used if it consists of a host name or address and an
+     * optional port.
+     *
+     * @param exchange the HttpExchange
+     * @return the value of the Host header or the local address
+     */
+    @NotNull
+    private static String host(@NotNull HttpExchange exchange) {
+        final String host = exchange.getRequestHeaders().getFirst(HOST_HEADER);
+        if (host != null && HOST_PATTERN.matcher(host).matches()) {
+            return host;
+        }
+        InetSocketAddress local = exchange.getLocalAddress();
+        final String address = local.getHostString();
+        return (address.indexOf(':') >= 0 ? "[" + address + "]" : address) + ":" + local.getPort();
+    }
+
+    /**
+     * Escape a String for use in a JSON string value
+     *
+     * @param value the String
+     * @return the escaped String
+     */
+    @NotNull
+    static String escape(@NotNull String value) {
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if (c < 0x20) {
+                result.append(String.format("\\u%04x", (int) c));
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Check if an If-None-Match header matches an ETag
+     *
+     * As specified for If-None-Match the weak comparison is used.
+     *
+     * @param ifNoneMatch the value of the header or null
+     * @param eTag the ETag of the tile
+     * @return true if the header matches
+     */
+    static boolean matches(@Nullable String ifNoneMatch, @NotNull String eTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if ("*".equals(tag) || eTag.equals(tag.startsWith(WEAK_PREFIX) ? tag.substring(WEAK_PREFIX.length()) : tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the MIME type for a tile type
+     *
+     * @param type the tile type (see Constants)
+     * @return the MIME type
+     */
+    @NotNull
+    static String contentType(byte type) {
+        switch (type) {
+        case Constants.TYPE_MVT:
+            return "application/vnd.mapbox-vector-tile";
+        case Constants.TYPE_PNG:
+            return "image/png";
+        case Constants.TYPE_JPEG:
+            return "image/jpeg";
+        case Constants.TYPE_WEBP:
+            return "image/webp";
+        case Constants.TYPE_AVIF:
+            return "image/avif";
+        default:
+            return "application/octet-stream";
+        }
+    }
+
+    /**
+     * Get the value of the Content-Encoding header for a tile compression
+     *
+     * @param compression the tile compression (see Constants)
+     * @return the encoding or null if the tiles are not compressed
+     */
+    @Nullable
+    static String contentEncoding(byte compression) {
+        switch (compression) {
+        case Constants.COMPRESSION_GZIP:
+            return "gzip";
+        case Constants.COMPRESSION_BROTLI:
+            return "br";
+        case Constants.COMPRESSION_ZSTD:
+            return "zstd";
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Get the file extension used in TileJSON tile URLs for a tile type
+     *
+     * @param type the tile type (see Constants)
+     * @return the extension including the dot or an empty String
+     */
+    @NotNull
+    static String extension(byte type) {
+        switch (type) {
+        case Constants.TYPE_MVT:
+            return ".mvt";
+        case Constants.TYPE_PNG:
+            return ".png";
+        case Constants.TYPE_JPEG:
+            return ".jpg";
+        case Constants.TYPE_WEBP:
+            return ".webp";
+        case Constants.TYPE_AVIF:
+            return ".avif";
+        default:
+            return "";
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package ch.poole.geo.pmtiles;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ArchiveStatisticsTest {
+
+    /**
+     * Adjacent entries with the same offset, as produced for an id gap, should only be counted once
+     */
+    @Test
+    public void adjacentDuplicates() {
+        ArchiveStatistics statistics = new ArchiveStatistics(100);
+        statistics.visit(100, 1, 0, 10);
+        statistics.visit(102, 1, 0, 10);
+        statistics.visit(103, 1, 10, 5);
+        assertEquals(3, statistics.getTileEntries());
+        assertEquals(2, statistics.getTileContents());
+        assertEquals(1.5, statistics.getDeduplicationRatio(), 0.0001);
+    }
+
+    /**
+     * Offsets that are not in order should be de-duplicated too
+     */
+    @Test
+    public void unordered() {
+        ArchiveStatistics statistics = new ArchiveStatistics(1000);
+        for (int i = 0; i < 100; i++) {
+            statistics.visit(i, 1, (i % 7) * 10L, 10);
+        }
+        assertEquals(100, statistics.getTileEntries());
+        assertEquals(7, statistics.getTileContents());
+    }
+
+    /**
+     * A merged instance should still be usable
+     */
+    @Test
+    public void merge() {
+        ArchiveStatistics statistics = new ArchiveStatistics(100);
+        ArchiveStatistics other = statistics.fork();
+        statistics.visit(100, 1, 0, 10);
+        other.visit(101, 1, 0, 10);
+        other.visit(102, 1, 20, 10);
+        statistics.merge(other);
+        assertEquals(3, statistics.getTileEntries());
+        assertEquals(2, statistics.getTileContents());
+        other.visit(103, 1, 30, 10);
+        assertEquals(1, other.getTileContents());
+    }
+}
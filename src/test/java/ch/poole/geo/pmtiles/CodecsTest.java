@@ -0,0 +1,103 @@
+package ch.poole.geo.pmtiles;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+public class CodecsTest {
+
+    static final byte REVERSE = 0x7E;
+
+    /**
+     * Test codec that reverses the data, registered via META-INF/services in the test resources
+     */
+    public static class ReverseCodec implements Codec {
+
+        @Override
+        public byte getCompression() {
+            return REVERSE;
+        }
+
+        @Override
+        public ByteBuffer decompress(ByteBuffer buffer) {
+            byte[] data = Util.toArray(buffer);
+            byte[] result = new byte[data.length];
+            for (int i = 0; i < data.length; i++) {
+                result[i] = data[data.length - 1 - i];
+            }
+            return ByteBuffer.wrap(result);
+        }
+    }
+
+    /**
+     * Check the built in codecs
+     */
+    @Test
+    public void builtIn() {
+        try {
+            assertTrue(Codecs.isSupported(Constants.COMPRESSION_NONE));
+            assertTrue(Codecs.isSupported(Constants.COMPRESSION_GZIP));
+            byte[] data = new byte[] { 1, 2, 3, 4 };
+            assertSame(data, Codecs.decompress(data, Constants.COMPRESSION_NONE));
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (GZIPOutputStream gos = new GZIPOutputStream(bos)) {
+                gos.write(data);
+            }
+            assertArrayEquals(data, Codecs.decompress(bos.toByteArray(), Constants.COMPRESSION_GZIP));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Codecs should be loaded with ServiceLoader
+     */
+    @Test
+    public void serviceLoader() {
+        assertNotNull(Codecs.get(REVERSE));
+        try {
+            assertArrayEquals(new byte[] { 3, 2, 1 }, Codecs.decompress(new byte[] { 1, 2, 3 }, REVERSE));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Registering a codec should replace the existing one
+     */
+    @Test
+    public void register() {
+        Codec previous = Codecs.get(REVERSE);
+        Codec codec = new ReverseCodec();
+        try {
+            Codecs.register(codec);
+            assertSame(codec, Codecs.get(REVERSE));
+        } finally {
+            Codecs.register(previous);
+        }
+    }
+
+    /**
+     * An unsupported compression method should throw an UnsupportedOperationException
+     */
+    @Test
+    public void unsupported() {
+        try {
+            Codecs.decompress(new byte[] { 1, 2, 3 }, Constants.COMPRESSION_UNKNOWN);
+            fail("should have thrown UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+}
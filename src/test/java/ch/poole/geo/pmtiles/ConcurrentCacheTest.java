@@ -0,0 +1,223 @@
+package ch.poole.geo.pmtiles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+public class ConcurrentCacheTest {
+
+    /**
+     * Loader that counts invocations and can be held until released
+     */
+    private static class CountingLoader implements ConcurrentCache.Loader<Integer, String> {
+        final AtomicInteger  count   = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public String load(@NotNull Integer key) throws IOException {
+            count.incrementAndGet();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return key.toString();
+        }
+    }
+
+    /**
+     * Concurrent requests for the same missing key should only load it once
+     */
+    @Test
+    public void singleFlight() throws Exception {
+        final ConcurrentCache<Integer, String> cache = new ConcurrentCache<>(10);
+        final CountingLoader loader = new CountingLoader();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        return cache.get(1, loader);
+                    }
+                }));
+            }
+            // a cached entry can be retrieved while the load is in progress
+            assertEquals("2", cache.get(2, new ConcurrentCache.Loader<Integer, String>() {
+                @Override
+                public String load(@NotNull Integer key) {
+                    return key.toString();
+                }
+            }));
+            assertNull(cache.getIfPresent(1));
+            loader.release.countDown();
+            for (Future<String> result : results) {
+                assertEquals("1", result.get());
+            }
+            assertEquals(1, loader.count.get());
+            assertEquals("1", cache.getIfPresent(1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The cache shouldn't grow beyond its capacity and recently used entries should survive
+     */
+    @Test
+    public void eviction() throws IOException {
+        ConcurrentCache<Integer, String> cache = new ConcurrentCache<>(3);
+        final AtomicInteger evictions = new AtomicInteger();
+        cache.setEvictionListener(new Runnable() {
+            @Override
+            public void run() {
+                evictions.incrementAndGet();
+            }
+        });
+        CountingLoader loader = new CountingLoader();
+        loader.release.countDown();
+        for (int i = 0; i < 3; i++) {
+            cache.get(i, loader);
+        }
+        cache.get(0, loader);
+        cache.get(3, loader);
+        assertEquals(3, cache.size());
+        assertNotNull(cache.getIfPresent(0));
+        assertNull(cache.getIfPresent(1));
+        assertEquals(1, evictions.get());
+        cache.setCapacity(1);
+        assertEquals(1, cache.size());
+        assertEquals(3, evictions.get());
+    }
+
+    /**
+     * A weighed cache should be limited by the total weight of its values
+     */
+    @Test
+    public void weight() throws IOException {
+        ConcurrentCache<Integer, String> cache = new ConcurrentCache<>(10, new ConcurrentCache.Weigher<String>() {
+            @Override
+            public long weigh(@NotNull String value) {
+                return value.length();
+            }
+        });
+        CountingLoader loader = new CountingLoader();
+        loader.release.countDown();
+        cache.get(1000, loader);
+        cache.get(2000, loader);
+        assertEquals(8, cache.weight());
+        cache.get(30000, loader);
+        assertEquals(2, cache.size());
+        assertEquals(9, cache.weight());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+        assertNull(cache.getIfPresent(30000));
+    }
+
+    /**
+     * Caches sharing a budget should be limited by the total weight and evict from the largest cache
+     */
+    @Test
+    public void budget() throws IOException {
+        ConcurrentCache.Weigher<String> weigher = new ConcurrentCache.Weigher<String>() {
+            @Override
+            public long weigh(@NotNull String value) {
+                return value.length();
+            }
+        };
+        CacheBudget budget = new CacheBudget(12);
+        ConcurrentCache<Integer, String> cache1 = new ConcurrentCache<>(100);
+        ConcurrentCache<Integer, String> cache2 = new ConcurrentCache<>(100);
+        cache1.setBudget(budget, weigher);
+        cache2.setBudget(budget, weigher);
+        CountingLoader loader = new CountingLoader();
+        loader.release.countDown();
+        cache1.get(1000, loader);
+        cache1.get(2000, loader);
+        cache1.get(3000, loader);
+        assertEquals(12, budget.getSize());
+        cache2.get(4000, loader);
+        assertEquals(12, budget.getSize());
+        assertEquals(2, cache1.size());
+        assertEquals(8, cache1.charged());
+        assertEquals(4, cache2.charged());
+        cache2.get(50, loader);
+        assertEquals(10, budget.getSize());
+        assertEquals(1, cache1.size());
+        assertEquals(2, cache2.size());
+        budget.setCapacity(4);
+        assertTrue(budget.getSize() <= 4);
+        cache2.clear();
+        assertEquals(cache1.charged(), budget.getSize());
+        cache1.setBudget(null, null);
+        assertEquals(0, budget.getSize());
+        assertEquals(0, cache1.size());
+        cache1.get(1000, loader);
+        assertEquals(0, budget.getSize());
+    }
+
+    /**
+     * Failed loads should be propagated and not cached
+     */
+    @Test
+    public void failure() throws IOException {
+        ConcurrentCache<Integer, String> cache = new ConcurrentCache<>(3);
+        try {
+            cache.get(1, new ConcurrentCache.Loader<Integer, String>() {
+                @Override
+                public String load(@NotNull Integer key) throws IOException {
+                    throw new IOException("failed");
+                }
+            });
+            fail("should have thrown an IOException");
+        } catch (IOException e) {
+            assertEquals("failed", e.getMessage());
+        }
+        assertEquals(0, cache.size());
+        CountingLoader loader = new CountingLoader();
+        loader.release.countDown();
+        assertEquals("1", cache.get(1, loader));
+    }
+
+    /**
+     * Failed loads shouldn't remain in the clock queue
+     */
+    @Test
+    public void failuresNotQueued() {
+        ConcurrentCache<Integer, String> cache = new ConcurrentCache<>(3);
+        ConcurrentCache.Loader<Integer, String> failing = new ConcurrentCache.Loader<Integer, String>() {
+            @Override
+            public String load(@NotNull Integer key) throws IOException {
+                throw new IOException("failed");
+            }
+        };
+        for (int i = 0; i < 1000; i++) {
+            try {
+                cache.get(i, failing);
+                fail("should have thrown an IOException");
+            } catch (IOException e) {
+                assertEquals("failed", e.getMessage());
+            }
+        }
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.queued());
+    }
+}
@@ -0,0 +1,168 @@
+package ch.poole.geo.pmtiles;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HilbertTest {
+
+    /**
+     * Straight forward one level at a time implementation to compare against
+     * 
+     * @param z the zoom level
+     * @param x tile x coordinate
+     * @param y tile y coordinate
+     * @return an index along the Hilbert curve
+     */
+    private static long reference(int z, long x, long y) {
+        long n = 1L << z;
+        long d = 0;
+        for (long s = n / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = n - 1 - x;
+                    y = n - 1 - y;
+                }
+                long t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Compare with the reference implementation for all tiles up to zoom 9 and check the inverse
+     */
+    @Test
+    public void exhaustive() {
+        for (int z = 0; z <= 9; z++) {
+            final int size = 1 << z;
+            boolean[] seen = new boolean[size * size];
+            for (int x = 0; x < size; x++) {
+                for (int y = 0; y < size; y++) {
+                    final long index = Hilbert.zxyToIndex(z, x, y);
+                    assertEquals(reference(z, x, y), index);
+                    seen[(int) index] = true;
+                    assertEquals(new TileCoordinates(z, x, y), Hilbert.indexToZxy(z, index));
+                }
+            }
+            for (boolean s : seen) {
+                assertEquals(true, s);
+            }
+        }
+    }
+
+    /**
+     * Compare with the reference implementation for random tiles on all zoom levels, this includes indices that don't
+     * fit in an int
+     */
+    @Test
+    public void allZooms() {
+        Random random = new Random(4711);
+        for (int z = 0; z <= 31; z++) {
+            final long size = 1L << z;
+            for (int i = 0; i < 1000; i++) {
+                final int x = (int) (random.nextDouble() * size);
+                final int y = (int) (random.nextDouble() * size);
+                final long index = Hilbert.zxyToIndex(z, x, y);
+                assertEquals(reference(z, x, y), index);
+                assertEquals(new TileCoordinates(z, x, y), Hilbert.indexToZxy(z, index));
+            }
+            assertEquals(size * size - 1, Hilbert.zxyToIndex(z, size - 1, 0));
+        }
+    }
+
+    /**
+     * Coordinates outside of the grid should be mapped as before
+     */
+    @Test
+    public void outOfRange() {
+        assertEquals(reference(3, 8, 3), Hilbert.zxyToIndex(3, 8, 3));
+        assertEquals(reference(3, -1, 3), Hilbert.zxyToIndex(3, -1, 3));
+        assertEquals(reference(0, 1, 1), Hilbert.zxyToIndex(0, 1, 1));
+    }
+
+    /**
+     * Tile ids should be consecutive over zoom levels and round trip
+     */
+    @Test
+    public void tileIds() {
+        assertEquals(0, Hilbert.zxyToTileId(0, 0, 0));
+        assertEquals(1, Hilbert.zxyToTileId(1, 0, 0));
+        assertEquals(5, Hilbert.zxyToTileId(2, 0, 0));
+        assertEquals(21, Hilbert.zxyToTileId(3, 0, 0));
+        long expected = 0;
+        for (int z = 0; z <= 31; z++) {
+            assertEquals(expected, Hilbert.zoomOffset(z));
+            assertEquals(new TileCoordinates(z, 0, 0), Hilbert.tileIdToZxy(expected));
+            if (z > 0) {
+                assertEquals(new TileCoordinates(z - 1, (1 << (z - 1)) - 1, 0), Hilbert.tileIdToZxy(expected - 1));
+            }
+            expected += (1L << z) * (1L << z);
+        }
+        Random random = new Random(4711);
+        for (int i = 0; i < 10000; i++) {
+            final int z = random.nextInt(32);
+            final int x = (int) (random.nextDouble() * (1L << z));
+            final int y = (int) (random.nextDouble() * (1L << z));
+            assertEquals(new TileCoordinates(z, x, y), Hilbert.tileIdToZxy(Hilbert.zxyToTileId(z, x, y)));
+        }
+    }
+
+    /**
+     * The batch methods should return the same values as the single value methods
+     */
+    @Test
+    public void batch() {
+        Random random = new Random(4711);
+        final int count = 1000;
+        int[] z = new int[count];
+        int[] x = new int[count];
+        int[] y = new int[count];
+        for (int i = 0; i < count; i++) {
+            z[i] = random.nextInt(32);
+            x[i] = (int) (random.nextDouble() * (1L << z[i]));
+            y[i] = (int) (random.nextDouble() * (1L << z[i]));
+        }
+        long[] ids = new long[count];
+        Hilbert.zxyToTileId(z, x, y, ids);
+        int[] z2 = new int[count];
+        int[] x2 = new int[count];
+        int[] y2 = new int[count];
+        Hilbert.tileIdToZxy(ids, z2, x2, y2);
+        assertArrayEquals(z, z2);
+        assertArrayEquals(x, x2);
+        assertArrayEquals(y, y2);
+        for (int i = 0; i < count; i++) {
+            assertEquals(Hilbert.zxyToTileId(z[i], x[i], y[i]), ids[i]);
+        }
+
+        for (int i = 0; i < count; i++) {
+            x[i] = random.nextInt(1 << 20);
+            y[i] = random.nextInt(1 << 20);
+        }
+        long[] indices = new long[count];
+        Hilbert.zxyToIndex(20, x, y, indices);
+        Hilbert.indexToZxy(20, indices, x2, y2);
+        assertArrayEquals(x, x2);
+        assertArrayEquals(y, y2);
+        for (int i = 0; i < count; i++) {
+            assertEquals(Hilbert.zxyToIndex(20, x[i], y[i]), indices[i]);
+        }
+    }
+
+    /**
+     * Batch methods should reject arrays of different length
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void batchLengths() {
+        Hilbert.zxyToIndex(3, new int[2], new int[3], new long[2]);
+    }
+}
@@ -6,6 +6,8 @@ import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -18,12 +20,18 @@ import okio.Buffer;
 
 public class PMTilesDispatcher extends Dispatcher {
     static final String RANGE_HEADER = "Range";
+    static final String IF_MATCH_HEADER = "If-Match";
     private static final String ETAG_HEADER  = "ETag";
 
     private static final Pattern RANGE_PATTERN = Pattern.compile("^bytes=([0-9]+)-([0-9]+)");
 
-    private final FileChannel channel;
-    private String            eTag = "1234";
+    private final FileChannel   channel;
+    private String              eTag     = "1234";
+    private volatile boolean    ifMatch  = true;
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile int        failureStatus;
+    private final AtomicInteger delayed  = new AtomicInteger();
+    private volatile long       delay;
 
     /**
      * Construct a new dispatcher that will return tiles from a PMTiles source
@@ -51,8 +59,63 @@ public class PMTilesDispatcher extends Dispatcher {
         eTag = tag;
     }
 
+    /**
+     * Set if the If-Match header is honoured
+     * 
+     * @param honour if false requests are answered regardless of the ETag they are conditional on
+     */
+    public void setIfMatch(boolean honour) {
+        ifMatch = honour;
+    }
+
+    /**
+     * Answer the next requests with an error
+     * 
+     * @param count the number of requests to fail
+     * @param status the HTTP status to return
+     */
+    public void failNext(int count, int status) {
+        failureStatus = status;
+        failures.set(count);
+    }
+
+    /**
+     * Delay the response to the next requests
+     * 
+     * @param count the number of requests to delay
+     * @param millis the delay in milliseconds
+     */
+    public void delayNext(int count, long millis) {
+        delay = millis;
+        delayed.set(count);
+    }
+
+    /**
+     * Decrement a counter if it is positive
+     * 
+     * @param counter the counter
+     * @return true if the counter was decremented
+     */
+    private static boolean take(@NotNull AtomicInteger counter) {
+        int current;
+        do {
+            current = counter.get();
+            if (current <= 0) {
+                return false;
+            }
+        } while (!counter.compareAndSet(current, current - 1));
+        return true;
+    }
+
     @Override
     public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        if (take(failures)) {
+            return new MockResponse().setResponseCode(failureStatus);
+        }
+        final String expected = request.getHeader(IF_MATCH_HEADER);
+        if (ifMatch && expected != null && !expected.equals(eTag)) {
+            return new MockResponse().setResponseCode(HttpURLConnection.HTTP_PRECON_FAILED);
+        }
         try (Buffer data = new Buffer()) {
             Matcher matcher = RANGE_PATTERN.matcher(request.getHeader(RANGE_HEADER));
             if (matcher.find()) {
@@ -64,6 +127,9 @@ public class PMTilesDispatcher extends Dispatcher {
                     data.write(buffer.array());
                     final MockResponse response = new MockResponse().setResponseCode(HttpURLConnection.HTTP_OK).setBody(data);
                     response.setHeader(ETAG_HEADER, eTag);
+                    if (take(delayed)) {
+                        response.setHeadersDelay(delay, TimeUnit.MILLISECONDS);
+                    }
                     return response;
                 }
             }
@@ -0,0 +1,71 @@
+package ch.poole.geo.pmtiles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PackedLongArrayTest {
+
+    /**
+     * Check that all values can be retrieved and that binary search behaves like Arrays.binarySearch
+     */
+    @Test
+    public void sortedValues() {
+        Random random = new Random(4711);
+        for (int size : new int[] { 0, 1, 15, 16, 17, 1000 }) {
+            long[] values = new long[size];
+            long value = random.nextInt(1000);
+            for (int i = 0; i < size; i++) {
+                value += 1 + (random.nextInt(10) == 0 ? random.nextInt(100000) : random.nextInt(3));
+                values[i] = value;
+            }
+            PackedLongArray packed = new PackedLongArray(values);
+            assertEquals(size, packed.size());
+            for (int i = 0; i < size; i++) {
+                assertEquals(values[i], packed.get(i));
+            }
+            for (long key = -1; key <= value + 1; key += 1 + random.nextInt(50)) {
+                assertEquals(Arrays.binarySearch(values, key), packed.binarySearch(key));
+            }
+            if (size > 0) {
+                assertEquals(Arrays.binarySearch(values, values[size - 1]), packed.binarySearch(values[size - 1]));
+            }
+        }
+    }
+
+    /**
+     * Values using the full range of a long
+     */
+    @Test
+    public void extremeValues() {
+        long[] values = new long[] { Long.MIN_VALUE, -1, 0, 1, Long.MAX_VALUE, 42, 0, Long.MIN_VALUE + 1, 7, 8, 9, 10, 11, 12, 13, 14, 15, Long.MAX_VALUE };
+        PackedLongArray packed = new PackedLongArray(values);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], packed.get(i));
+        }
+    }
+
+    /**
+     * Small values should be packed tightly
+     */
+    @Test
+    public void compact() {
+        long[] values = new long[1600];
+        Arrays.fill(values, 1);
+        PackedLongArray packed = new PackedLongArray(values);
+        assertEquals(1, packed.get(1599));
+        assertTrue(packed.memorySize() < 1600);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 1000000 + i * 20000L + i % 7;
+        }
+        packed = new PackedLongArray(values);
+        assertTrue(packed.memorySize() < values.length * 8 / 2);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], packed.get(i));
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package ch.poole.geo.pmtiles;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReaderRegistryTest {
+    File testFile1;
+    File testFile3;
+    File testFile4;
+
+    @Before
+    public void setup() {
+        ClassLoader classLoader = getClass().getClassLoader();
+        testFile1 = new File(classLoader.getResource("stamen_toner(raster)CC-BY+ODbL_z3.pmtiles").getFile());
+        testFile3 = new File(classLoader.getResource("protomaps(vector)ODbL_firenze.pmtiles").getFile());
+        testFile4 = new File(classLoader.getResource("leaf-dirs.pmtiles").getFile());
+    }
+
+    @Test
+    public void lazyOpenAndIdleClose() {
+        try (ReaderRegistry registry = new ReaderRegistry(64 * 1024, 0); Reader reference = new Reader(testFile3)) {
+            registry.register("toner", testFile1);
+            registry.register("firenze", testFile3);
+            registry.register("leaves", testFile4);
+            assertEquals(3, registry.getNames().size());
+            assertEquals(0, registry.getOpenFiles());
+            assertNull(registry.get("unknown"));
+            Reader reader = registry.get("firenze");
+            assertNotNull(reader);
+            assertSame(reader, registry.get("firenze"));
+            assertEquals(1, registry.getOpenFiles());
+            assertArrayEquals(reference.getTile(13, 4350, 2984), reader.getTile(13, 4350, 2984));
+            assertEquals(1, registry.closeIdle());
+            assertEquals(0, registry.getOpenFiles());
+            assertArrayEquals(reference.getTile(13, 4351, 2984), reader.getTile(13, 4351, 2984));
+            assertEquals(1, registry.getOpenFiles());
+            assertTrue(registry.unregister("firenze"));
+            assertFalse(registry.unregister("firenze"));
+            assertEquals(0, registry.getOpenFiles());
+            assertNull(registry.get("firenze"));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void sharedBudget() {
+        try (ReaderRegistry registry = new ReaderRegistry(64 * 1024, 0); Reader reference1 = new Reader(testFile1);
+                Reader reference4 = new Reader(testFile4)) {
+            registry.register("toner", testFile1);
+            registry.register("leaves", testFile4);
+            CacheBudget budget = registry.getCacheBudget();
+            Reader toner = registry.get("toner");
+            Reader leaves = registry.get("leaves");
+            for (int z = 0; z <= 3; z++) {
+                for (int x = 0; x < (1 << z); x++) {
+                    for (int y = 0; y < (1 << z); y++) {
+                        assertArrayEquals(reference1.getTile(z, x, y), toner.getTile(z, x, y));
+                        assertTrue(budget.getSize() <= budget.getCapacity());
+                    }
+                }
+            }
+            assertTrue(budget.getSize() > 0);
+            double[] bounds = leaves.getBounds();
+            int z = leaves.getMaxZoom();
+            int x = (int) Math.floor((bounds[0] + 180) / 360 * (1 << z));
+            int y = (int) Math.floor(
+                    (1 - Math.log(Math.tan(Math.toRadians(bounds[3])) + 1 / Math.cos(Math.toRadians(bounds[3]))) / Math.PI) / 2 * (1 << z));
+            assertArrayEquals(reference4.getTile(z, x, y), leaves.getTile(z, x, y));
+            assertTrue(budget.getSize() <= budget.getCapacity());
+            registry.unregister("toner");
+            registry.unregister("leaves");
+            assertEquals(0, budget.getSize());
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void replacedFile() {
+        File temp = null;
+        try (ReaderRegistry registry = new ReaderRegistry(64 * 1024, 0); Reader reference = new Reader(testFile3)) {
+            temp = File.createTempFile("registry", ".pmtiles");
+            copy(testFile1, temp);
+            registry.register("temp", temp);
+            Reader reader = registry.get("temp");
+            assertNull(reader.getTile(13, 4350, 2984));
+            registry.closeIdle();
+            copy(testFile3, temp);
+            // the lookup of a tile that isn't in the old archive doesn't touch the file, so read one that is
+            assertArrayEquals(reference.getTile(0, 0, 0), reader.getTile(0, 0, 0));
+            assertArrayEquals(reference.getTile(13, 4350, 2984), reader.getTile(13, 4350, 2984));
+            assertEquals(14, reader.getMaxZoom());
+        } catch (IOException e) {
+            fail(e.getMessage());
+        } finally {
+            if (temp != null) {
+                temp.delete(); // NOSONAR
+            }
+        }
+    }
+
+    /**
+     * Copy a file
+     * 
+     * @param source the source file
+     * @param destination the destination file
+     * @throws IOException if copying fails
+     */
+    static void copy(@NotNull File source, @NotNull File destination) throws IOException {
+        try (InputStream is = new FileInputStream(source); OutputStream os = new FileOutputStream(destination)) {
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = is.read(buffer)) != -1) {
+                os.write(buffer, 0, len);
+            }
+        }
+    }
+}
@@ -2,13 +2,40 @@ package ch.poole.geo.pmtiles;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
 
 import org.jetbrains.annotations.NotNull;
 import org.junit.Before;
@@ -32,8 +59,8 @@ public class ReaderTest {
     @Test
     public void header() {
         try (Reader reader = new Reader(testFile1)) {
-            assertEquals(Reader.PMTILES_VERSION, reader.header.version);
-            assertEquals(Constants.COMPRESSION_GZIP, reader.header.internalCompression);
+            assertEquals(Reader.PMTILES_VERSION, reader.header().version);
+            assertEquals(Constants.COMPRESSION_GZIP, reader.header().internalCompression);
             assertEquals(Constants.COMPRESSION_NONE, reader.getTileCompression());
             assertEquals(Constants.TYPE_PNG, reader.getTileType());
             assertEquals(0, reader.getMinZoom());
@@ -55,11 +82,11 @@ public class ReaderTest {
     @Test
     public void zoomOffset() {
         try (Reader reader = new Reader(testFile1)) {
-            assertEquals(0, reader.getZoomOffset(0));
-            assertEquals(1, reader.getZoomOffset(1));
-            assertEquals(5, reader.getZoomOffset(2));
-            assertEquals(21, reader.getZoomOffset(3));
-            assertEquals(366503875925L, reader.getZoomOffset(20));
+            assertEquals(0, Reader.getZoomOffset(0));
+            assertEquals(1, Reader.getZoomOffset(1));
+            assertEquals(5, Reader.getZoomOffset(2));
+            assertEquals(21, Reader.getZoomOffset(3));
+            assertEquals(366503875925L, Reader.getZoomOffset(20));
         } catch (IOException e) {
             fail(e.getMessage());
         }
@@ -124,6 +151,31 @@ public class ReaderTest {
         }
     }
 
+    /**
+     * De-duplicated tiles should share one tile cache entry
+     */
+    @Test
+    public void tileCache() {
+        try (Reader reader = new Reader(testFile1)) {
+            reader.setTileCacheSize(1000000);
+            byte[] tile1 = reader.getTile(3, 5, 7);
+            assertNotNull(tile1);
+            assertSame(tile1, reader.getTile(3, 4, 7));
+            byte[] tile2 = reader.getTile(3, 8, 3);
+            assertSame(tile2, reader.getTile(3, 8, 3));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(tile2.length, reader.getTile(3, 8, 3, Channels.newChannel(out)));
+            assertArrayEquals(tile2, out.toByteArray());
+            // too small to retain anything
+            reader.setTileCacheSize(10);
+            assertNotSame(tile2, reader.getTile(3, 8, 3));
+            reader.setTileCacheSize(0);
+            assertArrayEquals(tile1, reader.getTile(3, 4, 7));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
     /**
      * This tile is indexed via a leaf directory
      */
@@ -133,6 +185,646 @@ public class ReaderTest {
                 (byte) 0x14, (byte) 0x54, (byte) 0x55, (byte) 0x8a, (byte) 0x15, (byte) 0x68, (byte) 0x52, (byte) 0x18, (byte) 0x41 });
     }
 
+    /**
+     * Tiles read via a memory mapping should be the same as those read via the channel, a small chunk size forces reads
+     * across chunk boundaries
+     */
+    @Test
+    public void memoryMapped() {
+        try (Reader reader = new Reader(testFile4); Reader mapped = new Reader(testFile4, true);
+                Reader chunked = new Reader(new FileInputStream(testFile4).getChannel(), 4096)) {
+            assertEquals(reader.getMetadata(), mapped.getMetadata());
+            assertEquals(reader.getMetadata(), chunked.getMetadata());
+            for (int x = 17140; x < 17150; x++) {
+                for (int y = 11465; y < 11475; y++) {
+                    byte[] tile = reader.getTile(15, x, y);
+                    assertArrayEquals(tile, mapped.getTile(15, x, y));
+                    assertArrayEquals(tile, chunked.getTile(15, x, y));
+                }
+            }
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Tiles written to a channel or a caller supplied buffer should be the same as those returned as an array
+     */
+    @Test
+    public void tileToChannelAndBuffer() {
+        for (boolean memoryMapped : new boolean[] { false, true }) {
+            try (Reader reader = new Reader(testFile4, memoryMapped)) {
+                byte[] tile = reader.getTile(15, 17145, 11469);
+                assertNotNull(tile);
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                assertEquals(tile.length, reader.getTile(15, 17145, 11469, Channels.newChannel(out)));
+                assertArrayEquals(tile, out.toByteArray());
+
+                ByteBuffer buffer = ByteBuffer.allocateDirect(tile.length + 10);
+                buffer.position(10);
+                assertEquals(tile.length, reader.getTile(15, 17145, 11469, buffer));
+                assertEquals(tile.length + 10, buffer.position());
+                buffer.position(10);
+                byte[] temp = new byte[tile.length];
+                buffer.get(temp);
+                assertArrayEquals(tile, temp);
+
+                buffer.clear();
+                try {
+                    reader.getTile(15, 17145, 11469, ByteBuffer.allocate(tile.length - 1));
+                    fail("should have thrown BufferOverflowException");
+                } catch (BufferOverflowException e) {
+                    // expected
+                }
+                assertEquals(-1, reader.getTile(0, 0, 0, Channels.newChannel(out)));
+                assertEquals(-1, reader.getTile(0, 0, 0, buffer));
+
+                TileHandle handle = reader.getTileHandle(15, 17145, 11469);
+                assertNotNull(handle);
+                assertEquals(tile.length, handle.getLength());
+                out.reset();
+                assertEquals(tile.length, handle.transferTo(Channels.newChannel(out)));
+                assertArrayEquals(tile, out.toByteArray());
+                assertNull(reader.getTileHandle(0, 0, 0));
+            } catch (IOException e) {
+                fail(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Retrieve tiles from multiple threads with a leaf directory cache that is too small to hold all leaves
+     */
+    @Test
+    public void concurrentLeafAccess() {
+        try (Reader reader = new Reader(testFile4); Reader reference = new Reader(testFile4)) {
+            reader.setLeafDirectoryCacheSize(2);
+            final List<int[]> coordinates = new ArrayList<>();
+            final List<byte[]> expected = new ArrayList<>();
+            double[] bounds = reader.getBounds();
+            for (int z = reader.getMinZoom(); z <= reader.getMaxZoom(); z++) {
+                for (int x = xTile(z, bounds[0]); x <= xTile(z, bounds[2]); x++) {
+                    for (int y = yTile(z, bounds[3]); y <= yTile(z, bounds[1]); y++) {
+                        coordinates.add(new int[] { z, x, y });
+                        expected.add(reference.getTile(z, x, y));
+                    }
+                }
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<Boolean>> results = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    final int offset = t;
+                    results.add(executor.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws IOException {
+                            for (int i = 0; i < coordinates.size(); i++) {
+                                int index = (i * 7 + offset) % coordinates.size();
+                                int[] zxy = coordinates.get(index);
+                                if (!Arrays.equals(expected.get(index), reader.getTile(zxy[0], zxy[1], zxy[2]))) {
+                                    return false;
+                                }
+                            }
+                            return true;
+                        }
+                    }));
+                }
+                for (Future<Boolean> result : results) {
+                    assertTrue(result.get());
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Re-reading the source should publish a new generation and retire the caches of the previous one, even if the
+     * header and root directory are unchanged, and not disturb concurrent lookups
+     */
+    @Test
+    public void reload() {
+        File temp = null;
+        try {
+            temp = File.createTempFile("reload", ".pmtiles");
+            ReaderRegistryTest.copy(testFile4, temp);
+            try (Reader reader = new Reader(temp); Reader reference = new Reader(testFile4); Reader replacement = new Reader(testFile3)) {
+                reader.setTileCacheSize(1024 * 1024);
+                final List<int[]> coordinates = new ArrayList<>();
+                final List<byte[]> expected = new ArrayList<>();
+                double[] bounds = reader.getBounds();
+                for (int z = reader.getMinZoom(); z <= reader.getMaxZoom(); z++) {
+                    for (int x = xTile(z, bounds[0]); x <= xTile(z, bounds[2]); x++) {
+                        for (int y = yTile(z, bounds[3]); y <= yTile(z, bounds[1]); y++) {
+                            coordinates.add(new int[] { z, x, y });
+                            expected.add(reference.getTile(z, x, y));
+                            reader.getTile(z, x, y);
+                        }
+                    }
+                }
+                Reader.State first = reader.state();
+                assertTrue(first.tileCache.size() > 0);
+                assertTrue(first.leafCache.size() > 0);
+                Reader.State second = reader.reload(first);
+                assertEquals(first.generation + 1, second.generation);
+                assertEquals(first.version, second.version);
+                assertSame(second, reader.state());
+                assertNotSame(first.root, second.root);
+                assertNotSame(first.leafCache, second.leafCache);
+                assertEquals(0, first.tileCache.size());
+                assertEquals(0, first.leafCache.size());
+                assertEquals(0, second.tileCache.size());
+                // a stale State doesn't trigger a further re-read
+                assertSame(second, reader.reload(first));
+
+                ExecutorService executor = Executors.newFixedThreadPool(4);
+                try {
+                    List<Future<Boolean>> results = new ArrayList<>();
+                    for (int t = 0; t < 4; t++) {
+                        final int offset = t;
+                        results.add(executor.submit(new Callable<Boolean>() {
+                            @Override
+                            public Boolean call() throws IOException {
+                                for (int i = 0; i < coordinates.size() * 4; i++) {
+                                    int index = (i * 7 + offset) % coordinates.size();
+                                    int[] zxy = coordinates.get(index);
+                                    if (!Arrays.equals(expected.get(index), reader.getTile(zxy[0], zxy[1], zxy[2]))) {
+                                        return false;
+                                    }
+                                }
+                                return true;
+                            }
+                        }));
+                    }
+                    for (int i = 0; i < 20; i++) {
+                        reader.reload(reader.state());
+                    }
+                    for (Future<Boolean> result : results) {
+                        assertTrue(result.get());
+                    }
+                    assertEquals(second.generation + 20, reader.state().generation);
+                } finally {
+                    executor.shutdownNow();
+                }
+
+                int[] zxy = coordinates.get(coordinates.size() - 1);
+                reader.getTile(zxy[0], zxy[1], zxy[2]);
+                ReaderRegistryTest.copy(testFile3, temp);
+                Reader.State third = reader.state();
+                assertTrue(third.tileCache.size() > 0);
+                Reader.State fourth = reader.reload(third);
+                assertNotSame(third.root, fourth.root);
+                assertNotEquals(third.version, fourth.version);
+                assertEquals(0, third.tileCache.size());
+                assertEquals(0, third.leafCache.size());
+                assertEquals(0, fourth.tileCache.size());
+                assertArrayEquals(replacement.getTile(13, 4350, 2984), reader.getTile(13, 4350, 2984));
+            }
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            fail(e.getMessage());
+        } finally {
+            if (temp != null) {
+                temp.delete(); // NOSONAR
+            }
+        }
+    }
+
+    /**
+     * Tiles retrieved in a batch should be the same as those retrieved individually and in the same order
+     */
+    @Test
+    public void batch() {
+        try (Reader reader = new Reader(testFile4)) {
+            List<TileCoordinates> coordinates = new ArrayList<>();
+            coordinates.add(new TileCoordinates(15, 17145, 11469));
+            double[] bounds = reader.getBounds();
+            for (int z = reader.getMaxZoom(); z >= reader.getMinZoom(); z--) {
+                for (int x = xTile(z, bounds[2]); x >= xTile(z, bounds[0]); x--) {
+                    for (int y = yTile(z, bounds[3]); y <= yTile(z, bounds[1]); y++) {
+                        coordinates.add(new TileCoordinates(z, x, y));
+                    }
+                }
+            }
+            coordinates.add(new TileCoordinates(0, 0, 0)); // doesn't exist
+            coordinates.add(coordinates.get(0));
+            List<byte[]> tiles = reader.getTiles(coordinates);
+            assertEquals(coordinates.size(), tiles.size());
+            for (int i = 0; i < coordinates.size(); i++) {
+                TileCoordinates c = coordinates.get(i);
+                assertArrayEquals(reader.getTile(c.getZoom(), c.getX(), c.getY()), tiles.get(i));
+            }
+            assertNull(tiles.get(coordinates.size() - 2));
+            assertNotNull(tiles.get(0));
+            reader.setTileCacheSize(10000000);
+            assertArrayEquals(tiles.get(0), reader.getTiles(coordinates).get(0));
+            assertSame(reader.getTile(coordinates.get(0).getZoom(), coordinates.get(0).getX(), coordinates.get(0).getY()), reader.getTiles(coordinates).get(0));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Tiles retrieved asynchronously should be the same as those retrieved synchronously for all kinds of local access
+     */
+    @Test
+    public void async() {
+        try (Reader reader = new Reader(testFile4); Reader mapped = new Reader(testFile4, true);
+                FileInputStream stream = new FileInputStream(testFile4); Reader fromChannel = new Reader(stream.getChannel())) {
+            List<TileCoordinates> coordinates = new ArrayList<>();
+            double[] bounds = reader.getBounds();
+            for (int z = reader.getMaxZoom(); z >= reader.getMinZoom(); z--) {
+                for (int x = xTile(z, bounds[2]); x >= xTile(z, bounds[0]); x--) {
+                    for (int y = yTile(z, bounds[3]); y <= yTile(z, bounds[1]); y++) {
+                        coordinates.add(new TileCoordinates(z, x, y));
+                    }
+                }
+            }
+            coordinates.add(new TileCoordinates(0, 0, 0)); // doesn't exist
+            for (Reader r : new Reader[] { reader, mapped, fromChannel }) {
+                List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+                for (TileCoordinates c : coordinates) {
+                    futures.add(r.getTileAsync(c.getZoom(), c.getX(), c.getY()));
+                }
+                List<byte[]> tiles = r.getTilesAsync(coordinates).get();
+                for (int i = 0; i < coordinates.size(); i++) {
+                    TileCoordinates c = coordinates.get(i);
+                    byte[] expected = reader.getTile(c.getZoom(), c.getX(), c.getY());
+                    assertArrayEquals(expected, futures.get(i).get());
+                    assertArrayEquals(expected, tiles.get(i));
+                }
+                assertNotNull(r.getTileAsync(15, 17145, 11469).get());
+                assertNull(r.getTileAsync(0, 0, 0).get());
+            }
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Iterating should return every tile once in tile id order with the same contents as getTile
+     */
+    @Test
+    public void iterator() {
+        for (File file : new File[] { testFile1, testFile2, testFile3, testFile4 }) {
+            for (int chunkSize : new int[] { 1000, TileIterator.DEFAULT_CHUNK_SIZE }) {
+                try (Reader reader = new Reader(file)) {
+                    TileIterator iterator = reader.getTileIterator(chunkSize);
+                    long previous = -1;
+                    int count = 0;
+                    while (iterator.hasNext()) {
+                        Tile tile = iterator.next();
+                        long id = Hilbert.zxyToTileId(tile.getZoom(), tile.getX(), tile.getY());
+                        assertTrue(id > previous);
+                        previous = id;
+                        assertArrayEquals(reader.getTile(tile.getZoom(), tile.getX(), tile.getY()), tile.getData());
+                        count++;
+                    }
+                    assertFalse(iterator.hasNext());
+                    assertTrue(count > 0);
+                    if (file == testFile1) {
+                        assertEquals(1 + 4 + 16 + 64, count);
+                    }
+                    try {
+                        iterator.next();
+                        fail("should have thrown NoSuchElementException");
+                    } catch (NoSuchElementException e) {
+                        // expected
+                    }
+                } catch (IOException e) {
+                    fail(e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void bbox() {
+        for (File file : new File[] { testFile1, testFile2, testFile3, testFile4 }) {
+            try (Reader reader = new Reader(file)) {
+                double[] bounds = reader.getBounds();
+                double w = (bounds[2] - bounds[0]) / 4;
+                double h = (bounds[3] - bounds[1]) / 4;
+                double[] bbox = new double[] { bounds[0] + w, bounds[1] + h, bounds[2] - w, bounds[3] - h };
+                assertBbox(reader, bbox, reader.getMinZoom(), reader.getMaxZoom());
+                assertBbox(reader, bbox, reader.getMinZoom() + 1, reader.getMaxZoom() - 1);
+                assertBbox(reader, bounds, reader.getMinZoom(), reader.getMaxZoom());
+                if (file != testFile1) { // testFile1 covers the world
+                    // outside of the bounds
+                    double[] outside = new double[] { bounds[2] + 1, bounds[3] + 1, bounds[2] + 2, bounds[3] + 2 };
+                    assertFalse(reader.getTiles(outside, reader.getMaxZoom(), reader.getMaxZoom()).hasNext());
+                }
+            } catch (IOException e) {
+                fail(e.getMessage());
+            }
+        }
+        try (Reader reader = new Reader(testFile1)) {
+            // crossing the antimeridian
+            assertBbox(reader, new double[] { 100, -10, -100, 10 }, 0, 3);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Check that getTiles returns the same tiles as retrieving the tiles in the bounding box individually
+     * 
+     * @param reader the Reader
+     * @param bbox the bounding box
+     * @param minZoom the minimum zoom
+     * @param maxZoom the maximum zoom
+     * @throws IOException if reading fails
+     */
+    private void assertBbox(@NotNull Reader reader, @NotNull double[] bbox, int minZoom, int maxZoom) throws IOException {
+        SortedMap<Long, byte[]> expected = new TreeMap<>();
+        for (int z = minZoom; z <= maxZoom; z++) {
+            int max = (1 << z) - 1;
+            int x1 = Math.max(0, xTile(z, bbox[0]));
+            int x2 = Math.min(max, xTile(z, bbox[2]));
+            int y1 = Math.max(0, yTile(z, bbox[3]));
+            int y2 = Math.min(max, yTile(z, bbox[1]));
+            for (int x = 0; x <= max; x++) {
+                if (x1 <= x2 ? x < x1 || x > x2 : x < x1 && x > x2) {
+                    continue;
+                }
+                for (int y = y1; y <= y2; y++) {
+                    byte[] data = reader.getTile(z, x, y);
+                    if (data != null) {
+                        expected.put(Hilbert.zxyToTileId(z, x, y), data);
+                    }
+                }
+            }
+        }
+        TileIterator iterator = reader.getTiles(bbox, minZoom, maxZoom);
+        for (Entry<Long, byte[]> entry : expected.entrySet()) {
+            assertTrue(iterator.hasNext());
+            Tile tile = iterator.next();
+            assertEquals((long) entry.getKey(), Hilbert.zxyToTileId(tile.getZoom(), tile.getX(), tile.getY()));
+            assertArrayEquals(entry.getValue(), tile.getData());
+        }
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void leafIndex() {
+        for (File file : new File[] { testFile1, testFile2, testFile3, testFile4 }) {
+            try (Reader reader = new Reader(file); Reader indexed = new Reader(file)) {
+                indexed.loadLeafDirectories();
+                TileIterator iterator = reader.getTileIterator();
+                int count = 0;
+                while (iterator.hasNext()) {
+                    Tile tile = iterator.next();
+                    assertArrayEquals(tile.getData(), indexed.getTile(tile.getZoom(), tile.getX(), tile.getY()));
+                    count++;
+                }
+                iterator = indexed.getTileIterator();
+                while (iterator.hasNext()) {
+                    iterator.next();
+                    count--;
+                }
+                assertEquals(0, count);
+                assertNull(indexed.getTile(reader.getMaxZoom() + 1, 0, 0));
+            } catch (IOException e) {
+                fail(e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void sidecarIndex() {
+        File sidecar = null;
+        try {
+            sidecar = File.createTempFile("pmtiles", ".idx");
+            assertTrue(sidecar.delete());
+            for (File file : new File[] { testFile1, testFile2, testFile3, testFile4 }) {
+                try (Reader reader = new Reader(file)) {
+                    reader.loadLeafDirectories(sidecar); // missing or for a different archive, needs to be written
+                }
+                assertTrue(sidecar.setLastModified(1000));
+                try (Reader reader = new Reader(file); Reader indexed = new Reader(file)) {
+                    indexed.loadLeafDirectories(sidecar);
+                    assertEquals(1000, sidecar.lastModified());
+                    TileIterator iterator = reader.getTileIterator();
+                    while (iterator.hasNext()) {
+                        Tile tile = iterator.next();
+                        assertArrayEquals(tile.getData(), indexed.getTile(tile.getZoom(), tile.getX(), tile.getY()));
+                    }
+                    assertNull(indexed.getTile(reader.getMaxZoom() + 1, 0, 0));
+                }
+            }
+        } catch (IOException e) {
+            fail(e.getMessage());
+        } finally {
+            if (sidecar != null) {
+                sidecar.delete(); // NOSONAR
+            }
+        }
+    }
+
+    /**
+     * A sidecar index mapped in small chunks should contain the same values as one mapped in one piece
+     */
+    @Test
+    public void sidecarIndexChunked() {
+        File sidecar = null;
+        try (Reader reader = new Reader(testFile4)) {
+            sidecar = File.createTempFile("pmtiles", ".idx");
+            assertTrue(sidecar.delete());
+            reader.loadLeafDirectories(sidecar);
+            assertFalse(new File(sidecar.getPath() + ".tmp").exists());
+            final byte[] header = reader.state().header.raw;
+            Reader.Directory whole = SidecarIndex.map(sidecar, reader, header, testFile4.length(), null);
+            Reader.Directory chunked = SidecarIndex.map(sidecar, reader, header, testFile4.length(), null, 4);
+            assertNotNull(whole);
+            assertNotNull(chunked);
+            assertTrue(whole.ids.size() > 16);
+            assertEquals(whole.ids.size(), chunked.ids.size());
+            for (int i = 0; i < whole.ids.size(); i++) {
+                assertEquals(whole.ids.get(i), chunked.ids.get(i));
+                assertEquals(whole.runLengths.get(i), chunked.runLengths.get(i));
+                assertEquals(whole.lengths.get(i), chunked.lengths.get(i));
+                assertEquals(whole.offsets.get(i), chunked.offsets.get(i));
+                assertEquals(i, chunked.ids.binarySearch(whole.ids.get(i)));
+            }
+            assertEquals(-1, chunked.ids.binarySearch(-1));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        } finally {
+            if (sidecar != null) {
+                sidecar.delete(); // NOSONAR
+            }
+        }
+    }
+
+    @Test
+    public void decodedTile() {
+        try (Reader reader = new Reader(testFile3)) {
+            assertEquals(Constants.COMPRESSION_GZIP, reader.getTileCompression());
+            byte[] tile = reader.getTile(13, 4350, 2984);
+            assertNotNull(tile);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (GZIPInputStream is = new GZIPInputStream(new ByteArrayInputStream(tile))) {
+                byte[] temp = new byte[1024];
+                int len;
+                while ((len = is.read(temp)) != -1) {
+                    bos.write(temp, 0, len);
+                }
+            }
+            byte[] decoded = reader.getDecodedTile(13, 4350, 2984);
+            assertArrayEquals(bos.toByteArray(), decoded);
+            assertSame(decoded, reader.getDecodedTile(13, 4350, 2984));
+            assertNull(reader.getDecodedTile(13, 0, 0));
+            reader.setDecodedTileCacheSize(0);
+            byte[] uncached = reader.getDecodedTile(13, 4350, 2984);
+            assertNotSame(decoded, uncached);
+            assertArrayEquals(decoded, uncached);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        try (Reader reader = new Reader(testFile1)) {
+            assertEquals(Constants.COMPRESSION_NONE, reader.getTileCompression());
+            assertArrayEquals(reader.getTile(2, 2, 3), reader.getDecodedTile(2, 2, 3));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Stats should record lookups, leaf directory cache activity, reads and de-compression
+     */
+    @Test
+    public void stats() {
+        try (Reader reader = new Reader(testFile4)) {
+            assertNull(reader.getStats());
+            ReaderStats stats = new ReaderStats();
+            reader.setStats(stats);
+            assertSame(stats, reader.getStats());
+            reader.setLeafDirectoryCacheSize(1);
+            double[] bounds = reader.getBounds();
+            int lookups = 0;
+            for (int z = reader.getMinZoom(); z <= reader.getMaxZoom(); z++) {
+                for (int x = xTile(z, bounds[0]); x <= xTile(z, bounds[2]); x++) {
+                    for (int y = yTile(z, bounds[3]); y <= yTile(z, bounds[1]); y++) {
+                        reader.getTile(z, x, y);
+                        lookups++;
+                    }
+                }
+            }
+            assertEquals(lookups, stats.getDirectoryLookupLatency().getCount());
+            assertTrue(stats.getLeafCacheHits() > 0);
+            assertTrue(stats.getLeafCacheMisses() > 0);
+            assertEquals(stats.getLeafCacheMisses(), stats.getLeafLoadLatency().getCount());
+            assertEquals(stats.getLeafCacheMisses() - 1, stats.getLeafCacheEvictions());
+            assertTrue(stats.getReads() >= stats.getLeafCacheMisses());
+            assertTrue(stats.getBytesRead() > 0);
+            assertEquals(stats.getLeafCacheMisses(), stats.getDecompressionLatency().getCount());
+            assertEquals(0, stats.getRequestLatency().getCount());
+            assertEquals(0, stats.getSourceChanges());
+            assertTrue(stats.getDirectoryLookupLatency().getPercentile(0.99) >= stats.getDirectoryLookupLatency().getPercentile(0.5));
+            stats.reset();
+            assertEquals(0, stats.getDirectoryLookupLatency().getCount());
+            assertEquals(0, stats.getLeafCacheMisses());
+            reader.setStats(null);
+            reader.getTile(0, 0, 0);
+            assertEquals(0, stats.getDirectoryLookupLatency().getCount());
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void histogram() {
+        ReaderStats.Histogram histogram = new ReaderStats.Histogram();
+        assertEquals(0, histogram.getPercentile(0.5));
+        histogram.record(0);
+        histogram.record(1);
+        histogram.record(5);
+        histogram.record(1000);
+        assertEquals(4, histogram.getCount());
+        assertEquals(1006, histogram.getTotal());
+        long[] buckets = histogram.getBuckets();
+        assertEquals(1, buckets[0]);
+        assertEquals(1, buckets[1]);
+        assertEquals(1, buckets[3]);
+        assertEquals(1, buckets[10]);
+        assertEquals(1, histogram.getPercentile(0.5));
+        assertEquals(1023, histogram.getPercentile(1));
+    }
+
+    /**
+     * Records the visited tile ids
+     */
+    private static class IdVisitor implements ScanVisitor<IdVisitor> {
+        final List<Long> ids = new ArrayList<>();
+
+        @Override
+        public IdVisitor fork() {
+            return new IdVisitor();
+        }
+
+        @Override
+        public void visit(long tileId, long runLength, long offset, long length) {
+            for (long i = 0; i < runLength; i++) {
+                ids.add(tileId + i);
+            }
+        }
+
+        @Override
+        public void merge(IdVisitor other) {
+            ids.addAll(other.ids);
+        }
+    }
+
+    /**
+     * A parallel scan should visit the same tiles as the iterator, merged in order, and the statistics should match the
+     * header
+     */
+    @Test
+    public void scan() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (File file : new File[] { testFile1, testFile2, testFile3, testFile4 }) {
+            try (Reader reader = new Reader(file)) {
+                List<Long> expected = new ArrayList<>();
+                long[] perZoom = new long[ArchiveStatistics.MAX_ZOOM + 1];
+                TileIterator iterator = reader.getTileIterator();
+                while (iterator.hasNext()) {
+                    Tile tile = iterator.next();
+                    expected.add(Hilbert.zxyToTileId(tile.getZoom(), tile.getX(), tile.getY()));
+                    perZoom[tile.getZoom()]++;
+                }
+                assertEquals(expected, reader.scan(new IdVisitor(), pool).ids);
+
+                ArchiveStatistics statistics = reader.getStatistics();
+                assertEquals(expected.size(), statistics.getAddressedTiles());
+                for (int z = 0; z <= ArchiveStatistics.MAX_ZOOM; z++) {
+                    assertEquals(perZoom[z], statistics.getTileCount(z));
+                }
+                assertEquals(0, statistics.getInvalidEntries());
+                assertEquals(-1, statistics.getFirstInvalidTileId());
+                assertTrue(statistics.matchesHeader(reader));
+                assertTrue(statistics.getTileContents() <= statistics.getTileEntries());
+                assertTrue(statistics.getDeduplicationRatio() >= 1);
+                long histogramTotal = 0;
+                for (long count : statistics.getSizeHistogram()) {
+                    histogramTotal += count;
+                }
+                assertEquals(statistics.getTileEntries(), histogramTotal);
+                if (reader.getTileContents() != 0) {
+                    assertEquals(reader.getTileContents(), statistics.getTileContents());
+                }
+
+                ArchiveStatistics truncated = reader.scan(new ArchiveStatistics(reader.getTileDataLength() / 2), pool);
+                assertTrue(truncated.getInvalidEntries() > 0);
+                assertTrue(truncated.getFirstInvalidTileId() >= 0);
+            } catch (IOException e) {
+                fail(e.getMessage());
+            }
+        }
+        pool.shutdown();
+    }
+
     @Test
     public void metaData() {
         try (Reader reader = new Reader(testFile1)) {
@@ -3,21 +3,33 @@ package ch.poole.geo.pmtiles;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
 
 public class RemoteTest {
 
@@ -54,8 +66,8 @@ public class RemoteTest {
     @Test
     public void header() {
         try (Reader reader = new Reader(new HttpUrlConnectionChannel(new URL(tileUrl)))) {
-            assertEquals(Reader.PMTILES_VERSION, reader.header.version);
-            assertEquals(Constants.COMPRESSION_GZIP, reader.header.internalCompression);
+            assertEquals(Reader.PMTILES_VERSION, reader.header().version);
+            assertEquals(Constants.COMPRESSION_GZIP, reader.header().internalCompression);
             assertEquals(Constants.COMPRESSION_GZIP, reader.getTileCompression());
             assertEquals(Constants.TYPE_MVT, reader.getTileType());
             assertEquals(0, reader.getMinZoom());
@@ -81,30 +93,424 @@ public class RemoteTest {
         }
     }
 
+    @Test
+    public void stats() {
+        try (Reader reader = new Reader(new HttpUrlConnectionChannel(new URL(tileUrl)))) {
+            ReaderStats stats = new ReaderStats();
+            reader.setStats(stats);
+            byte[] tile = reader.getTile(13, 4350, 2984);
+            assertNotNull(tile);
+            assertEquals(stats.getReads(), stats.getRequestLatency().getCount());
+            assertEquals(stats.getBytesRead(), stats.getRequestBytes());
+            assertTrue(stats.getRequestLatency().getTotal() > 0);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void tileToBuffer() {
+        try (Reader reader = new Reader(new HttpUrlConnectionChannel(new URL(tileUrl)))) {
+            byte[] tile = reader.getTile(13, 4350, 2984);
+            assertNotNull(tile);
+            for (ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.allocate(tile.length + 5), ByteBuffer.allocateDirect(tile.length + 5) }) {
+                buffer.position(5);
+                assertEquals(tile.length, reader.getTile(13, 4350, 2984, buffer));
+                assertEquals(tile.length + 5, buffer.position());
+                buffer.position(5);
+                byte[] temp = new byte[tile.length];
+                buffer.get(temp);
+                assertArrayEquals(tile, temp);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(tile.length, reader.getTile(13, 4350, 2984, Channels.newChannel(out)));
+            assertArrayEquals(tile, out.toByteArray());
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Retrieving a batch of neighbouring tiles should need fewer requests than tiles
+     */
+    @Test
+    public void batch() {
+        try (Reader reader = new Reader(new HttpUrlConnectionChannel(new URL(tileUrl)))) {
+            List<TileCoordinates> coordinates = new ArrayList<>();
+            for (int x = 4349; x <= 4351; x++) {
+                for (int y = 2983; y <= 2985; y++) {
+                    coordinates.add(new TileCoordinates(13, x, y));
+                }
+            }
+            final int before = tileServer.getRequestCount();
+            List<byte[]> tiles = reader.getTiles(coordinates);
+            final int requests = tileServer.getRequestCount() - before;
+            assertTrue(requests < coordinates.size());
+            for (int i = 0; i < coordinates.size(); i++) {
+                TileCoordinates c = coordinates.get(i);
+                assertArrayEquals(reader.getTile(c.getZoom(), c.getX(), c.getY()), tiles.get(i));
+            }
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Header and root directory should be retrieved with one request and changes of the source should clear the cache
+     */
+    @Test
+    public void blockCache() {
+        try (Reader reader = new Reader(new BlockCacheChannel(new HttpUrlConnectionChannel(new URL(tileUrl)), 16 * 1024, 64, 1))) {
+            assertEquals(1, tileServer.getRequestCount());
+            assertEquals("bytes=0-32767", tileServer.takeRequest().getHeader(PMTilesDispatcher.RANGE_HEADER));
+            byte[] tile = reader.getTile(13, 4350, 2984);
+            assertEquals(2, tileServer.getRequestCount());
+            assertEquals("bytes=688128-737279", tileServer.takeRequest().getHeader(PMTilesDispatcher.RANGE_HEADER));
+            try (Reader uncached = new Reader(new HttpUrlConnectionChannel(new URL(tileUrl)))) {
+                assertArrayEquals(uncached.getTile(13, 4350, 2984), tile);
+                assertArrayEquals(uncached.getTile(13, 4351, 2984), reader.getTile(13, 4351, 2984));
+                assertArrayEquals(uncached.getTile(14, 8700, 5969), reader.getTile(14, 8700, 5969));
+            }
+            final int count = tileServer.getRequestCount();
+            assertArrayEquals(tile, reader.getTile(13, 4350, 2984));
+            assertEquals(count, tileServer.getRequestCount());
+
+            tileDispatcher.setEtag("4321");
+            byte[] tile2 = reader.getTile(10, 544, 373);
+            assertNotNull(tile2);
+            // the failed conditional request, header and root directory, and the tile again
+            assertEquals(3, tileServer.getRequestCount() - count);
+            try (Reader uncached = new Reader(new HttpUrlConnectionChannel(new URL(tileUrl)))) {
+                assertArrayEquals(uncached.getTile(10, 544, 373), tile2);
+            }
+        } catch (IOException | InterruptedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * The HttpClient based channel should return the same tiles and detect source changes
+     */
+    @Test
+    public void httpClientChannel() {
+        try (Reader reader = new Reader(new HttpClientChannel(new URL(tileUrl), 1000, 5000));
+                Reader reference = new Reader(new HttpUrlConnectionChannel(new URL(tileUrl)))) {
+            assertEquals(Constants.TYPE_MVT, reader.getTileType());
+            byte[] tile = reader.getTile(13, 4350, 2984);
+            assertNotNull(tile);
+            assertArrayEquals(reference.getTile(13, 4350, 2984), tile);
+            assertEquals(reference.getMetadata(), reader.getMetadata());
+            tileDispatcher.setEtag("4321");
+            assertArrayEquals(tile, reader.getTile(13, 4350, 2984));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Asynchronous retrieval should work with both non-blocking and blocking channels and detect source changes
+     */
+    @Test
+    public void async() {
+        try (Reader reader = new Reader(new HttpClientChannel(new URL(tileUrl), 1000, 5000));
+                Reader blocking = new Reader(new HttpUrlConnectionChannel(new URL(tileUrl)))) {
+            List<TileCoordinates> coordinates = new ArrayList<>();
+            for (int x = 4349; x <= 4351; x++) {
+                for (int y = 2983; y <= 2985; y++) {
+                    coordinates.add(new TileCoordinates(13, x, y));
+                }
+            }
+            byte[] tile = reader.getTileAsync(13, 4350, 2984).get();
+            assertNotNull(tile);
+            assertArrayEquals(blocking.getTile(13, 4350, 2984), tile);
+            assertArrayEquals(tile, blocking.getTileAsync(13, 4350, 2984).get());
+            List<byte[]> tiles = reader.getTilesAsync(coordinates).get();
+            assertEquals(coordinates.size(), tiles.size());
+            for (int i = 0; i < coordinates.size(); i++) {
+                TileCoordinates c = coordinates.get(i);
+                assertArrayEquals(blocking.getTile(c.getZoom(), c.getX(), c.getY()), tiles.get(i));
+            }
+            tileDispatcher.setEtag("4321");
+            assertArrayEquals(tile, reader.getTileAsync(13, 4350, 2984).get());
+            assertArrayEquals(tiles.toArray(), blocking.getTilesAsync(coordinates).get().toArray());
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Iterating over a remote archive should need far fewer requests than there are tiles
+     */
+    @Test
+    public void iterator() {
+        try (Reader reader = new Reader(new HttpUrlConnectionChannel(new URL(tileUrl)))) {
+            final int before = tileServer.getRequestCount();
+            TileIterator iterator = reader.getTileIterator();
+            int count = 0;
+            while (iterator.hasNext()) {
+                assertNotNull(iterator.next().getData());
+                count++;
+            }
+            assertTrue(count > 100);
+            assertTrue(tileServer.getRequestCount() - before < 10);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * The tile data of a bounding box query on a clustered archive should be read with few requests
+     */
+    @Test
+    public void bbox() {
+        try (Reader reader = new Reader(new HttpUrlConnectionChannel(new URL(tileUrl)))) {
+            assertTrue(reader.isClustered());
+            final int before = tileServer.getRequestCount();
+            double[] bounds = reader.getBounds();
+            double[] bbox = new double[] { (bounds[0] + bounds[2]) / 2, (bounds[1] + bounds[3]) / 2, bounds[2], bounds[3] };
+            TileIterator iterator = reader.getTiles(bbox, reader.getMinZoom(), reader.getMaxZoom());
+            int count = 0;
+            while (iterator.hasNext()) {
+                assertNotNull(iterator.next().getData());
+                count++;
+            }
+            assertTrue(count > 10);
+            assertTrue(tileServer.getRequestCount() - before < count / 4);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * After loading the leaf directories retrieving tiles shouldn't need any directory reads
+     */
+    @Test
+    public void leafIndex() {
+        ClassLoader classLoader = getClass().getClassLoader();
+        File testFile = new File(classLoader.getResource("leaf-dirs.pmtiles").getFile());
+        MockWebServer server = new MockWebServer();
+        try {
+            server.setDispatcher(new PMTilesDispatcher(testFile));
+            try (Reader reader = new Reader(new HttpUrlConnectionChannel(new URL(server.url("/").toString() + "leaf-dirs.pmtiles")))) {
+                reader.loadLeafDirectories();
+                final int before = server.getRequestCount();
+                int count = 0;
+                for (int z = reader.getMinZoom(); z <= reader.getMaxZoom(); z++) {
+                    for (int x = 0; x < 1 << z; x++) {
+                        for (int y = 0; y < 1 << z; y++) {
+                            if (reader.getTile(z, x, y) != null) {
+                                count++;
+                            }
+                        }
+                    }
+                }
+                assertTrue(count > 0);
+                assertEquals(count, server.getRequestCount() - before);
+            }
+        } catch (IOException e) {
+            fail(e.getMessage());
+        } finally {
+            try {
+                server.shutdown();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * A sidecar index should be used without reading the leaf directories as long as the ETag is unchanged
+     */
+    @Test
+    public void sidecarIndex() {
+        ClassLoader classLoader = getClass().getClassLoader();
+        File testFile = new File(classLoader.getResource("leaf-dirs.pmtiles").getFile());
+        MockWebServer server = new MockWebServer();
+        File sidecar = null;
+        try {
+            PMTilesDispatcher dispatcher = new PMTilesDispatcher(testFile);
+            server.setDispatcher(dispatcher);
+            URL url = new URL(server.url("/").toString() + "leaf-dirs.pmtiles");
+            sidecar = File.createTempFile("leaf-dirs", ".idx");
+            assertTrue(sidecar.delete());
+            List<byte[]> expected = new ArrayList<>();
+            try (Reader reader = new Reader(new HttpUrlConnectionChannel(url))) {
+                reader.loadLeafDirectories(sidecar);
+                assertTrue(sidecar.exists());
+                for (int x = 0; x < 16; x++) {
+                    expected.add(reader.getTile(4, x, 5));
+                }
+            }
+            try (Reader reader = new Reader(new HttpUrlConnectionChannel(url))) {
+                int before = server.getRequestCount();
+                reader.loadLeafDirectories(sidecar);
+                assertEquals(before, server.getRequestCount());
+                for (int x = 0; x < 16; x++) {
+                    assertArrayEquals(expected.get(x), reader.getTile(4, x, 5));
+                }
+            }
+            dispatcher.setEtag("4321");
+            try (Reader reader = new Reader(new HttpUrlConnectionChannel(url))) {
+                int before = server.getRequestCount();
+                reader.loadLeafDirectories(sidecar);
+                assertEquals(before + 1, server.getRequestCount()); // leaf directories
+                for (int x = 0; x < 16; x++) {
+                    assertArrayEquals(expected.get(x), reader.getTile(4, x, 5));
+                }
+            }
+        } catch (IOException e) {
+            fail(e.getMessage());
+        } finally {
+            if (sidecar != null) {
+                sidecar.delete(); // NOSONAR
+            }
+            try {
+                server.shutdown();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * A change of the ETag should be detected by the server via If-Match, after which the header and root directory
+     * are re-read with one request and the caches replaced
+     */
     @Test
     public void eTag() {
         try (Reader reader = new Reader(new HttpUrlConnectionChannel(new URL(tileUrl)))) {
-            assertEquals("bytes=0-126", tileServer.takeRequest().getHeader(PMTilesDispatcher.RANGE_HEADER)); // PMTiles
-                                                                                                             // header
-            assertEquals("bytes=127-532", tileServer.takeRequest().getHeader(PMTilesDispatcher.RANGE_HEADER)); // PMTiles
-                                                                                                               // root
-                                                                                                               // directory
+            RecordedRequest request = tileServer.takeRequest();
+            assertEquals("bytes=0-16383", request.getHeader(PMTilesDispatcher.RANGE_HEADER)); // header and root directory
+            assertNull(request.getHeader(PMTilesDispatcher.IF_MATCH_HEADER));
             byte[] tile = reader.getTile(13, 4350, 2984);
             assertNotNull(tile);
-            assertEquals("bytes=703091-719277", tileServer.takeRequest().getHeader(PMTilesDispatcher.RANGE_HEADER)); // tile
+            request = tileServer.takeRequest();
+            assertEquals("bytes=703091-719277", request.getHeader(PMTilesDispatcher.RANGE_HEADER)); // tile
+            assertEquals("1234", request.getHeader(PMTilesDispatcher.IF_MATCH_HEADER));
 
-            // setting the etag to a different value should force everything to be redone
+            // setting the etag to a different value should force the header and root directory to be re-read
+            Reader.State state = reader.state();
             tileDispatcher.setEtag("4321");
-            tile = reader.getTile(13, 4350, 2984);
-            assertEquals("bytes=703091-719277", tileServer.takeRequest().getHeader(PMTilesDispatcher.RANGE_HEADER));
-            assertEquals("bytes=0-126", tileServer.takeRequest().getHeader(PMTilesDispatcher.RANGE_HEADER));
-            assertEquals("bytes=127-532", tileServer.takeRequest().getHeader(PMTilesDispatcher.RANGE_HEADER));
-            assertEquals("bytes=703091-719277", tileServer.takeRequest().getHeader(PMTilesDispatcher.RANGE_HEADER));
+            assertArrayEquals(tile, reader.getTile(13, 4350, 2984));
+            request = tileServer.takeRequest();
+            assertEquals("bytes=703091-719277", request.getHeader(PMTilesDispatcher.RANGE_HEADER)); // answered with 412
+            assertEquals("1234", request.getHeader(PMTilesDispatcher.IF_MATCH_HEADER));
+            request = tileServer.takeRequest();
+            assertEquals("bytes=0-16383", request.getHeader(PMTilesDispatcher.RANGE_HEADER));
+            assertNull(request.getHeader(PMTilesDispatcher.IF_MATCH_HEADER));
+            request = tileServer.takeRequest();
+            assertEquals("bytes=703091-719277", request.getHeader(PMTilesDispatcher.RANGE_HEADER));
+            assertEquals("4321", request.getHeader(PMTilesDispatcher.IF_MATCH_HEADER));
+            assertEquals(5, tileServer.getRequestCount());
+            assertEquals(state.generation + 1, reader.state().generation);
+            assertNotSame(state.leafCache, reader.state().leafCache);
+            assertEquals(0, state.leafCache.size());
         } catch (IOException | InterruptedException e) {
             fail(e.getMessage());
         }
     }
 
+    /**
+     * A change of the ETag should still be detected if the server ignores If-Match
+     */
+    @Test
+    public void eTagIfMatchIgnored() {
+        tileDispatcher.setIfMatch(false);
+        try (HttpUrlConnectionChannel channel = new HttpUrlConnectionChannel(new URL(tileUrl)); Reader reader = new Reader(channel)) {
+            byte[] tile = reader.getTile(13, 4350, 2984);
+            assertNotNull(tile);
+            tileDispatcher.setEtag("4321");
+            assertArrayEquals(tile, reader.getTile(13, 4350, 2984));
+            // header and root directory, tile, the tile with the changed ETag, header and root directory, and the tile
+            // again
+            assertEquals(5, tileServer.getRequestCount());
+            assertEquals("4321", channel.getETag());
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Requests failing with a transient error should be retried a bounded number of times, others not at all
+     */
+    @Test
+    public void retry() {
+        try (Reader reader = new Reader(new HttpUrlConnectionChannel(new URL(tileUrl)))) {
+            ReaderStats stats = new ReaderStats();
+            reader.setStats(stats);
+            tileDispatcher.failNext(2, HttpURLConnection.HTTP_UNAVAILABLE);
+            final int count = tileServer.getRequestCount();
+            assertNotNull(reader.getTile(13, 4350, 2984));
+            assertEquals(3, tileServer.getRequestCount() - count);
+            assertEquals(2, stats.getRetries());
+            tileDispatcher.failNext(3, HttpURLConnection.HTTP_BAD_GATEWAY);
+            try {
+                reader.getTile(13, 4351, 2984);
+                fail("should have thrown an IOException");
+            } catch (IOException e) {
+                // expected
+            }
+            assertEquals(4, stats.getRetries());
+            tileDispatcher.failNext(1, HttpURLConnection.HTTP_FORBIDDEN);
+            try {
+                reader.getTile(13, 4351, 2984);
+                fail("should have thrown an IOException");
+            } catch (IOException e) {
+                // expected
+            }
+            assertEquals(4, stats.getRetries());
+            assertNotNull(reader.getTile(13, 4351, 2984));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * A read should fail when the deadline is exceeded without waiting for the response
+     */
+    @Test
+    public void deadline() {
+        try (HttpUrlConnectionChannel channel = new HttpUrlConnectionChannel(new URL(tileUrl)); Reader reader = new Reader(channel)) {
+            channel.setRetries(0, 0);
+            channel.setDeadline(200);
+            tileDispatcher.delayNext(1, 2000);
+            final long start = System.nanoTime();
+            try {
+                reader.getTile(13, 4350, 2984);
+                fail("should have thrown a SocketTimeoutException");
+            } catch (SocketTimeoutException e) {
+                // expected
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1500));
+            assertNotNull(reader.getTile(13, 4350, 2984));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * A slow request should be hedged with a second request and the faster response used
+     */
+    @Test
+    public void hedging() {
+        try (HttpUrlConnectionChannel channel = new HttpUrlConnectionChannel(new URL(tileUrl)); Reader reader = new Reader(channel);
+                Reader reference = new Reader(new HttpUrlConnectionChannel(new URL(tileUrl)))) {
+            ReaderStats stats = new ReaderStats();
+            reader.setStats(stats);
+            channel.setHedging(0.95, 50);
+            byte[] expected = reference.getTile(13, 4350, 2984);
+            tileDispatcher.delayNext(1, 3000);
+            final int count = tileServer.getRequestCount();
+            final long start = System.nanoTime();
+            assertArrayEquals(expected, reader.getTile(13, 4350, 2984));
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1500));
+            assertEquals(1, stats.getHedgedRequests());
+            assertEquals(2, tileServer.getRequestCount() - count);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
     @Test
     public void checkUnimplemented() {
         try (FileChannel channel = new HttpUrlConnectionChannel(new URL(tileUrl))) {
@@ -0,0 +1,143 @@
+package ch.poole.geo.pmtiles;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+public class UtilTest {
+
+    /**
+     * Compress data with GZIPOutputStream
+     * 
+     * @param data the data
+     * @return the gzip compressed data
+     * @throws IOException if compression fails
+     */
+    @NotNull
+    private static byte[] gzip(@NotNull byte[] data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (GZIPOutputStream gos = new GZIPOutputStream(bos)) {
+            gos.write(data);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Create compressible test data
+     * 
+     * @param random the Random to use
+     * @param size the size of the data
+     * @return the data
+     */
+    @NotNull
+    private static byte[] data(@NotNull Random random, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) random.nextInt(8);
+        }
+        return data;
+    }
+
+    /**
+     * Check de-compression of heap, sliced and direct buffers
+     */
+    @Test
+    public void gunzip() {
+        Random random = new Random(4711);
+        try {
+            for (int size : new int[] { 0, 1, 1000, 100000 }) {
+                byte[] data = data(random, size);
+                byte[] compressed = gzip(data);
+                assertArrayEquals(data, Util.toArray(Util.decompress(ByteBuffer.wrap(compressed), Constants.COMPRESSION_GZIP)));
+                byte[] padded = new byte[compressed.length + 20];
+                System.arraycopy(compressed, 0, padded, 10, compressed.length);
+                ByteBuffer sliced = ByteBuffer.wrap(padded, 10, compressed.length).slice();
+                assertArrayEquals(data, Util.toArray(Util.decompress(sliced, Constants.COMPRESSION_GZIP)));
+                ByteBuffer direct = ByteBuffer.allocateDirect(compressed.length);
+                direct.put(compressed).flip();
+                assertArrayEquals(data, Util.toArray(Util.decompress(direct, Constants.COMPRESSION_GZIP)));
+            }
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Check that optional header fields and concatenated members are handled
+     */
+    @Test
+    public void gunzipHeaderAndMembers() {
+        Random random = new Random(4711);
+        try {
+            byte[] data1 = data(random, 5000);
+            byte[] data2 = data(random, 300);
+            byte[] member1 = gzip(data1);
+            byte[] member2 = gzip(data2);
+            // add FEXTRA, FNAME and FCOMMENT to the first member
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            bos.write(member1, 0, 3);
+            bos.write(4 | 8 | 16);
+            bos.write(member1, 4, 6);
+            bos.write(new byte[] { 3, 0, 1, 2, 3 });
+            bos.write(new byte[] { 'n', 'a', 'm', 'e', 0 });
+            bos.write(new byte[] { 'c', 0 });
+            bos.write(member1, 10, member1.length - 10);
+            bos.write(member2);
+            byte[] expected = new byte[data1.length + data2.length];
+            System.arraycopy(data1, 0, expected, 0, data1.length);
+            System.arraycopy(data2, 0, expected, data1.length, data2.length);
+            assertArrayEquals(expected, Util.toArray(Util.decompress(ByteBuffer.wrap(bos.toByteArray()), Constants.COMPRESSION_GZIP)));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Check that corrupt data is detected
+     */
+    @Test
+    public void gunzipCorrupt() {
+        try {
+            byte[] compressed = gzip(data(new Random(4711), 1000));
+            compressed[compressed.length - 6] ^= 1; // CRC
+            Util.decompress(ByteBuffer.wrap(compressed), Constants.COMPRESSION_GZIP);
+            fail("should have thrown ZipException");
+        } catch (ZipException e) {
+            assertEquals("Corrupt gzip trailer", e.getMessage());
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        try {
+            Util.decompress(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 }), Constants.COMPRESSION_GZIP);
+            fail("should have thrown ZipException");
+        } catch (ZipException e) {
+            assertEquals("Not in GZIP format", e.getMessage());
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Uncompressed data should be returned as is
+     */
+    @Test
+    public void none() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+        try {
+            assertSame(buffer, Util.decompress(buffer, Constants.COMPRESSION_NONE));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package ch.poole.geo.pmtiles.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.poole.geo.pmtiles.Reader;
+
+public class TileServerTest {
+
+    private Reader     vector;
+    private Reader     raster;
+    private TileServer server;
+    private String     baseUrl;
+
+    @Before
+    public void setup() {
+        ClassLoader classLoader = getClass().getClassLoader();
+        try {
+            vector = new Reader(new File(classLoader.getResource("protomaps(vector)ODbL_firenze.pmtiles").getFile()));
+            raster = new Reader(new File(classLoader.getResource("stamen_toner(raster)CC-BY+ODbL_z3.pmtiles").getFile()), true);
+            server = new TileServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            server.add("firenze", vector);
+            server.add("toner", raster);
+            server.start();
+            baseUrl = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Post-test teardown
+     */
+    @After
+    public void teardown() {
+        server.close();
+        try {
+            vector.close();
+            raster.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    @Test
+    public void tile() {
+        try {
+            HttpURLConnection conn = open("/firenze/13/4350/2984.mvt");
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+            assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+            assertEquals("application/vnd.mapbox-vector-tile", conn.getContentType());
+            assertEquals(TileServer.DEFAULT_CACHE_CONTROL, conn.getHeaderField("Cache-Control"));
+            assertArrayEquals(vector.getTile(13, 4350, 2984), body(conn));
+
+            conn = open("/toner/2/2/3");
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+            assertNull(conn.getHeaderField("Content-Encoding"));
+            assertEquals("image/png", conn.getContentType());
+            assertArrayEquals(raster.getTile(2, 2, 3), body(conn));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void notFound() {
+        try {
+            assertEquals(HttpURLConnection.HTTP_NOT_FOUND, open("/firenze/13/0/0").getResponseCode());
+            assertEquals(HttpURLConnection.HTTP_NOT_FOUND, open("/firenze/20/0/0").getResponseCode());
+            assertEquals(HttpURLConnection.HTTP_NOT_FOUND, open("/firenze/1/2/0").getResponseCode());
+            assertEquals(HttpURLConnection.HTTP_NOT_FOUND, open("/firenze/a/b/c").getResponseCode());
+            assertEquals(HttpURLConnection.HTTP_NOT_FOUND, open("/unknown/13/4350/2984").getResponseCode());
+            assertEquals(HttpURLConnection.HTTP_NOT_FOUND, open("/firenze/13/4350").getResponseCode());
+            HttpURLConnection conn = open("/firenze/13/4350/2984");
+            conn.setRequestMethod("POST");
+            assertEquals(HttpURLConnection.HTTP_BAD_METHOD, conn.getResponseCode());
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void conditional() {
+        try {
+            HttpURLConnection conn = open("/firenze/13/4350/2984");
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+            String eTag = conn.getHeaderField("ETag");
+            assertTrue(eTag.startsWith("\"") && eTag.endsWith("\""));
+            body(conn);
+            assertEquals(eTag, open("/firenze/13/4350/2984.mvt").getHeaderField("ETag"));
+            assertFalse(eTag.equals(open("/firenze/13/4351/2984").getHeaderField("ETag")));
+
+            conn = open("/firenze/13/4350/2984");
+            conn.setRequestProperty("If-None-Match", "\"x\", W/" + eTag);
+            assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, conn.getResponseCode());
+            assertEquals(eTag, conn.getHeaderField("ETag"));
+
+            conn = open("/firenze/13/4350/2984");
+            conn.setRequestProperty("If-None-Match", "\"x\"");
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+            body(conn);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void head() {
+        try {
+            HttpURLConnection conn = open("/firenze/13/4350/2984");
+            conn.setRequestMethod("HEAD");
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+            assertEquals(vector.getTile(13, 4350, 2984).length, conn.getContentLength());
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void tileJson() {
+        try {
+            HttpURLConnection conn = open("/firenze.json");
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+            assertTrue(conn.getContentType().startsWith("application/json"));
+            String json = new String(body(conn), StandardCharsets.UTF_8);
+            assertTrue(json.startsWith("{") && json.endsWith("}"));
+            assertTrue(json.contains("\"tilejson\":\"3.0.0\""));
+            assertTrue(json.contains("\"tiles\":[\"" + baseUrl + "/firenze/{z}/{x}/{y}.mvt\"]"));
+            assertTrue(json.contains("\"maxzoom\":14"));
+            assertTrue(json.contains("\"vector_layers\""));
+            server.setBaseUrl("https://example.com/tiles");
+            json = new String(body(open("/toner")), StandardCharsets.UTF_8);
+            assertTrue(json.contains("\"tiles\":[\"https://example.com/tiles/toner/{z}/{x}/{y}.png\"]"));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * The Host header and the archive name must not break the TileJSON document
+     */
+    @Test
+    public void tileJsonEscaping() {
+        try {
+            server.add("a\"b", vector);
+            String json = new String(body(open("/a%22b.json")), StandardCharsets.UTF_8);
+            assertTrue(json.contains("/a\\\"b/{z}/{x}/{y}.mvt\"]"));
+
+            try (Socket socket = new Socket(server.getAddress().getAddress(), server.getAddress().getPort())) {
+                OutputStream os = socket.getOutputStream();
+                os.write("GET /firenze.json HTTP/1.1\r\nHost: example.com\",\"x\":\"y\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                os.flush();
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                try (InputStream is = socket.getInputStream()) {
+                    byte[] temp = new byte[1024];
+                    int len;
+                    while ((len = is.read(temp)) != -1) {
+                        bos.write(temp, 0, len);
+                    }
+                }
+                String response = new String(bos.toByteArray(), StandardCharsets.UTF_8);
+                assertTrue(response.startsWith("HTTP/1.1 200"));
+                assertFalse(response.contains("example.com"));
+                assertTrue(response.contains("\"tiles\":[\"" + baseUrl + "/firenze/{z}/{x}/{y}.mvt\"]"));
+            }
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    public void escape() {
+        assertEquals("a\\\"b\\\\c\\u000a", TileServer.escape("a\"b\\c\n"));
+    }
+
+    @Test
+    public void invalidName() {
+        try {
+            server.add("a/b", vector);
+            fail("should have thrown an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Open a connection to the server
+     *
+     * @param path the request path
+     * @return a HttpURLConnection
+     * @throws IOException if the URL is invalid
+     */
+    @NotNull
+    private HttpURLConnection open(@NotNull String path) throws IOException {
+        return (HttpURLConnection) new URL(baseUrl + path).openConnection();
+    }
+
+    /**
+     * Read the response body
+     *
+     * @param conn the HttpURLConnection
+     * @return the body
+     * @throws IOException if reading fails
+     */
+    @NotNull
+    private static byte[] body(@NotNull HttpURLConnection conn) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (InputStream is = conn.getInputStream()) {
+            byte[] temp = new byte[1024];
+            int len;
+            while ((len = is.read(temp)) != -1) {
+                bos.write(temp, 0, len);
+            }
+        }
+        return bos.toByteArray();
+    }
+}